@@ -5,12 +5,17 @@ uniform vec4 u_cameraPosition;
 uniform vec3 u_fogEquation; // (near, far, exponent)
 
 // dedicated to the use of the decal atlas
-uniform vec2     u_step;          // u width (fraction) horizontally per decal Y rotation, v height (fraction) horizontally per decal polar rotation
+// the atlases of all impostor types are slices of one texture, in a grid of columns x rows with type 0 at the bottom left
+#define MAX_TYPES 8
+uniform vec2     u_grid;                // columns, rows
+uniform vec2     u_steps[MAX_TYPES];    // per type: u width (fraction) horizontally per decal Y rotation, v height (fraction) horizontally per decal polar rotation
+uniform vec2     u_sizes[MAX_TYPES];    // per type: width and height of the quad in world units
 
-in vec3 a_position;
-in vec2 a_texCoord0;
+in vec3 a_position;         // unit quad: x in [-0.5, 0.5], y in [0, 1]
+in vec2 a_texCoord0;        // [0, 1]
 
 in vec4 i_offset;           // world position of instance (xyz) + y-rotation (w)
+in float i_type;            // impostor type
 
 out vec2 texCoords;
 out float v_fog;
@@ -28,7 +33,7 @@ mat3 calcLookAtMatrix(vec3 cameraPosition, vec3 instancePosition) {
 #define PI 3.1415926538
 
 // get UV offset in the decal atlas texture for the decal at the closest angle
-vec2 getUVoffset(vec3 camera, vec4 instance)
+vec2 getUVoffset(vec3 camera, vec4 instance, vec2 uvStep)
 {
     vec3 fwd =      camera-instance.xyz;        // vector towards camera
 
@@ -38,8 +43,8 @@ vec2 getUVoffset(vec3 camera, vec4 instance)
     angle -= 0.5*PI;                // turn to match definition of zero
     angle = mod(angle, 2.0*PI);
 
-    float u_offset = floor( angle / (2.0*PI * u_step.x));     // index of texture column to use (0 .. N)
-    u_offset *= u_step.x;
+    float u_offset = floor( angle / (2.0*PI * uvStep.x));     // index of texture column to use (0 .. N)
+    u_offset *= uvStep.x;
 
     float len = length( fwd.xz );
     float elevationAngle = 0.5*PI;
@@ -47,9 +52,9 @@ vec2 getUVoffset(vec3 camera, vec4 instance)
         elevationAngle = atan(fwd.y/ len);  // [-PI/2, PI/2]
     elevationAngle = max(elevationAngle, 0.0);    // [0, PI/2]
 
-    float v_offset = floor( elevationAngle / (PI * 0.5 * u_step.y) );// index of texture row to use (0 .. M)
-    v_offset = clamp(v_offset, 0.0, floor(1.0/u_step.y)-1.0);
-    v_offset *= u_step.y;
+    float v_offset = floor( elevationAngle / (PI * 0.5 * uvStep.y) );// index of texture row to use (0 .. M)
+    v_offset = clamp(v_offset, 0.0, floor(1.0/uvStep.y)-1.0);
+    v_offset *= uvStep.y;
 
     return vec2(u_offset, v_offset);
 }
@@ -57,11 +62,18 @@ vec2 getUVoffset(vec3 camera, vec4 instance)
 
 
 void main () {
-    texCoords = a_texCoord0 + getUVoffset(u_cameraPosition.xyz, i_offset);
+    int type = int(i_type + 0.5);
+    vec2 uvStep = u_steps[type];
+
+    // texture coordinates within the type's atlas, then mapped to its slice of the combined atlas
+    vec2 uv = a_texCoord0 * uvStep + getUVoffset(u_cameraPosition.xyz, i_offset, uvStep);
+    float column = mod(float(type), u_grid.x);
+    float row = floor((float(type) + 0.5) / u_grid.x);
+    texCoords = vec2((column + uv.x) / u_grid.x, (row + uv.y) / u_grid.y);
 
     mat3 decalRotMatrix = calcLookAtMatrix( u_cameraPosition.xyz, i_offset.xyz);
 
-    vec3 position = decalRotMatrix * a_position + i_offset.xyz;    // world coordinates
+    vec3 position = decalRotMatrix * (a_position * vec3(u_sizes[type], 1.0)) + i_offset.xyz;    // world coordinates
 
     float eyeDistance = length(u_cameraPosition.xyz - position);
     float fog = (eyeDistance - u_fogEquation.x) / (u_fogEquation.y - u_fogEquation.x);
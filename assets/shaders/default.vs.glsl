@@ -188,7 +188,17 @@ varying vec3 v_ambientLight;
 
 // MS
 #if defined(instanced)
-    attribute mat4 i_worldTrans;
+    attribute vec4 i_instance;      // per instance: position x, y, z and rotation around the Y axis (radians)
+
+    // rebuild the instance transform (rotation around Y, then translation) from the compact instance data
+    mat4 instanceTransform() {
+        float s = sin(i_instance.w);
+        float c = cos(i_instance.w);
+        return mat4(c, 0.0, -s, 0.0,
+                    0.0, 1.0, 0.0, 0.0,
+                    s, 0.0, c, 0.0,
+                    i_instance.xyz, 1.0);
+    }
 #endif // instanced
 
 
@@ -248,7 +258,7 @@ void main() {
 
     // MS
     #if defined(instanced)
-        pos *= i_worldTrans;
+        pos = instanceTransform() * pos;
     #endif
     // end M
 
@@ -13,7 +13,17 @@ precision mediump float;
 
 // MS
 #if defined(instanced)
-    attribute mat4 i_worldTrans;
+    attribute vec4 i_instance;      // per instance: position x, y, z and rotation around the Y axis (radians)
+
+    // rebuild the instance transform (rotation around Y, then translation) from the compact instance data
+    mat4 instanceTransform() {
+        float s = sin(i_instance.w);
+        float c = cos(i_instance.w);
+        return mat4(c, 0.0, -s, 0.0,
+                    0.0, 1.0, 0.0, 0.0,
+                    s, 0.0, c, 0.0,
+                    i_instance.xyz, 1.0);
+    }
 #endif // instanced
 uniform mat4 u_worldTrans;
 uniform mat4 u_projViewTrans;
@@ -214,7 +224,7 @@ void main() {
 
     // MS
     #if defined(instanced)
-      pos *= i_worldTrans;
+      pos = instanceTransform() * pos;
     #endif
     // end MS
 
@@ -22,7 +22,17 @@
 
 // MS
 #if defined(instanced)
-    attribute mat4 i_worldTrans;
+    attribute vec4 i_instance;      // per instance: position x, y, z and rotation around the Y axis (radians)
+
+    // rebuild the instance transform (rotation around Y, then translation) from the compact instance data
+    mat4 instanceTransform() {
+        float s = sin(i_instance.w);
+        float c = cos(i_instance.w);
+        return mat4(c, 0.0, -s, 0.0,
+                    0.0, 1.0, 0.0, 0.0,
+                    s, 0.0, c, 0.0,
+                    i_instance.xyz, 1.0);
+    }
 #endif // instanced
 
 
@@ -312,7 +322,8 @@ void main() {
 
     // MS
     #if defined(instanced)
-        pos *= i_worldTrans;
+        mat4 instanceTrans = instanceTransform();
+        pos = instanceTrans * pos;
     #endif
     // end MS
 
@@ -335,7 +346,7 @@ void main() {
 
         // MS
         #if defined(instanced)
-            vec3 morph_nor = mat3(i_worldTrans) * a_normal;
+            vec3 morph_nor = mat3(instanceTrans) * a_normal;
         #else
             vec3 morph_nor = a_normal;
         #endif
@@ -70,4 +70,35 @@ public class Impostor {
         Model model = modelBuilder.end(); // makes the model
         return model;
     }
+
+    // create a unit size impostor quad (x in [-0.5, 0.5], y in [0, 1]) with uv in [0, 1] for impostors of any type.
+    // The shader scales the quad and picks the texture region per type and viewing angle.
+    public static Model createUnitImpostorModel(Texture texture){
+        Material material = new Material(
+            TextureAttribute.createDiffuse(texture),
+            new BlendingAttribute(GL20.GL_SRC_ALPHA, GL20.GL_ONE_MINUS_SRC_ALPHA)
+        );
+
+        ModelBuilder modelBuilder = new ModelBuilder();
+        modelBuilder.begin();
+
+        MeshPartBuilder meshBuilder;
+        meshBuilder = modelBuilder.part("impostor",GL20.GL_TRIANGLES,
+            VertexAttributes.Usage.Position| VertexAttributes.Usage.TextureCoordinates,
+            material);
+
+        VertexInfo[] vertexInfo = new VertexInfo[4];
+        for(int i = 0; i < 4; i++)
+            vertexInfo[i] = new VertexInfo();
+
+        vertexInfo[0].set( new Vector3(-0.5f, 0, 0), null, null, new Vector2(0, 0) );
+        vertexInfo[1].set( new Vector3(0.5f, 0, 0), null, null, new Vector2(1, 0) );
+        vertexInfo[2].set( new Vector3(0.5f, 1, 0), null, null, new Vector2(1, 1) );
+        vertexInfo[3].set( new Vector3(-0.5f, 1, 0), null, null, new Vector2(0, 1) );
+
+        // order: 00, 10, 11, 01
+        meshBuilder.rect(vertexInfo[0], vertexInfo[1], vertexInfo[2], vertexInfo[3]);
+
+        return modelBuilder.end();
+    }
 }
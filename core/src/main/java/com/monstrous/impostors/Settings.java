@@ -17,6 +17,11 @@ public class Settings {
     public static boolean   dynamicLODAdjustment = false;
     private static float    lod1Distance = 60f;
     public static float[]   lodDistances = { lod1Distance, 2f*lod1Distance, 4f*lod1Distance };  // distance for LOD1, LOD2, Impostors
+    public static boolean   lodScreenSpace = true;    // choose LOD level from the projected model size instead of lodDistances
+    public static float[]   lodPixelSizes = { 160f, 80f, 40f };    // projected model radius in pixels below which to use LOD1, LOD2, Impostors
+    public static boolean   lodBudget = false;        // scale the LOD distances per type to fit lodTriangleBudget
+    public static int       lodTriangleBudget = 2000000;    // scenery triangles per frame
+    public static boolean   lodBenchmark = false;     // fly the benchmark path with fixed distance and then screen space LOD, log the scenery triangles per frame for each
 
     public static boolean   loadAtlasFromFile = (Gdx.app.getType() != Desktop);     // only on desktop can we generate atlas on the fly
     public static boolean   decalsDebug = false;       // highlight decals with random background colour
@@ -31,18 +36,49 @@ public class Settings {
     public static int       inverseShadowBias = 250;    // 1.0f/bias
     public static float     shadowViewportSize = 600f;
     static public boolean   showLightSettings = false;
+    static public boolean   shadowCasters = true;     // render a separate set of scenery instances, culled against the light frustum, in the shadow pass
+    static public int[]     shadowLodLevels = { 1, 2, 2, -1 };   // LOD level for shadow casters in the LOD0, LOD1, LOD2 and impostor distance bands (-1: no shadow)
 
     // Terrain
     static public float     terrainChunkSize = 2048;        // terrain size in world units
-    static public int       terrainChunkCacheSize = 100;
+    static public long      terrainCacheBudget = 64*1024*1024;     // max bytes of terrain chunk heights and vertices to keep in memory
+    static public float     terrainCacheLowWatermark = 0.75f;       // when over budget, evict chunks down to this fraction of the budget
+    static public float     terrainPrefetchTime = 3f;       // request terrain chunks where the camera will be in this many seconds, 0 to disable
+    static public float     terrainVelocitySmoothing = 2f;  // per second, lower values smooth the camera velocity for prefetching more
     static public boolean   debugTerrainChunkAllocation = false;
+    static public boolean   asyncTerrainGeneration = (Gdx.app.getType() == Desktop);  // generate terrain chunks on worker threads (not supported on web)
+    static public int       terrainWorkerThreads = 2;
+    static public float     terrainUploadBudget = 2f;       // max time in ms per frame to spend on uploading terrain chunk meshes
+    static public boolean   terrainLod = true;              // reduce the terrain mesh resolution with distance
+    static public float     terrainLodDistance = 512f;      // distance beyond which the first terrain LOD level is used, doubles per level
+    static public boolean   parallelTerrainMeshBuilder = (Gdx.app.getType() == Desktop);    // build the rows of a terrain mesh on multiple cores (not supported on web)
+    static public int       heightTileCacheSize = 64;       // max number of cached height tiles for height queries (e.g. scenery placement)
 
 
     static public boolean   debugSceneryChunkAllocation = false;
-    static public int       sceneryChunkCacheSize = 20000;
+    static public long      sceneryCacheBudget = 32*1024*1024;     // max bytes of scenery instance data to keep in memory
+    static public float     sceneryCacheLowWatermark = 0.75f;       // when over budget, evict chunks down to this fraction of the budget
     static public float     scenerySeparationDistance = 25f;
+    static public boolean   sceneryPoissonPatterns = true;     // assemble chunks from precomputed Poisson pattern pieces that match the neighbouring chunks instead of running Bridson's algorithm per chunk
+    static public int       sceneryPatternColours = 4;         // nr of variants per corner and edge piece
+    static public boolean   sceneryFrontToBack = true;     // order visible scenery chunks per LOD level front to back (in coarse distance buckets)
+    static public int       sceneryDistanceBuckets = 8;    // distance buckets per LOD level for front to back ordering
+    static public long      worldSeed = 1234L;                 // seed for the scenery placement
+    static public float     sceneryPregenerateSize = 8960f;    // size in world units of the square of scenery to generate at start up
+    static public boolean   asyncSceneryGeneration = (Gdx.app.getType() == Desktop);  // generate scenery chunks on worker threads (not supported on web)
+    static public float     sceneryGenerationBudget = 2f;       // max time in ms per frame to spend on finishing new scenery chunks
+    static public boolean   sceneryDiskCache = (Gdx.app.getType() == Desktop);  // keep generated scenery chunks in files between runs (not supported on web)
+    static public String    sceneryDiskCacheFolder = "cache/scenery";         // local folder for the scenery disk cache
 
     static public boolean   skipChecksWhenCameraStill = true;       // don't recalculate when camera doesn't move, set to false when tuning for performance
+    static public boolean   parallelInstanceCulling = (Gdx.app.getType() == Desktop);     // classify nearby scenery instances on multiple cores (not supported on web)
+    static public int       instanceCullingThreads = Runtime.getRuntime().availableProcessors();
+    static public float     cameraMoveEpsilon = 0.01f;      // camera moves smaller than this (world units) don't count as a change
+    static public float     cameraTurnEpsilon = 0.0001f;    // changes in camera direction smaller than this don't count as a change
+    static public boolean   occlusionCulling = true;        // skip scenery chunks hidden behind the terrain, tested against a CPU rasterized depth buffer
+    static public int       occlusionBufferWidth = 256;     // resolution of the occlusion depth buffer
+    static public int       occlusionBufferHeight = 128;
+    static public boolean   occlusionBenchmark = false;     // fly a fixed camera path and log how many chunks and instances occlusion culling removed
 
 
     static public float     cameraFOV = 70f;
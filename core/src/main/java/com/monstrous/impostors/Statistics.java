@@ -6,6 +6,14 @@ public class Statistics {
     public String[] typeNames;
     public int[][] instanceCount;
     public int[][] vertexCount;
+    public int[][] triangleCount;
+    public int[][] predictedInstanceCount;     // from the LOD distances, see LodBudgetAllocator
+    public int shadowCasters;           // scenery instances in the shadow pass
+    public int occludedChunks;          // scenery chunks hidden behind the terrain in the last update
+    public int occludedInstances;
+    public int terrainChunks;           // terrain chunks rendered
+    public int terrainTriangles;        // triangles of the rendered terrain chunks
+    public int[] uploadMask;            // per type: bit per LOD level of which the instance buffer was uploaded this frame
 
     public Statistics(int numTypes, int lodLevels) {
         this.numTypes = numTypes;
@@ -13,6 +21,9 @@ public class Statistics {
         typeNames = new String[numTypes];
         instanceCount = new int[numTypes][lodLevels+1];         // +1 for impostors
         vertexCount = new int[numTypes][lodLevels+1];
+        triangleCount = new int[numTypes][lodLevels+1];
+        predictedInstanceCount = new int[numTypes][lodLevels+1];
+        uploadMask = new int[numTypes];
     }
 
     public void setName(int type, String name ){
@@ -32,6 +43,23 @@ public class Statistics {
     }
 
 
+    public void setTriangleCount(int type, int lod, int count){
+        triangleCount[type][lod] = count;
+    }
+
+    public int getTriangleCount(int type, int lod){
+        return triangleCount[type][lod];
+    }
+
+    // total nr of triangles of all instances
+    public long getTotalTriangles(){
+        long total = 0;
+        for(int type = 0; type < numTypes; type++)
+            for(int lod = 0; lod < lodLevels+1; lod++)
+                total += (long)instanceCount[type][lod] * triangleCount[type][lod];
+        return total;
+    }
+
     public void setInstanceCount(int type, int lod, int count){
         instanceCount[type][lod] = count;
     }
@@ -40,5 +68,30 @@ public class Statistics {
         return instanceCount[type][lod];
     }
 
+    public void setPredictedInstanceCount(int type, int lod, int count){
+        predictedInstanceCount[type][lod] = count;
+    }
+
+    public int getPredictedInstanceCount(int type, int lod){
+        return predictedInstanceCount[type][lod];
+    }
+
+    // predicted nr of triangles of all instances
+    public long getPredictedTriangles(){
+        long total = 0;
+        for(int type = 0; type < numTypes; type++)
+            for(int lod = 0; lod < lodLevels+1; lod++)
+                total += (long)predictedInstanceCount[type][lod] * triangleCount[type][lod];
+        return total;
+    }
+
+    public void setUploadMask(int type, int mask){
+        uploadMask[type] = mask;
+    }
+
+    public boolean isUploaded(int type, int lod){
+        return (uploadMask[type] & (1 << lod)) != 0;
+    }
+
 
 }
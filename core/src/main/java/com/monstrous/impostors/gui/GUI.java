@@ -16,7 +16,14 @@ public class GUI {
     private Label fpsLabel;
     private Label[] typeLabels;
     private Label[] instancesLabels;
+    private Label[] predictedLabels;
+    private Label[] uploadsLabels;
     private Label totalInstancesLabel;
+    private Label trianglesLabel;
+    private Label predictedTrianglesLabel;
+    private Label occludedLabel;
+    private Label shadowCastersLabel;
+    private Label terrainLabel;
     private GameScreen screen;
     private FogSettingsWindow fogWindow;
     private LightSettingsWindow lightWindow;
@@ -54,6 +61,31 @@ public class GUI {
         screenTable.add(totalInstancesLabel).left();
         screenTable.row();
 
+        screenTable.add(new Label("Triangles: ", skin, labelType)).left().pad(5);
+        trianglesLabel = new Label("", skin, labelType);
+        screenTable.add(trianglesLabel).left();
+        screenTable.row();
+
+        screenTable.add(new Label("Predicted: ", skin, labelType)).left().pad(5);
+        predictedTrianglesLabel = new Label("", skin, labelType);
+        screenTable.add(predictedTrianglesLabel).left();
+        screenTable.row();
+
+        screenTable.add(new Label("Occluded: ", skin, labelType)).left().pad(5);
+        occludedLabel = new Label("", skin, labelType);
+        screenTable.add(occludedLabel).left();
+        screenTable.row();
+
+        screenTable.add(new Label("Shadow casters: ", skin, labelType)).left().pad(5);
+        shadowCastersLabel = new Label("", skin, labelType);
+        screenTable.add(shadowCastersLabel).left();
+        screenTable.row();
+
+        screenTable.add(new Label("Terrain: ", skin, labelType)).left().pad(5);
+        terrainLabel = new Label("", skin, labelType);
+        screenTable.add(terrainLabel).left();
+        screenTable.row();
+
 
         // column headers
         screenTable.add(new Label("", skin, labelType)).left().pad(5);
@@ -76,6 +108,7 @@ public class GUI {
 
         typeLabels = new Label[screen.scenery.numTypes];
         instancesLabels = new Label[screen.scenery.numTypes * (Settings.LOD_LEVELS + 1)];
+        predictedLabels = new Label[screen.scenery.numTypes * (Settings.LOD_LEVELS + 1)];
         for(int type = 0; type < screen.scenery.numTypes; type++) {
             typeLabels[type] = new Label(screen.scenery.statistics.getName(type), skin, labelType);
             screenTable.add(typeLabels[type]).left().pad(5);
@@ -85,8 +118,27 @@ public class GUI {
                 screenTable.add(instancesLabels[type*(Settings.LOD_LEVELS+1)+lod]).left();
             }
             screenTable.row();
+
+            // instance counts predicted from the LOD distances (see LodBudgetAllocator)
+            screenTable.add(new Label("", skin, labelType)).left().pad(5);
+            screenTable.add(new Label("predicted: ", skin, labelType)).left().pad(5);
+            for (int lod = 0; lod < Settings.LOD_LEVELS + 1; lod++) {
+                predictedLabels[type*(Settings.LOD_LEVELS+1)+lod] = new Label("", skin, labelType);
+                screenTable.add(predictedLabels[type*(Settings.LOD_LEVELS+1)+lod]).left();
+            }
+            screenTable.row();
         }
 
+        // number of types of which the instance buffer was uploaded this frame, per LOD level
+        uploadsLabels = new Label[Settings.LOD_LEVELS + 1];
+        screenTable.add(new Label("", skin, labelType)).left().pad(5);
+        screenTable.add(new Label("uploads: ", skin, labelType)).left().pad(5);
+        for (int lod = 0; lod < Settings.LOD_LEVELS + 1; lod++) {
+            uploadsLabels[lod] = new Label("", skin, labelType);
+            screenTable.add(uploadsLabels[lod]).left();
+        }
+        screenTable.row();
+
         screenTable.bottom().left();
         screenTable.pack();
 
@@ -99,11 +151,25 @@ public class GUI {
         for(int type = 0; type < screen.scenery.numTypes; type++) {
             for (int lod = 0; lod < Settings.LOD_LEVELS + 1; lod++) {
                 //vertsLabels[lod].setText(screen.scenery.statistics.getVertexCount(type, lod));
-                instancesLabels[index++].setText(screen.scenery.statistics.getInstanceCount(type, lod));
+                instancesLabels[index].setText(screen.scenery.statistics.getInstanceCount(type, lod));
+                predictedLabels[index++].setText(screen.scenery.statistics.getPredictedInstanceCount(type, lod));
                 total += screen.scenery.statistics.getInstanceCount(type, lod);
             }
         }
+        for (int lod = 0; lod < Settings.LOD_LEVELS + 1; lod++) {
+            int uploads = 0;
+            for(int type = 0; type < screen.scenery.numTypes; type++)
+                if(screen.scenery.statistics.isUploaded(type, lod))
+                    uploads++;
+            uploadsLabels[lod].setText(uploads);
+        }
         totalInstancesLabel.setText(total);
+        trianglesLabel.setText(String.valueOf(screen.scenery.statistics.getTotalTriangles()));
+        String budget = Settings.lodBudget ? " (budget "+Settings.lodTriangleBudget+")" : "";
+        predictedTrianglesLabel.setText(screen.scenery.statistics.getPredictedTriangles() + budget);
+        occludedLabel.setText(screen.scenery.statistics.occludedChunks + " chunks, " + screen.scenery.statistics.occludedInstances + " instances");
+        shadowCastersLabel.setText(screen.scenery.statistics.shadowCasters);
+        terrainLabel.setText(screen.scenery.statistics.terrainChunks + " chunks, " + screen.scenery.statistics.terrainTriangles + " triangles");
         fpsLabel.setText( Gdx.graphics.getFramesPerSecond());
     }
 
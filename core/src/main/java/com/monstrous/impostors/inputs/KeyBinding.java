@@ -16,6 +16,9 @@ public enum KeyBinding {
     CYCLE_LOD ("Cycle LOD instances", Keys.TAB),
     INCREASE_LOD_DISTANCE ("Increase LOD distance", Keys.Z),
     DECREASE_LOD_DISTANCE ("Decrease LOD distance", Keys.X),
+    SCREEN_SPACE_LOD ("Toggle screen space LOD", Keys.G),
+    LOD_BUDGET ("Toggle LOD triangle budget", Keys.B),
+    OCCLUSION_CULLING ("Toggle occlusion culling", Keys.O),
     TOGGLE_FULLSCREEN ("Toggle full screen", Keys.F),
     TERRAIN_OVERLAY ("Toggle terrain chunk overlay", Keys.T),
     SCENERY_OVERLAY ("Toggle scenery chunk overlay", Keys.P),
@@ -0,0 +1,243 @@
+package com.monstrous.impostors.scenery;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.*;
+import com.badlogic.gdx.graphics.g2d.SpriteBatch;
+import com.badlogic.gdx.graphics.g3d.Model;
+import com.badlogic.gdx.graphics.g3d.ModelInstance;
+import com.badlogic.gdx.graphics.glutils.FrameBuffer;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.BufferUtils;
+import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.ScreenUtils;
+import com.monstrous.impostors.Impostor;
+import com.monstrous.impostors.Settings;
+import com.monstrous.impostors.shaders.InstancedDecalShaderProvider;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+
+// Renders the impostors of all scenery types with one instanced draw call.
+//
+// The impostor atlases of the types are copied into square slices of one combined texture, arranged in a grid of
+// columns x rows (as square as possible) with type 0 at the bottom left, so the texture stays within GL_MAX_TEXTURE_SIZE.
+// If even that is too large the slices are scaled down to fit.
+// The impostor instances of all types are packed into one instance stream of (x, y, z, rotY, type) per instance.
+// The shader takes the UV step and the quad size per type from uniform arrays indexed by the type.
+//
+// ImpostorLayoutCheck in the lwjgl3 module checks pack() and the slice layout against GL_MAX_TEXTURE_SIZE.
+
+
+public class ImpostorStore implements Disposable {
+
+    public static final int FLOATS_PER_INSTANCE = 5;      // x, y, z, rotY, type
+
+    private final Array<LodModel> lodModels;
+    private final FrameBuffer atlasBuffer;      // owns the combined atlas texture
+    private final int columns, rows;            // grid of atlas slices
+    private final Model model;
+    private final ModelInstance instance;
+    private float[] instances;                  // packed instance data of all types
+    private float[] uploaded;                   // instance data in the instance buffer
+    private int numInstances;
+    private int uploadedCount = -1;
+    private int capacity;
+    private int highWaterMark;
+    private boolean wasUploaded;
+    private FloatBuffer instanceData;
+
+    public ImpostorStore(Array<LodModel> lodModels, int initialCapacity) {
+        this.lodModels = lodModels;
+        int numTypes = lodModels.size;
+
+        columns = getColumns(numTypes);
+        rows = getRows(numTypes);
+        atlasBuffer = combineAtlases(lodModels, columns, rows);
+        Texture atlas = atlasBuffer.getColorBufferTexture();
+
+        float[] uvSteps = new float[2*numTypes];
+        float[] sizes = new float[2*numTypes];
+        for(int type = 0; type < numTypes; type++) {
+            LodModel lodModel = lodModels.get(type);
+            uvSteps[2*type] = lodModel.getImpostorUVStep().x;
+            uvSteps[2*type+1] = lodModel.getImpostorUVStep().y;
+            sizes[2*type] = lodModel.getImpostorSize().x;
+            sizes[2*type+1] = lodModel.getImpostorSize().y;
+        }
+
+        model = Impostor.createUnitImpostorModel(atlas);
+        instance = new ModelInstance(model);
+        // use user data to pass info on the texture atlas to the shader
+        instance.userData = new InstancedDecalShaderProvider.ImpostorTypes(numTypes, columns, rows, uvSteps, sizes);
+
+        capacity = initialCapacity;
+        makeInstanced(capacity);
+        instances = new float[initialCapacity * FLOATS_PER_INSTANCE];
+        uploaded = new float[initialCapacity * FLOATS_PER_INSTANCE];
+        instanceData = BufferUtils.newFloatBuffer(initialCapacity * FLOATS_PER_INSTANCE);
+    }
+
+    // nr of columns of atlas slices, the grid is as square as possible
+    public static int getColumns(int numTypes) {
+        return (int)Math.ceil(Math.sqrt(numTypes));
+    }
+
+    public static int getRows(int numTypes) {
+        int columns = getColumns(numTypes);
+        return (numTypes + columns - 1) / columns;
+    }
+
+    // Slice size in texels for the given atlas size, so that the grid of slices fits in maxTextureSize in both directions.
+    public static int getSliceSize(int atlasSize, int numTypes, int maxTextureSize) {
+        int cells = Math.max(getColumns(numTypes), getRows(numTypes));
+        return Math.min(atlasSize, maxTextureSize / cells);
+    }
+
+    // Copy the atlas of each type into its own slice of one texture.
+    // Each atlas is scaled to a square slice of the width of the widest atlas, or smaller if needed to fit the maximum texture size.
+    private static FrameBuffer combineAtlases(Array<LodModel> lodModels, int columns, int rows) {
+        int atlasSize = 0;
+        for(LodModel lodModel : lodModels)
+            atlasSize = Math.max(atlasSize, lodModel.getImpostorTexture().getWidth());
+
+        IntBuffer buffer = BufferUtils.newIntBuffer(16);
+        Gdx.gl.glGetIntegerv(GL20.GL_MAX_TEXTURE_SIZE, buffer);
+        int maxTextureSize = buffer.get(0);
+        int size = getSliceSize(atlasSize, lodModels.size, maxTextureSize);
+        if(size < atlasSize)
+            Gdx.app.error("ImpostorStore", "impostor atlases scaled from " + atlasSize + " to " + size + " to fit max texture size " + maxTextureSize);
+
+        FrameBuffer fbo = new FrameBuffer(Pixmap.Format.RGBA8888, size * columns, size * rows, false);
+        SpriteBatch batch = new SpriteBatch();
+        batch.getProjectionMatrix().setToOrtho2D(0, 0, size * columns, size * rows);
+        batch.disableBlending();        // copy alpha as is
+
+        fbo.begin();
+        ScreenUtils.clear(Color.CLEAR);
+        batch.begin();
+        for(int type = 0; type < lodModels.size; type++) {
+            Texture texture = lodModels.get(type).getImpostorTexture();
+            // flip vertically so that texture coordinates (u, v) of the atlas map to ((column + u) / columns, (row + v) / rows)
+            batch.draw(texture, (type % columns) * size, (type / columns) * size, size, size, 0, 0, texture.getWidth(), texture.getHeight(), false, true);
+        }
+        batch.end();
+        fbo.end();
+        batch.dispose();
+
+        Texture atlas = fbo.getColorBufferTexture();
+        atlas.bind();
+        Gdx.gl.glGenerateMipmap(GL20.GL_TEXTURE_2D);
+        atlas.setFilter(Texture.TextureFilter.MipMapLinearLinear, Texture.TextureFilter.Linear);
+        Gdx.app.log("ImpostorStore", "combined atlas " + (size * columns) + " x " + (size * rows) + " (" + columns + " x " + rows + " slices)");
+        return fbo;
+    }
+
+    private void makeInstanced(int maxInstances) {
+        Mesh mesh = instance.nodes.first().parts.first().meshPart.mesh;
+        mesh.enableInstancedRendering(false, maxInstances,
+            new VertexAttribute(VertexAttributes.Usage.Generic, 4, "i_offset", 0),
+            new VertexAttribute(VertexAttributes.Usage.Generic, 1, "i_type", 1));
+    }
+
+    // Append count instances of packed (x, y, z, rotY) data of the given type to the combined stream at dstOffset (in floats).
+    // Returns the offset after the last written instance. dst must be large enough.
+    public static int pack(float[] src, int count, int type, float[] dst, int dstOffset) {
+        int s = 0;
+        int d = dstOffset;
+        for(int i = 0; i < count; i++) {
+            dst[d]   = src[s];
+            dst[d+1] = src[s+1];
+            dst[d+2] = src[s+2];
+            dst[d+3] = src[s+3];
+            dst[d+4] = type;
+            s += SceneryChunk.FLOATS_PER_INSTANCE;
+            d += FLOATS_PER_INSTANCE;
+        }
+        return d;
+    }
+
+    // Collect the impostor instances of all types from the LOD models (after their endInstances()) and upload them
+    // if they differ from the previous upload.
+    public void update() {
+        int level = Settings.LOD_LEVELS;
+        int total = 0;
+        for(LodModel lodModel : lodModels)
+            total += lodModel.getInstanceCount(level);
+        if(total * FLOATS_PER_INSTANCE > instances.length)
+            instances = new float[Math.max(total * FLOATS_PER_INSTANCE, 2 * instances.length)];
+
+        int offset = 0;
+        for(int type = 0; type < lodModels.size; type++) {
+            LodModel lodModel = lodModels.get(type);
+            offset = pack(lodModel.getInstanceData(level), lodModel.getInstanceCount(level), type, instances, offset);
+        }
+        numInstances = total;
+        highWaterMark = Math.max(highWaterMark, total);
+
+        wasUploaded = false;
+        if(total > capacity)
+            grow(total);
+        else if(total == uploadedCount && sameInstances(instances, uploaded, total * FLOATS_PER_INSTANCE))
+            return;
+
+        Mesh mesh = instance.nodes.first().parts.first().meshPart.mesh;
+        instanceData.clear();
+        instanceData.put(instances, 0, total * FLOATS_PER_INSTANCE);
+        instanceData.limit(total * FLOATS_PER_INSTANCE);
+        instanceData.position(0);
+        mesh.setInstanceData(instanceData);
+
+        // keep the uploaded data to compare against
+        float[] previous = uploaded;
+        uploaded = instances;
+        uploadedCount = total;
+        instances = previous;
+        wasUploaded = true;
+    }
+
+    private static boolean sameInstances(float[] a, float[] b, int length) {
+        for(int i = 0; i < length; i++)
+            if(a[i] != b[i])
+                return false;
+        return true;
+    }
+
+    private void grow(int count) {
+        int newCapacity = capacity;
+        while(newCapacity < count)
+            newCapacity *= 2;
+        Gdx.app.log("instance buffer", "impostors capacity " + capacity + " -> " + newCapacity);
+        Mesh mesh = instance.nodes.first().parts.first().meshPart.mesh;
+        mesh.disableInstancedRendering();
+        makeInstanced(newCapacity);
+        capacity = newCapacity;
+        instanceData = BufferUtils.newFloatBuffer(newCapacity * FLOATS_PER_INSTANCE);
+    }
+
+    // the impostors of all types, to be rendered with the instanced decal shader
+    public ModelInstance getInstance() {
+        return instance;
+    }
+
+    // nr of impostors of all types
+    public int getInstanceCount() {
+        return numInstances;
+    }
+
+    // true if the instance buffer was uploaded in the last update()
+    public boolean wasUploaded() {
+        return wasUploaded;
+    }
+
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    @Override
+    public void dispose() {
+        Gdx.app.log("instance buffer", "impostors high water mark: " + highWaterMark + " capacity: " + capacity);
+        model.dispose();
+        atlasBuffer.dispose();
+    }
+}
@@ -0,0 +1,140 @@
+package com.monstrous.impostors.scenery;
+
+import com.badlogic.gdx.utils.Array;
+import com.monstrous.impostors.Settings;
+import com.monstrous.impostors.Statistics;
+
+
+// Predicts the nr of instances and triangles per type and LOD level from the LOD distances and, if Settings.lodBudget is set,
+// scales the LOD distances of each type so that the predicted triangle count fits Settings.lodTriangleBudget.
+//
+// Instances are assumed to be spread evenly over the ground, so the nr of visible instances of a type closer than distance d
+// is c * d^2, where c follows from the visible instance count of the previous update over the full scenery range R.
+// For a type with distances d_l = s * k_l (k_l: the distances from the fixed or screen space scheme, s: scale factor)
+// the predicted triangle count is A * s^2 + B, with
+//      A = c * ( sum_l T_l * (k_l^2 - k_(l-1)^2) - T_impostor * k_last^2 )
+//      B = c * T_impostor * R^2
+// Maximizing sum(log s) over the types within the budget gives s^2 = C / (n * A) with C = budget - sum(B),
+// i.e. each type gets an equal share of the triangles above the impostor baseline, and types with cheap LOD models
+// keep their detailed levels further out than types with expensive ones.
+
+
+class LodBudgetAllocator {
+
+    private static final float MIN_SCALE = 0.05f;
+    private static final float HYSTERESIS = 0.02f;      // ignore smaller relative changes of a scale factor to avoid chunk rebinning every frame
+
+    private final int numTypes;
+    private final int levels;
+    private final float range;              // scenery viewing range in world units
+    private final float[] density;          // per type: visible instances per squared distance
+    private final float[] costA;            // per type: triangles per squared scale factor
+    private final float[] costB;            // per type: triangles independent of the scale factor
+    private final float[] scale;            // per type: applied scale factor
+    private final float[] maxScale;
+    private final boolean[] clamped;
+
+    public LodBudgetAllocator(int numTypes) {
+        this.numTypes = numTypes;
+        levels = Settings.LOD_LEVELS;
+        range = SceneryChunks.RANGE * SceneryChunk.CHUNK_SIZE;
+        density = new float[numTypes];
+        costA = new float[numTypes];
+        costB = new float[numTypes];
+        scale = new float[numTypes];
+        maxScale = new float[numTypes];
+        clamped = new boolean[numTypes];
+        for(int type = 0; type < numTypes; type++)
+            scale[type] = 1f;
+    }
+
+    // To be called after LodModel.updateLodDistances() and before the instances are classified.
+    // Uses the instance counts of the previous update from the statistics and stores the predictions in the statistics.
+    public void update(Array<LodModel> lodModels, Statistics statistics) {
+        float r2 = range * range;
+        for(int type = 0; type < numTypes; type++) {
+            int total = 0;
+            for(int lod = 0; lod <= levels; lod++)
+                total += statistics.getInstanceCount(type, lod);
+            density[type] = total / r2;
+        }
+
+        if(Settings.lodBudget)
+            allocate(lodModels, statistics);
+        else {
+            for(int type = 0; type < numTypes; type++)
+                scale[type] = 1f;
+        }
+
+        predict(lodModels, statistics);
+    }
+
+    private void allocate(Array<LodModel> lodModels, Statistics statistics) {
+        float available = Settings.lodTriangleBudget;
+        int free = 0;
+        for(int type = 0; type < numTypes; type++) {
+            float[] k = lodModels.get(type).getLodDistances();
+            float detail = 0;
+            float previous = 0;
+            for(int lod = 0; lod < levels; lod++) {
+                detail += statistics.getTriangleCount(type, lod) * (k[lod]*k[lod] - previous*previous);
+                previous = k[lod];
+            }
+            int impostorTriangles = statistics.getTriangleCount(type, levels);
+            costA[type] = density[type] * (detail - impostorTriangles * previous * previous);
+            costB[type] = density[type] * impostorTriangles * range * range;
+            maxScale[type] = range / previous;
+            available -= costB[type];
+
+            // types without visible instances or without a cost for detail keep their distances
+            clamped[type] = costA[type] <= 0;
+            if(!clamped[type])
+                free++;
+        }
+
+        // Equal share of the remaining budget per type. A type that would get more than its maximum scale factor
+        // is clamped and its unused share goes to the other types.
+        float[] newScale = new float[numTypes];
+        for(int type = 0; type < numTypes; type++)
+            newScale[type] = clamped[type] ? Math.min(1f, maxScale[type]) : 0;
+        boolean changed = true;
+        while(changed && free > 0) {
+            changed = false;
+            float share = Math.max(0, available) / free;
+            for(int type = 0; type < numTypes; type++) {
+                if(clamped[type])
+                    continue;
+                float s = (float)Math.sqrt(share / costA[type]);
+                if(s >= maxScale[type]) {
+                    newScale[type] = maxScale[type];
+                    clamped[type] = true;
+                    available -= costA[type] * maxScale[type] * maxScale[type];
+                    free--;
+                    changed = true;
+                }
+                else
+                    newScale[type] = Math.max(MIN_SCALE, s);
+            }
+        }
+
+        for(int type = 0; type < numTypes; type++) {
+            if(Math.abs(newScale[type] - scale[type]) > HYSTERESIS * scale[type])
+                scale[type] = newScale[type];
+            lodModels.get(type).scaleLodDistances(scale[type]);
+        }
+    }
+
+    // instances per LOD level from the area of the distance rings
+    private void predict(Array<LodModel> lodModels, Statistics statistics) {
+        for(int type = 0; type < numTypes; type++) {
+            float[] d = lodModels.get(type).getLodDistances();
+            float previous = 0;
+            for(int lod = 0; lod < levels; lod++) {
+                float distance = Math.min(d[lod], range);
+                statistics.setPredictedInstanceCount(type, lod, Math.round(density[type] * (distance*distance - previous*previous)));
+                previous = Math.max(previous, distance);
+            }
+            statistics.setPredictedInstanceCount(type, levels, Math.round(density[type] * (range*range - previous*previous)));
+        }
+    }
+}
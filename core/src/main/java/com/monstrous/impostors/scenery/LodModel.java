@@ -6,19 +6,18 @@ import com.badlogic.gdx.graphics.g2d.TextureRegion;
 import com.badlogic.gdx.graphics.g3d.Model;
 import com.badlogic.gdx.graphics.g3d.ModelInstance;
 import com.badlogic.gdx.graphics.g3d.model.Node;
-import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.graphics.g3d.model.NodePart;
+import com.badlogic.gdx.math.MathUtils;
 import com.badlogic.gdx.math.Vector2;
 import com.badlogic.gdx.math.Vector3;
-import com.badlogic.gdx.math.Vector4;
 import com.badlogic.gdx.math.collision.BoundingBox;
 import com.badlogic.gdx.utils.Array;
 import com.badlogic.gdx.utils.BufferUtils;
 import com.badlogic.gdx.utils.Disposable;
-import com.badlogic.gdx.utils.GdxRuntimeException;
+import com.badlogic.gdx.utils.ObjectMap;
 import com.monstrous.impostors.Impostor;
 import com.monstrous.impostors.ImpostorBuilder;
 import com.monstrous.impostors.Settings;
-import com.monstrous.impostors.shaders.InstancedDecalShaderProvider;
 import net.mgsx.gltf.scene3d.scene.Scene;
 import net.mgsx.gltf.scene3d.scene.SceneAsset;
 
@@ -28,33 +27,155 @@ public class LodModel implements Disposable {
 
     private String nodeName;
     private int lodLevels;
-    private int maxModelInstances;
-    private int maxImpostorInstances;
+    private int initialModelInstances;
 
     private final Scene[] lodScenes;                // array of Scenes at different level of detail
+    private final Array<Array<Mesh>> lodMeshes;     // per LOD level: distinct meshes of all node parts (normally one merged mesh), each with an instance buffer
+    private final Scene[] shadowScenes;             // per LOD level: copy with its own meshes for the shadow caster set, null if not used
+    private final Array<Array<Mesh>> shadowMeshes;  // per LOD level: the copied meshes
+    private final Array<Mesh> ownedMeshes;          // merged and copied meshes, to dispose
+    private InstanceBuffer[] shadowBuffers;         // per LOD level: the shadow casters, null if not used
     private Model impostorModel;
     private ModelInstance impostorInstance;
     private Vector3 modelCentre;
+    private BoundingBox modelBoundingBox;
     private float radius;
+    private float[] lodDistances;       // per LOD level: distance from which to use the next level, see updateLodDistances()
     private ImpostorBuilder builder;
     private Texture impostorTexture;
     private Vector2 regionSize;
-    private Array<Vector4>[] positions;
+    private Vector2 impostorUVStep;
+    private Vector2 impostorSize;
+    private final InstanceBuffer[] buffers;     // per LOD level (and impostors, which are not uploaded here, see ImpostorStore)
+    private int uploadMask;             // bit per LOD level that was uploaded in the last endInstances()
     private TextureRegion atlasRegion;
     private TextureRegion textureRegion0;
     private float elevationStep;
     private int elevations;
     private FloatBuffer instanceData;   // temp buffer to transfer instance data
 
+    private static final int SHRINK_WINDOW = 300;       // nr of instance updates to look back before shrinking a buffer
+
+    // Instances (packed x, y, z, rotY) for a set of meshes, e.g. a LOD level or its shadow casters, and the mesh instance buffer
+    // they are uploaded to. Only uploads when the instances changed since the previous upload. The buffer grows when the
+    // instances don't fit and shrinks again when it was used for less than a quarter during the last SHRINK_WINDOW uploads.
+    // Capacities are powers of two times the initial capacity.
+    private class InstanceBuffer {
+        final String name;
+        final Array<Mesh> meshes;       // null if the instances are not uploaded (impostors)
+        float[] data;
+        int count;
+        float[] uploaded;               // instance data currently in the instance buffer
+        int uploadedCount = -1;         // -1 if nothing was uploaded yet
+        int capacity;                   // capacity of the mesh instance buffer (in instances)
+        int highWaterMark;              // highest instance count so far
+        int windowMax;                  // highest instance count in the current shrink window
+        int windowUploads;              // nr of end() calls in the current shrink window
+
+        InstanceBuffer(String name, Array<Mesh> meshes, int initialCapacity) {
+            this.name = name;
+            this.meshes = meshes;
+            capacity = initialCapacity;
+            data = new float[initialCapacity * SceneryChunk.FLOATS_PER_INSTANCE];
+            uploaded = new float[initialCapacity * SceneryChunk.FLOATS_PER_INSTANCE];
+            if(meshes != null)
+                makeInstanced(meshes, initialCapacity);
+        }
+
+        // make room for extra instances
+        float[] ensureCapacity(int extra) {
+            int required = (count + extra) * SceneryChunk.FLOATS_PER_INSTANCE;
+            if(required > data.length) {
+                float[] larger = new float[Math.max(required, 2 * data.length)];
+                System.arraycopy(data, 0, larger, 0, count * SceneryChunk.FLOATS_PER_INSTANCE);
+                data = larger;
+            }
+            return data;
+        }
+
+        void add(float[] instances, int n) {
+            float[] d = ensureCapacity(n);
+            System.arraycopy(instances, 0, d, count * SceneryChunk.FLOATS_PER_INSTANCE, n * SceneryChunk.FLOATS_PER_INSTANCE);
+            count += n;
+        }
+
+        void add(float x, float y, float z, float rotY) {
+            float[] d = ensureCapacity(1);
+            int offset = count * SceneryChunk.FLOATS_PER_INSTANCE;
+            d[offset] = x;
+            d[offset+1] = y;
+            d[offset+2] = z;
+            d[offset+3] = rotY;
+            count++;
+        }
+
+        // resize the buffer if needed and upload the instances if they changed, returns true if they were uploaded
+        boolean end() {
+            highWaterMark = Math.max(highWaterMark, count);
+            windowMax = Math.max(windowMax, count);
+            windowUploads++;
+            resizeIfNeeded();
+            if(windowUploads >= SHRINK_WINDOW) {
+                windowUploads = 0;
+                windowMax = 0;
+            }
+
+            if(count == uploadedCount && sameInstances(data, uploaded, count * SceneryChunk.FLOATS_PER_INSTANCE))
+                return false;
+            updateInstanced(meshes, data, count);
+            // keep the uploaded data to compare against, the previous array is refilled in the next frame
+            float[] previous = uploaded;
+            uploaded = data;
+            uploadedCount = count;
+            data = previous;
+            return true;
+        }
+
+        private void resizeIfNeeded() {
+            int newCapacity = capacity;
+            if(count > newCapacity) {
+                while(newCapacity < count)
+                    newCapacity *= 2;
+            }
+            else if(windowUploads >= SHRINK_WINDOW) {
+                while(newCapacity > initialModelInstances && 4 * windowMax < newCapacity)
+                    newCapacity /= 2;
+            }
+            if(newCapacity == capacity)
+                return;
+
+            Gdx.app.log("instance buffer", nodeName + " " + name + " capacity " + capacity + " -> " + newCapacity + " (high water mark: " + highWaterMark + ")");
+            for(Mesh mesh : meshes)
+                mesh.disableInstancedRendering();
+            makeInstanced(meshes, newCapacity);
+            capacity = newCapacity;
+            uploadedCount = -1;     // new buffer is empty
+
+            if(instanceData.capacity() < newCapacity * SceneryChunk.FLOATS_PER_INSTANCE)
+                instanceData = BufferUtils.newFloatBuffer(newCapacity * SceneryChunk.FLOATS_PER_INSTANCE);
+        }
+    }
+
     // nodeNameRoot is "tree" if the LOD nodes are called "tree.LOD0", "tree.LOD1", "tree.LOD2"
     //
-    public LodModel(SceneAsset sceneAsset, String nodeNameRoot, int lodLevels, int maxModelInstances, int maxImpostorInstances) {
+    // initialModelInstances is the initial instance buffer capacity per LOD level,
+    // the buffers grow when more instances are needed and shrink again after a period of low use.
+    // Impostors of all types are rendered together, see ImpostorStore.
+    //
+    public LodModel(SceneAsset sceneAsset, String nodeNameRoot, int lodLevels, int initialModelInstances) {
         this.nodeName = nodeNameRoot;
         this.lodLevels = lodLevels;
-        this.maxModelInstances = maxModelInstances;
-        this.maxImpostorInstances = maxImpostorInstances;
+        this.initialModelInstances = initialModelInstances;
+        buffers = new InstanceBuffer[lodLevels+1];
+        // Create offset FloatBuffer that will contain instance data to pass to shader: 4 floats per instance (x, y, z, rotY)
+        // the buffer grows with the largest instance buffer
+        instanceData = BufferUtils.newFloatBuffer(initialModelInstances * SceneryChunk.FLOATS_PER_INSTANCE);
 
         lodScenes = new Scene[lodLevels];
+        lodMeshes = new Array<>(lodLevels);
+        shadowScenes = Settings.shadowCasters ? new Scene[lodLevels] : null;
+        shadowMeshes = new Array<>(lodLevels);
+        ownedMeshes = new Array<>();
 
         for(int lod = 0; lod < lodLevels; lod++) {
 
@@ -73,21 +194,38 @@ public class LodModel implements Disposable {
             node.scale.set(1, 1, 1);
             node.rotation.idt();
             lodScenes[lod].modelInstance.calculateTransforms();
-            makeInstanced(lodScenes[lod].modelInstance, maxModelInstances);       // could make an estimate per LOD level here
+
+            // every part of the node and its child nodes is instanced, parts that share a mesh share its instance buffer
+            // the meshes of the parts are merged into one where possible, so that the level has one instance buffer
+            Array<Mesh> meshes = new Array<>();
+            collectMeshes(lodScenes[lod].modelInstance.nodes, meshes);
+            Mesh merged = mergeMeshes(lodScenes[lod].modelInstance.nodes, meshes);
+            if(merged != null) {
+                ownedMeshes.add(merged);
+                meshes.clear();
+                meshes.add(merged);
+            }
+            lodMeshes.add(meshes);
+            Gdx.app.log("LodModel", name + " meshes: " + meshes.size + (merged != null ? " (merged)" : ""));
+            buffers[lod] = new InstanceBuffer("LOD" + lod, meshes, initialModelInstances);
+
+            if(shadowScenes != null) {
+                shadowScenes[lod] = makeShadowScene(sceneAsset, name, ownedMeshes);
+                Array<Mesh> copies = new Array<>();
+                collectMeshes(shadowScenes[lod].modelInstance.nodes, copies);
+                shadowMeshes.add(copies);
+                if(shadowBuffers == null)
+                    shadowBuffers = new InstanceBuffer[lodLevels];
+                shadowBuffers[lod] = new InstanceBuffer("shadow LOD" + lod, copies, initialModelInstances);
+            }
         }
 
-        impostorInstance = makeImpostor();
-        // enable instancing for impostors
-        makeInstancedDecals(impostorInstance, maxImpostorInstances);
+        lodDistances = new float[lodLevels];
+        System.arraycopy(Settings.lodDistances, 0, lodDistances, 0, lodLevels);
 
-        positions = new Array[lodLevels+1];
-        for(int lod = 0; lod < lodLevels+1; lod++)
-            positions[lod] = new Array<>();
+        impostorInstance = makeImpostor();
 
-        // Create offset FloatBuffer that will contain instance data to pass to shader
-        // we are dimensioning it for the worst case, which means we probably waste a lot of memory here
-        int bufferSize = Math.max(maxModelInstances * 16, maxImpostorInstances * 4);
-        instanceData = BufferUtils.newFloatBuffer(bufferSize);   // 16 floats for the matrix, 4 floats per impostor
+        buffers[lodLevels] = new InstanceBuffer("impostors", null, 256);
     }
 
     // get (instanced) Scenes for the different LOD models.  If you have 3 LOD levels, this will return an array of 3 scenes.
@@ -95,81 +233,299 @@ public class LodModel implements Disposable {
         return lodScenes;
     }
 
-    // get the (instanced) model instance to uses as impostor.
-    public ModelInstance getImpostor() {
-        return impostorInstance;
+    // instanced Scenes of the shadow caster set per LOD level, null if Settings.shadowCasters was not set at construction
+    public Scene[] getShadowScenes() {
+        return shadowScenes;
     }
 
-    public int getVertexCount(int level ) {
-        Node node;
+    // impostor atlas: images of the model from different angles (columns) and elevations (rows)
+    public Texture getImpostorTexture() {
+        return impostorTexture;
+    }
 
-        if(level == lodLevels)
-            node = impostorInstance.nodes.first();
-        else
-            node = lodScenes[level].modelInstance.nodes.first();
-        return node.parts.first().meshPart.mesh.getNumVertices();
+    // size of one image in the impostor atlas in texture coordinates
+    public Vector2 getImpostorUVStep() {
+        return impostorUVStep;
     }
 
+    // world size (width, height) of the impostor quad
+    public Vector2 getImpostorSize() {
+        return impostorSize;
+    }
 
+    // bounding box of the LOD0 model relative to its origin
+    public BoundingBox getModelBounds() {
+        return modelBoundingBox;
+    }
 
-    public void beginInstances(){
-        for(int lod = 0; lod < lodLevels+1; lod++)        // clear buffers per LOD level and for Impostors
-            positions[lod].clear();
+    // offset from the model origin to the centre of its bounding box
+    public Vector3 getModelCentre() {
+        return modelCentre;
     }
 
+    // radius of the bounding sphere around the model centre
+    public float getRadius() {
+        return radius;
+    }
 
-    public void addInstances( int level, Array<Vector4> instanceData ){
-        positions[level].addAll( instanceData );
+    // Determine the LOD distances for this model.
+    // With Settings.lodScreenSpace, the distance for each level is where the projected radius of the model drops
+    // below the pixel size for the level, so it depends on the model size, the field of view and the viewport height.
+    // Otherwise the global Settings.lodDistances are used.
+    public void updateLodDistances(PerspectiveCamera cam) {
+        if(!Settings.lodScreenSpace) {
+            System.arraycopy(Settings.lodDistances, 0, lodDistances, 0, lodLevels);
+            return;
+        }
+        // projected radius in pixels = radius * viewportHeight / (2 * distance * tan(fov/2))
+        float pixelsAtUnitDistance = radius * cam.viewportHeight / (2f * (float)Math.tan(0.5f * cam.fieldOfView * MathUtils.degreesToRadians));
+        for(int lod = 0; lod < lodLevels; lod++)
+            lodDistances[lod] = pixelsAtUnitDistance / Settings.lodPixelSizes[lod];
     }
 
-    public void addInstance( int level, Vector4 instanceData ){
-        positions[level].add( instanceData );
+    public float[] getLodDistances() {
+        return lodDistances;
     }
 
+    // multiply the LOD distances, e.g. to fit a triangle budget (see LodBudgetAllocator)
+    public void scaleLodDistances(float factor) {
+        for(int lod = 0; lod < lodLevels; lod++)
+            lodDistances[lod] *= factor;
+    }
+
+    // nr of vertices of one instance at this level, over all meshes of the node and its children
+    public int getVertexCount(int level ) {
+        Array<Mesh> meshes;
+        if(level == lodLevels) {
+            meshes = new Array<>();
+            collectMeshes(impostorInstance.nodes, meshes);
+        }
+        else
+            meshes = lodMeshes.get(level);
+        int count = 0;
+        for(Mesh mesh : meshes)
+            count += mesh.getNumVertices();
+        return count;
+    }
 
-    private Vector3 tmpPos = new Vector3();
+    // nr of triangles of one instance at this level, over all parts of the node and its children
+    public int getTriangleCount(int level ) {
+        if(level == lodLevels)
+            return countTriangles(impostorInstance.nodes);
+        return countTriangles(lodScenes[level].modelInstance.nodes);
+    }
 
-    // allocate instances from this list on individual basis to LOD level
-    // also perform individual frustum clipping
-    //
-    public void addInstances(Camera cam, Array<Vector4> instanceData ){
-        for(Vector4 position : instanceData ){
-
-            tmpPos.set( position.x, position.y, position.z ).add(modelCentre);
-            if(cam.frustum.sphereInFrustum(tmpPos, radius)) {        // some margin to prevent popping
-                // determine level of detail from distance to camera
-                float distance = cam.position.dst(tmpPos);
-                int level = determineLODlevel(distance);
-                positions[level].add(position);
+    // Second instance of the LOD node where every mesh is replaced by a copy, so that it has its own instance buffer.
+    // Parts that share a mesh share the copy. The new meshes are added to owned.
+    private static Scene makeShadowScene(SceneAsset sceneAsset, String name, Array<Mesh> owned) {
+        Scene scene = new Scene(sceneAsset.scene, name);
+        Node node = scene.modelInstance.nodes.first();
+        node.translation.set(0, 0, 0);
+        node.scale.set(1, 1, 1);
+        node.rotation.idt();
+        scene.modelInstance.calculateTransforms();
+        Array<Mesh> meshes = new Array<>();
+        collectMeshes(scene.modelInstance.nodes, meshes);
+        Mesh merged = mergeMeshes(scene.modelInstance.nodes, meshes);      // the merged mesh is a new mesh already
+        if(merged != null)
+            owned.add(merged);
+        else {
+            ObjectMap<Mesh, Mesh> copies = new ObjectMap<>();
+            copyMeshes(scene.modelInstance.nodes, copies);
+            for(Mesh copy : copies.values())
+                owned.add(copy);
+        }
+        return scene;
+    }
+
+    private static void copyMeshes(Iterable<Node> nodes, ObjectMap<Mesh, Mesh> copies) {
+        for(Node node : nodes) {
+            for(NodePart part : node.parts) {
+                Mesh copy = copies.get(part.meshPart.mesh);
+                if(copy == null) {
+                    copy = part.meshPart.mesh.copy(true);
+                    copies.put(part.meshPart.mesh, copy);
+                }
+                part.meshPart.mesh = copy;
+            }
+            copyMeshes(node.getChildren(), copies);
+        }
+    }
+
+    // Merge the distinct meshes of the node parts into one new mesh and point the parts to their index range in it,
+    // so that one instance buffer serves all parts. Returns null (and changes nothing) if there is only one mesh,
+    // the meshes have different vertex attributes, are not indexed, or the vertices don't fit 16 bit indices.
+    private static Mesh mergeMeshes(Iterable<Node> nodes, Array<Mesh> meshes) {
+        if(meshes.size < 2)
+            return null;
+        VertexAttributes attributes = meshes.first().getVertexAttributes();
+        int numVertices = 0;
+        int numIndices = 0;
+        for(Mesh mesh : meshes) {
+            if(!mesh.getVertexAttributes().equals(attributes) || mesh.getNumIndices() == 0)
+                return null;
+            numVertices += mesh.getNumVertices();
+            numIndices += mesh.getNumIndices();
+        }
+        if(numVertices > 65536)
+            return null;
+
+        int floatsPerVertex = attributes.vertexSize / 4;
+        float[] vertices = new float[numVertices * floatsPerVertex];
+        short[] indices = new short[numIndices];
+        ObjectMap<Mesh, Integer> indexOffsets = new ObjectMap<>();
+        int vertexBase = 0;
+        int indexBase = 0;
+        for(Mesh mesh : meshes) {
+            mesh.getVertices(0, mesh.getNumVertices() * floatsPerVertex, vertices, vertexBase * floatsPerVertex);
+            mesh.getIndices(indices, indexBase);
+            for(int i = indexBase; i < indexBase + mesh.getNumIndices(); i++)
+                indices[i] = (short)((indices[i] & 0xFFFF) + vertexBase);
+            indexOffsets.put(mesh, indexBase);
+            vertexBase += mesh.getNumVertices();
+            indexBase += mesh.getNumIndices();
+        }
+        Mesh merged = new Mesh(true, numVertices, numIndices, attributes);
+        merged.setVertices(vertices);
+        merged.setIndices(indices);
+        retargetParts(nodes, merged, indexOffsets);
+        return merged;
+    }
+
+    private static void retargetParts(Iterable<Node> nodes, Mesh merged, ObjectMap<Mesh, Integer> indexOffsets) {
+        for(Node node : nodes) {
+            for(NodePart part : node.parts) {
+                part.meshPart.offset += indexOffsets.get(part.meshPart.mesh);
+                part.meshPart.mesh = merged;
+            }
+            retargetParts(node.getChildren(), merged, indexOffsets);
+        }
+    }
+
+    // add the distinct meshes of all node parts to meshes
+    private static void collectMeshes(Iterable<Node> nodes, Array<Mesh> meshes) {
+        for(Node node : nodes) {
+            for(NodePart part : node.parts) {
+                if(!meshes.contains(part.meshPart.mesh, true))
+                    meshes.add(part.meshPart.mesh);
             }
+            collectMeshes(node.getChildren(), meshes);
         }
     }
 
-    private int determineLODlevel( float distance ){
+    private static int countTriangles(Iterable<Node> nodes) {
+        int count = 0;
+        for(Node node : nodes) {
+            for(NodePart part : node.parts) {
+                int size = part.meshPart.size;
+                switch(part.meshPart.primitiveType) {
+                    case GL20.GL_TRIANGLES:         count += size / 3; break;
+                    case GL20.GL_TRIANGLE_STRIP:
+                    case GL20.GL_TRIANGLE_FAN:      count += Math.max(0, size - 2); break;
+                    default:                        break;       // lines and points
+                }
+            }
+            count += countTriangles(node.getChildren());
+        }
+        return count;
+    }
+
+
+
+    public void beginInstances(){
+        for(InstanceBuffer buffer : buffers)        // clear buffers per LOD level and for Impostors
+            buffer.count = 0;
+    }
+
+    // add a block of instances (packed x, y, z, rotY) to one LOD level
+    public void addInstances( int level, float[] instanceData, int count ){
+        buffers[level].add(instanceData, count);
+    }
+
+    public void addInstance( int level, float x, float y, float z, float rotY ){
+        buffers[level].add(x, y, z, rotY);
+    }
+
+
+    // LOD level for an instance at this distance from the camera, see also SceneryInstanceClassifier
+    int determineLODlevel( float distance ){
         // allocate this instance to one of the LOD levels depending on the distance
 
         for(int lod = lodLevels-1; lod >= 0; lod--) {
-            if (distance >= Settings.lodDistances[lod]   )        // optimized: most common case first
+            if (distance >= lodDistances[lod]   )        // optimized: most common case first
                 return lod+1;
         }
         return 0;       // LOD level 0, highest poly count
     }
 
+    // Upload the instance data of every LOD level, but only for the levels where it has changed since the previous upload.
+    // The impostor instances are not uploaded here, see ImpostorStore.
     public void endInstances() {
-        // Update instance data for every LOD model and the impostor model
-        //
-        for(int lod = 0; lod < Settings.LOD_LEVELS; lod++)
-            updateInstanced(lodScenes[lod].modelInstance, positions[lod]);
-        updateInstancedDecals(impostorInstance, positions[Settings.LOD_LEVELS]);    // instances for decal
+        uploadMask = 0;
+        for(int lod = 0; lod < Settings.LOD_LEVELS; lod++) {
+            if(buffers[lod].end())
+                uploadMask |= 1 << lod;
+        }
+    }
+
+    public void beginShadowCasters(){
+        for(InstanceBuffer buffer : shadowBuffers)
+            buffer.count = 0;
+    }
+
+    public void addShadowCaster( int level, float x, float y, float z, float rotY ){
+        shadowBuffers[level].add(x, y, z, rotY);
+    }
+
+    // add a block of shadow casters (packed x, y, z, rotY) to one LOD level
+    public void addShadowCasters( int level, float[] instanceData, int count ){
+        shadowBuffers[level].add(instanceData, count);
+    }
+
+    // Upload the shadow casters of the levels that changed.
+    public void endShadowCasters() {
+        for(InstanceBuffer buffer : shadowBuffers)
+            buffer.end();
+    }
+
+    public int getShadowCasterCount(int level) {
+        return shadowBuffers[level].count;
+    }
+
+    // highest number of instances at this LOD level so far
+    public int getHighWaterMark(int level) {
+        return buffers[level].highWaterMark;
+    }
+
+    // current instance buffer capacity at this LOD level
+    public int getCapacity(int level) {
+        return buffers[level].capacity;
+    }
+
+    private static boolean sameInstances(float[] a, float[] b, int length) {
+        for(int i = 0; i < length; i++)
+            if(a[i] != b[i])
+                return false;
+        return true;
+    }
+
+    // bit mask of the LOD levels that were uploaded by the last endInstances()
+    public int getUploadMask() {
+        return uploadMask;
     }
 
     public int getInstanceCount(int level ) {
-        return positions[level].size;
+        return buffers[level].count;
+    }
+
+    // packed x, y, z, rotY per instance, valid for the impostor level after endInstances()
+    public float[] getInstanceData(int level ) {
+        return buffers[level].data;
     }
 
 
     private ModelInstance makeImpostor(){
-        BoundingBox modelBoundingBox = new BoundingBox();
+        modelBoundingBox = new BoundingBox();
         lodScenes[0].modelInstance.calculateBoundingBox(modelBoundingBox);          // get dimensions of model
         Vector3 dimensions = new Vector3();
         modelBoundingBox.getDimensions(dimensions);
@@ -201,87 +557,39 @@ public class LodModel implements Disposable {
         impostorModel = Impostor.createImposterModel(textureRegion0, lodScenes[0].modelInstance);
         ModelInstance instance = new ModelInstance(impostorModel, 0, 0, 0);
 
-        // use user data to pass info  on the texture atlas to the shader
-        instance.userData = new InstancedDecalShaderProvider.UVSize(regionSize.x/textureSize, regionSize.y/textureSize);
+        impostorUVStep = new Vector2(regionSize.x/textureSize, regionSize.y/textureSize);
+        impostorSize = new Vector2(modelBoundingBox.getWidth(), modelBoundingBox.getHeight());     // same as the quad of the impostor model
         return instance;
     }
 
 
 
-    private void makeInstanced( ModelInstance modelInstance, int maxInstances ) {
-
-        Mesh mesh = modelInstance.nodes.first().parts.first().meshPart.mesh;       // get mesh belonging to the node (assuming there is not more than one)
-
-        // add matrix per instance
-        mesh.enableInstancedRendering(false, maxInstances,      // pass maximum instance count
-            new VertexAttribute(VertexAttributes.Usage.Generic, 4, "i_worldTrans", 0),
-            new VertexAttribute(VertexAttributes.Usage.Generic, 4, "i_worldTrans", 1),
-            new VertexAttribute(VertexAttributes.Usage.Generic, 4, "i_worldTrans", 2),
-            new VertexAttribute(VertexAttributes.Usage.Generic, 4, "i_worldTrans", 3)   );
-    }
-
-    private void updateInstanced( ModelInstance modelInstance, Array<Vector4> positions ) {
-
-        int count = positions.size;
-        if(positions.size >= maxModelInstances) {
-            Gdx.app.error("buffer size", "too many instances for instance buffer: " + positions.size);
-            count = maxModelInstances-1;
-        }
-
-        Mesh mesh = modelInstance.nodes.first().parts.first().meshPart.mesh;       // get mesh belonging to the node (assuming there is not more than one)
-
-        // fill instance data buffer
-        instanceData.clear();
-        Matrix4 instanceTransform = new Matrix4();
-        for(int i = 0; i < count; i++) {
-            Vector4 pos = positions.get(i);
-
-            instanceTransform.setToRotationRad(Vector3.Y, pos.w);
-            instanceTransform.setTranslation(pos.x, pos.y, pos.z);
-            // transpose matrix for GLSL
-            instanceData.put(instanceTransform.tra().getValues());                // transpose matrix for GLSL
-        }
-        instanceData.limit( count * 16 );  // amount of data in buffer
-        instanceData.position(0);      // rewind float buffer to start
-        mesh.setInstanceData(instanceData);
-    }
-
-
-    private void makeInstancedDecals( ModelInstance modelInstance, int maxInstances ) {
-        Mesh mesh = modelInstance.nodes.first().parts.first().meshPart.mesh;       // get mesh belonging to the node (assuming there is not more than one)
-
-
-        // add vector4 per instance containing position and Y rotation
-        mesh.enableInstancedRendering(false, maxInstances,
-            new VertexAttribute(VertexAttributes.Usage.Generic, 4, "i_offset", 0));
+    private void makeInstanced( Array<Mesh> meshes, int maxInstances ) {
+        // add vector4 per instance containing position and Y rotation, the shader rebuilds the transform from it
+        for(Mesh mesh : meshes)
+            mesh.enableInstancedRendering(false, maxInstances,      // pass maximum instance count
+                new VertexAttribute(VertexAttributes.Usage.Generic, 4, "i_instance", 0));
     }
 
-    private float[] tmpFloat4 = { 1, 2, 3, 4 };
-
-    private void updateInstancedDecals( ModelInstance modelInstance, Array<Vector4> positions ) {
-        if(positions.size >= maxImpostorInstances) throw new GdxRuntimeException("too many instances for impostor instance buffer: "+positions.size);
-
-        Mesh mesh = modelInstance.nodes.first().parts.first().meshPart.mesh;       // get mesh belonging to the node (assuming there is not more than one)
-
+    private void updateInstanced( Array<Mesh> meshes, float[] positions, int numPositions ) {
+        // the packed instance data (x, y, z, rotY) is uploaded as is, the same data for every mesh of the level
+        // (normally the level has one merged mesh, see mergeMeshes())
         instanceData.clear();
-        for(Vector4 pos: positions) {
-            tmpFloat4[0] = pos.x;
-            tmpFloat4[1] = pos.y;
-            tmpFloat4[2] = pos.z;
-            tmpFloat4[3] = pos.w;
-            instanceData.put( tmpFloat4 );
+        instanceData.put( positions, 0, numPositions * SceneryChunk.FLOATS_PER_INSTANCE );
+        instanceData.limit( numPositions * SceneryChunk.FLOATS_PER_INSTANCE );
+        for(Mesh mesh : meshes) {
+            instanceData.position(0);      // rewind float buffer to start
+            mesh.setInstanceData(instanceData);
         }
-        instanceData.limit( positions.size * 4 );
-        instanceData.position(0);      // rewind float buffer to start
-        mesh.setInstanceData(instanceData);
     }
 
 
-
-
-
     @Override
     public void dispose() {
+        for(int lod = 0; lod < lodLevels; lod++)
+            Gdx.app.log("instance buffer", nodeName + " LOD" + lod + " high water mark: " + buffers[lod].highWaterMark + " capacity: " + buffers[lod].capacity);
         impostorModel.dispose();
+        for(Mesh mesh : ownedMeshes)
+            mesh.dispose();
     }
 }
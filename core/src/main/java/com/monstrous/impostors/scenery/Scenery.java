@@ -4,9 +4,9 @@ import com.badlogic.gdx.Gdx;
 import com.badlogic.gdx.graphics.*;
 import com.badlogic.gdx.graphics.g3d.ModelInstance;
 import com.badlogic.gdx.math.*;
+import com.badlogic.gdx.math.collision.BoundingBox;
 import com.badlogic.gdx.utils.Array;
 import com.badlogic.gdx.utils.Disposable;
-import com.badlogic.gdx.utils.GdxRuntimeException;
 import com.monstrous.impostors.Settings;
 import com.monstrous.impostors.Statistics;
 import com.monstrous.impostors.terrain.Terrain;
@@ -22,8 +22,8 @@ import net.mgsx.gltf.scene3d.scene.SceneAsset;
 
 public class Scenery implements SceneryInterface, Disposable {
 
-    private static final int MAX_MODEL_INSTANCES =  500;
-    private static final int MAX_DECAL_INSTANCES = 35000;
+    private static final int INITIAL_MODEL_INSTANCES =  256;     // initial instance buffer capacities, buffers grow as needed
+    private static final int INITIAL_DECAL_INSTANCES = 4096;
 
     SceneryChunks sceneryChunks;
     Array<LodModel> lodModels;
@@ -33,6 +33,12 @@ public class Scenery implements SceneryInterface, Disposable {
     private final SceneAsset sceneAsset;
     private final Array<Scene> scenes;
     private final Array<ModelInstance> decalInstances;
+    private final SceneryInstanceClassifier classifier;
+    private final ImpostorStore impostorStore;
+    private final float[] chunkLodDistances;
+    private final LodBudgetAllocator budgetAllocator;
+    private final ShadowCasterCuller shadowCasterCuller;       // null if Settings.shadowCasters is false
+    private final Array<Scene> shadowScenes;
 
 
     public Scenery( Terrain terrain, float separationDistance ) {
@@ -40,8 +46,8 @@ public class Scenery implements SceneryInterface, Disposable {
 
 
         sceneAsset = new GLTFLoader().load(Gdx.files.internal("models/duck-land.gltf"));
-        lodModels.add( new LodModel(sceneAsset, "ducky", Settings.LOD_LEVELS, MAX_MODEL_INSTANCES, MAX_DECAL_INSTANCES) );
-        lodModels.add( new LodModel(sceneAsset, "simplePalm", Settings.LOD_LEVELS, MAX_MODEL_INSTANCES, MAX_DECAL_INSTANCES));
+        lodModels.add( new LodModel(sceneAsset, "ducky", Settings.LOD_LEVELS, INITIAL_MODEL_INSTANCES) );
+        lodModels.add( new LodModel(sceneAsset, "simplePalm", Settings.LOD_LEVELS, INITIAL_MODEL_INSTANCES));
 
         numTypes = lodModels.size;
         statistics = new Statistics(numTypes, Settings.LOD_LEVELS);
@@ -50,7 +56,12 @@ public class Scenery implements SceneryInterface, Disposable {
 
         float[]  bias = { .98f, .02f };       // relative probabilities per type, should add up to 1.0
 
-        sceneryChunks = new SceneryChunks(0, terrain, numTypes, bias, separationDistance );
+        // bounding box that fits any of the scenery models
+        BoundingBox modelBounds = new BoundingBox().inf();
+        for(LodModel lodModel : lodModels)
+            modelBounds.ext(lodModel.getModelBounds());
+
+        sceneryChunks = new SceneryChunks(0, terrain, numTypes, bias, separationDistance, modelBounds );
 
 
         scenes = new Array<>();
@@ -61,16 +72,28 @@ public class Scenery implements SceneryInterface, Disposable {
         for(int type = 0; type < numTypes; type++ ) {
             for (int lod = 0; lod < Settings.LOD_LEVELS + 1; lod++) {
                 statistics.setVertexCount(type, lod, lodModels.get(type).getVertexCount(lod));
+                statistics.setTriangleCount(type, lod, lodModels.get(type).getTriangleCount(lod));
             }
         }
 
-        for(LodModel lodModel : lodModels)
-            decalInstances.add(lodModel.getImpostor());
+        // impostors of all types are rendered in one call
+        impostorStore = new ImpostorStore(lodModels, INITIAL_DECAL_INSTANCES);
+        decalInstances.add(impostorStore.getInstance());
+        classifier = new SceneryInstanceClassifier(lodModels);
+        chunkLodDistances = new float[Settings.LOD_LEVELS];
+        budgetAllocator = new LodBudgetAllocator(numTypes);
+        shadowCasterCuller = Settings.shadowCasters ? new ShadowCasterCuller(sceneryChunks.chunks, lodModels) : null;
+        shadowScenes = new Array<>();
 
         Settings.lodLevel = -1;     // show all LOD levels and impostors
 
     }
 
+    // generate the scenery for a region (world units, x and z) in advance
+    public void pregenerate(Rectangle region){
+        sceneryChunks.pregenerate(region);
+    }
+
     public Array<Scene> getScenes(){
         scenes.clear();
 
@@ -91,16 +114,71 @@ public class Scenery implements SceneryInterface, Disposable {
         return scenes;
     }
 
+    // Select the shadow casters for the shadow pass, call after the light or cascades are positioned for this frame.
+    // lightCameras are the cameras of the shadow light or of each cascade.
+    public void updateShadowCasters(Camera cam, Array<Camera> lightCameras){
+        if(shadowCasterCuller == null)
+            return;
+        shadowCasterCuller.update(cam, lightCameras);
+        statistics.shadowCasters = shadowCasterCuller.numCasters;
+    }
+
+    // instanced scenes to render in the shadow pass instead of getScenes(), null if Settings.shadowCasters is not set
+    public Array<Scene> getShadowCasterScenes(){
+        if(shadowCasterCuller == null)
+            return null;
+        shadowScenes.clear();
+        for(LodModel lodModel : lodModels) {
+            Scene[] lodScenes = lodModel.getShadowScenes();
+            for (int lod = 0; lod < Settings.LOD_LEVELS; lod++) {
+                if (lodModel.getShadowCasterCount(lod) > 0)
+                    shadowScenes.add(lodScenes[lod]);
+            }
+        }
+        return shadowScenes;
+    }
+
     // need to be rendered with the instanced decal shader
     public Array<ModelInstance> getImpostors(){
         return decalInstances;
     }
 
+    public Array<LodModel> getLodModels(){
+        return lodModels;
+    }
+
+    // chunks that were visible at this LOD level in the last update
+    public Array<SceneryChunk> getVisibleChunks(int lodLevel){
+        return sceneryChunks.getVisibleChunks(lodLevel);
+    }
+
     private float rotation;
 
     public void update(float deltaTime, PerspectiveCamera cam, boolean forceUpdate){
-        sceneryChunks.update(cam, forceUpdate);
-        Array<SceneryChunk> visibleChunks = sceneryChunks.getVisibleChunks();
+        // LOD distances per model, chunks use the largest distance of any model per level,
+        // so a chunk is at the finest level any of its instances can need
+        for(LodModel lodModel : lodModels)
+            lodModel.updateLodDistances(cam);
+        budgetAllocator.update(lodModels, statistics);      // per type scaling to the triangle budget and predicted counts
+        boolean lodChanged = false;
+        for(int lod = 0; lod < Settings.LOD_LEVELS; lod++) {
+            float distance = 0;
+            for(LodModel lodModel : lodModels)
+                distance = Math.max(distance, lodModel.getLodDistances()[lod]);
+            if(distance != chunkLodDistances[lod])
+                lodChanged = true;
+            chunkLodDistances[lod] = distance;
+        }
+        sceneryChunks.setLodDistances(chunkLodDistances);
+
+        boolean changed = sceneryChunks.update(cam, forceUpdate || lodChanged);
+
+        // if the visible chunks are unchanged, the instance buffers are still valid
+        if(!changed && !Settings.singleInstance) {
+            for(int type = 0; type < numTypes; type++)
+                statistics.setUploadMask(type, 0);
+            return;
+        }
 
         // Now get the instance data from all visible chunks
         //
@@ -111,24 +189,24 @@ public class Scenery implements SceneryInterface, Disposable {
             if(Settings.lodLevel < 0)   // don't allow multiple LOD levels
                 Settings.lodLevel = 0;
             rotation += deltaTime*0.5f;
-            Vector4 singlePos = new Vector4(0,0,0,rotation);       // slowly rotate
-            lodModels.get(1).addInstance(Settings.lodLevel, singlePos);
+            lodModels.get(1).addInstance(Settings.lodLevel, 0, 0, 0, rotation);       // slowly rotate
 
         } else {
 
-            float diagonalDistance = 0.707f * SceneryChunk.CHUNK_SIZE;        // subtract distance from corner to centre of chunk in case the camera is in corner of chunk (0.5*sqrt(2))
-
-            for (SceneryChunk chunk : visibleChunks) {
-
-                int level = determineLODlevel(chunk.distance - diagonalDistance);
-                chunk.setLodLevel(level);
+            // visible chunks come binned per LOD level
+            // for chunks at high LOD level (high poly count), test at individual instance level, on multiple cores
+            classifier.begin();
+            for (int level = 0; level < Settings.LOD_LEVELS; level++) {
+                for (SceneryChunk chunk : sceneryChunks.getVisibleChunks(level))
+                    classifier.addChunk(chunk);
+            }
+            classifier.end(cam);
 
+            // chunks at impostor level are added as a whole
+            for (SceneryChunk chunk : sceneryChunks.getVisibleChunks(Settings.LOD_LEVELS)) {
                 int type = 0;
-                for(LodModel lodModel : lodModels) {    // for each scenery type
-                    if (level <= 2)      // for chunks at high LOD level (high poly count), test at individual instance level
-                        lodModel.addInstances(cam, chunk.getPositions(type));
-                    else
-                        lodModel.addInstances(level, chunk.getPositions(type));
+                for (LodModel lodModel : lodModels) {    // for each scenery type
+                    lodModel.addInstances(Settings.LOD_LEVELS, chunk.getInstanceData(type), chunk.getInstanceCount(type));
                     type++;
                 }
             }
@@ -136,34 +214,43 @@ public class Scenery implements SceneryInterface, Disposable {
         }
         for(LodModel lodModel : lodModels)
             lodModel.endInstances();
+        impostorStore.update();
 
 
         // Update the stats for the GUI
         //
+        SceneryOcclusionCuller occlusionCuller = sceneryChunks.getOcclusionCuller();
+        statistics.occludedChunks = Settings.occlusionCulling ? occlusionCuller.chunksCulled : 0;
+        statistics.occludedInstances = Settings.occlusionCulling ? occlusionCuller.instancesCulled : 0;
         instanceCount = 0;
         for(int type = 0; type < numTypes; type++ ) {
+            int uploadMask = lodModels.get(type).getUploadMask();
+            if(impostorStore.wasUploaded())
+                uploadMask |= 1 << Settings.LOD_LEVELS;     // impostors of all types are uploaded together
+            statistics.setUploadMask(type, uploadMask);
             for (int lod = 0; lod < Settings.LOD_LEVELS + 1; lod++) {
                 int num = lodModels.get(type).getInstanceCount(lod);
                 statistics.setInstanceCount(type, lod, num);
                 instanceCount += num;
             }
         }
-        if (instanceCount > MAX_MODEL_INSTANCES+MAX_DECAL_INSTANCES) throw new GdxRuntimeException("Too many instances! > " + MAX_MODEL_INSTANCES+MAX_DECAL_INSTANCES);
     }
 
-    private int determineLODlevel( float distance ){
-        // allocate this instance to one of the LOD levels depending on the distance
+    // start accumulating occlusion culling statistics, e.g. at the start of a benchmark path
+    public void resetOcclusionStatistics() {
+        sceneryChunks.getOcclusionCuller().resetTotals();
+    }
 
-        for(int lod = Settings.LOD_LEVELS-1; lod >= 0; lod--) {
-            if (distance >= Settings.lodDistances[lod]   )        // optimized: most common case first
-                return lod+1;
-        }
-        return 0;       // LOD level 0, highest poly count
+    // percentage of chunks and instances removed by occlusion culling since resetOcclusionStatistics()
+    public String getOcclusionReport() {
+        return sceneryChunks.getOcclusionCuller().getReport();
     }
 
     @Override
     public void dispose() {
         scenes.clear();
+        classifier.dispose();
+        impostorStore.dispose();
         sceneryChunks.dispose();
         sceneAsset.dispose();
         for(LodModel lodModel : lodModels)
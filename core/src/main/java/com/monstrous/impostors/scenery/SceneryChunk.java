@@ -5,50 +5,134 @@ import com.badlogic.gdx.math.*;
 import com.badlogic.gdx.math.collision.BoundingBox;
 import com.badlogic.gdx.utils.Array;
 import com.badlogic.gdx.utils.Disposable;
+import com.monstrous.impostors.Settings;
+import com.monstrous.impostors.terrain.TerrainChunk;
+import com.monstrous.impostors.utils.FloatArrayPool;
 import com.monstrous.impostors.utils.PoissonDiskDistribution;
-import com.monstrous.impostors.terrain.Terrain;
+import com.monstrous.impostors.utils.PoissonPatternSet;
+import com.monstrous.impostors.terrain.HeightField;
+
+import java.nio.ByteBuffer;
+
+// A scenery chunk is created in two steps:
+// generate() places the instances in 2d and can be called from a worker thread,
+// finish() adds the terrain heights (from the height field) and has to be called on the render thread.
+// Only when the chunk is ready can its instances be used.
+//
+// Instances are stored per type as a packed float array with 4 floats per instance: x, y, z (world position) and rotation around Y.
+// The arrays come from a pool and are returned to it when the chunk is disposed.
 
 public class SceneryChunk  implements Disposable {
     public static final float CHUNK_SIZE = 128;            // in world units
+    public static final int FLOATS_PER_INSTANCE = 4;       // x, y, z, rotY
+    public static final int BYTES_PER_CHUNK = 256;         // estimated heap use of the chunk itself
 
+    private static final FloatArrayPool pool = new FloatArrayPool(1024);   // recycles instance arrays of evicted chunks
+    private static PoissonPatternSet patternSet;                            // shared tileable patterns, see getPatternSet()
+    private static float[] heights = new float[0];                          // terrain heights per instance, used by finish() on the render thread
 
-    private Array<Vector4>[] instancePositions;
+
+    private float[][] instanceData;             // per type: packed x, y, z, rotY per instance
+    private int[] instanceCounts;               // per type
+    private int memorySize;
+    private float minHeight, maxHeight;         // range of instance heights
     private int numTypes;
+    private float[] bias;
+    private float separationDistance;
     private Vector3 chunkPosition;              // world position of chunk centre
     public BoundingBox bbox;
     private int lodLevel;
     public int lastSeen;
     public int creationTime;
-    public int key;
     public float distance;
+    public final int cx, cz;
+    float priority;                             // generation priority, lowest value first
+    boolean inRange;                            // in range of the camera, i.e. in use
+    int rangeIndex = -1;                        // index in the array of chunks in range
+    boolean inCache;                            // in the LRU list of chunks that may be evicted
+    SceneryChunk lruPrev, lruNext;              // links for the LRU list, see SceneryChunkCache
+
+    // output of generate(): instance positions relative to the chunk corner, rotation and type
+    private int numInstances;
+    private float[] px;
+    private float[] pz;
+    private float[] angles;
+    private int[] types;
+    private volatile boolean generated;
+    private boolean ready;
 
-    public SceneryChunk(int cx, int cz, int creationTime, int key, Terrain terrain, int numTypes, float[] bias, float separationDistance) {
+    public SceneryChunk(int cx, int cz, int creationTime, int numTypes, float[] bias, float separationDistance) {
+        this.cx = cx;
+        this.cz = cz;
         this.creationTime = creationTime;
-        this.key = key;
         this.numTypes = numTypes;
+        this.bias = bias;
+        this.separationDistance = separationDistance;
         float x = cx*CHUNK_SIZE+CHUNK_SIZE/2;
         float z = cz*CHUNK_SIZE+CHUNK_SIZE/2;
-        float h = terrain.getHeight(x, z);
-        chunkPosition = new Vector3(x, h, z);   // world position in centre of chunk at terrain height
+        chunkPosition = new Vector3(x, 0, z);   // height is not known until the chunk is finished
         bbox = new BoundingBox();
-        bbox.set(new Vector3(x-CHUNK_SIZE/2, h-10, z-CHUNK_SIZE/2), new Vector3(x+CHUNK_SIZE/2, h+10, z+CHUNK_SIZE/2));
+        // provisional bounding box covering the full terrain amplitude, used to prioritize generation
+        bbox.set(new Vector3(x-CHUNK_SIZE/2, -TerrainChunk.AMPLITUDE, z-CHUNK_SIZE/2), new Vector3(x+CHUNK_SIZE/2, TerrainChunk.AMPLITUDE, z+CHUNK_SIZE/2));
+    }
+
+    // Seed for the random stream of chunk (cx, cz).
+    // Hashes the world seed and the chunk coordinates, so that every chunk has its own stream and chunks can be generated
+    // in parallel and in any order with identical results. Different coordinates never give the same seed.
+    public static long chunkSeed(long worldSeed, int cx, int cz) {
+        long key = ((long)cx << 32) | (cz & 0xFFFFFFFFL);       // unique per chunk
+        return mix64(key ^ mix64(worldSeed));
+    }
 
-        // generate a random poisson distribution of instances over a rectangular area, meaning instances are never too close together
-        MathUtils.random.setSeed(cx * 345 + cz * 56700);         // fix the random distribution to always be identical per chunk
-        Rectangle area = new Rectangle(1, 1, CHUNK_SIZE, CHUNK_SIZE);
-        Array<Vector2> points = PoissonDiskDistribution.generatePoissonDistribution(separationDistance, area);
+    // splitmix64 finalizer: a bijective 64-bit mix
+    private static long mix64(long h) {
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 31);
+    }
 
-        //instanceCount = points.size;
+    // the tileable Poisson pattern pieces are shared by all chunks, they are created on first use
+    private static synchronized PoissonPatternSet getPatternSet(float separationDistance) {
+        if(patternSet == null || patternSet.getMinDistance() != separationDistance || patternSet.getColourCount() != Settings.sceneryPatternColours)
+            patternSet = new PoissonPatternSet(separationDistance, CHUNK_SIZE, Settings.sceneryPatternColours, Settings.worldSeed);
+        return patternSet;
+    }
 
-        instancePositions = new Array[numTypes];
-        for(int t = 0; t < numTypes; t++)
-            instancePositions[t] = new Array<>();
+    // distribute the instances over the chunk area, doesn't depend on the terrain so this can be called from any thread
+    public void generate() {
+        long seed = chunkSeed(Settings.worldSeed, cx, cz);       // fix the random distribution to always be identical per chunk
 
-        // convert 2d points to 3d positions
-        MathUtils.random.setSeed(cx * 345 + cz * 56700);         // fix the random distribution to always be identical
-        for(Vector2 point : points ) {
+        RandomXS128 random = new RandomXS128(seed);
+        if(Settings.sceneryPoissonPatterns && PoissonPatternSet.fits(separationDistance, CHUNK_SIZE)) {
+            // assemble the chunk from precomputed border pieces shared with the neighbouring chunks and fill the interior
+            float[] pattern = getPatternSet(separationDistance).generate(cx, cz, random);
+            numInstances = pattern.length / 2;
+            px = new float[numInstances];
+            pz = new float[numInstances];
+            for(int i = 0; i < numInstances; i++) {
+                px[i] = pattern[2*i];
+                pz[i] = pattern[2*i+1];
+            }
+        }
+        else {
+            // generate a random poisson distribution of instances over a rectangular area, meaning instances are never too close together
+            Rectangle area = new Rectangle(1, 1, CHUNK_SIZE, CHUNK_SIZE);
+            Array<Vector2> points = PoissonDiskDistribution.generatePoissonDistribution(separationDistance, area, random);
+            numInstances = points.size;
+            px = new float[numInstances];
+            pz = new float[numInstances];
+            for(int i = 0; i < numInstances; i++) {
+                px[i] = points.get(i).x;
+                pz[i] = points.get(i).y;
+            }
+        }
+        angles = new float[numInstances];
+        types = new int[numInstances];
+
+        random.setSeed(mix64(seed + 1));               // separate stream for type and rotation
+        for(int i = 0; i < numInstances; i++ ) {
             // determine type based on bias table. E.g. { 0.3, 0.7 } means 30% should be type 0 and 70% type 1
-            float r = MathUtils.random();   // in [0..1]
+            float r = random.nextFloat();   // in [0..1]
             int t;
             float probability = 0;
             for (t = 0; t < numTypes; t++) {
@@ -56,24 +140,167 @@ public class SceneryChunk  implements Disposable {
                 if (r < probability)
                     break;
             }
-            x = point.x + chunkPosition.x-CHUNK_SIZE/2;
-            z = point.y + chunkPosition.z-CHUNK_SIZE/2;
-            h = terrain.getHeight(x, z);
-            if(h == 0)
+            angles[i] = random.nextFloat() * (float)Math.PI*2.0f;      // random rotation around Y (up) axis
+            types[i] = t;
+        }
+        generated = true;
+    }
+
+    // place the generated instances at terrain height, must be called from the render thread after generate()
+    // modelBounds is the bounding box of the largest model (relative to its origin), to make the chunk bounding box enclose all instances
+    public void finish(HeightField heightField, BoundingBox modelBounds) {
+        float h = heightField.getHeight(chunkPosition.x, chunkPosition.z);
+        chunkPosition.y = h;                    // world position in centre of chunk at terrain height
+        minHeight = h;
+        maxHeight = h;
+
+        int[] counts = new int[numTypes];
+        for(int i = 0; i < numInstances; i++ )
+            counts[types[i]]++;
+        allocate(counts);
+        int[] offsets = new int[numTypes];
+
+        // convert 2d points to world positions and sample the terrain heights in one pass
+        for(int i = 0; i < numInstances; i++ ) {
+            px[i] += chunkPosition.x-CHUNK_SIZE/2;
+            pz[i] += chunkPosition.z-CHUNK_SIZE/2;
+        }
+        if(heights.length < numInstances)
+            heights = new float[numInstances];
+        heightField.getHeights(px, pz, numInstances, heights);
+
+        // convert 2d points to 3d positions
+        for(int i = 0; i < numInstances; i++ ) {
+            float x = px[i];
+            float z = pz[i];
+            h = heights[i];
+            if(Settings.debugSceneryChunkAllocation && h == 0)
                 Gdx.app.log("height is 0", "x= "+x+" z= "+z);
-            float angleY = MathUtils.random(0.0f, (float)Math.PI*2.0f);      // random rotation around Y (up) axis
+            minHeight = Math.min(minHeight, h);
+            maxHeight = Math.max(maxHeight, h);
 
-            Vector4 position = new Vector4( x, h, z, angleY);               // world position, not chunk relative position
-            instancePositions[t].add( position );
+            // world position, not chunk relative position
+            float[] data = instanceData[types[i]];
+            int offset = offsets[types[i]];
+            data[offset] = x;
+            data[offset+1] = h;
+            data[offset+2] = z;
+            data[offset+3] = angles[i];
+            offsets[types[i]] += FLOATS_PER_INSTANCE;
         }
+        setBounds(modelBounds);
+
+        px = null;
+        pz = null;
+        angles = null;
+        types = null;
+        ready = true;
+    }
+
+    // allocate instance arrays for the given number of instances per type
+    private void allocate(int[] counts) {
+        instanceCounts = counts;
+        instanceData = new float[numTypes][];
+        memorySize = BYTES_PER_CHUNK;
+        for(int t = 0; t < numTypes; t++) {
+            instanceData[t] = pool.obtain(instanceCounts[t] * FLOATS_PER_INSTANCE);
+            memorySize += 4 * instanceData[t].length;
+        }
+    }
+
+    // tight bounding box from the actual instance heights
+    private void setBounds(BoundingBox modelBounds) {
+        // horizontally add the model extent in any direction, as instances can be rotated and can stick out of the chunk
+        float extent = (float)Math.sqrt(Math.max(modelBounds.min.x*modelBounds.min.x, modelBounds.max.x*modelBounds.max.x)
+                                      + Math.max(modelBounds.min.z*modelBounds.min.z, modelBounds.max.z*modelBounds.max.z));
+        bbox.min.set(chunkPosition.x-CHUNK_SIZE/2-extent, minHeight+Math.min(0, modelBounds.min.y), chunkPosition.z-CHUNK_SIZE/2-extent);
+        bbox.max.set(chunkPosition.x+CHUNK_SIZE/2+extent, maxHeight+Math.max(0, modelBounds.max.y), chunkPosition.z+CHUNK_SIZE/2+extent);
+        bbox.update();
+    }
+
+    // Size in bytes of the serialized chunk, see write().
+    public int getSerializedSize() {
+        int size = 3 * 4;
+        for(int t = 0; t < numTypes; t++)
+            size += 4 + instanceCounts[t] * FLOATS_PER_INSTANCE * 4;
+        return size;
+    }
+
+    // Serialize a ready chunk: centre height, min height, max height,
+    // then per type the instance count followed by the packed instance data.
+    public void write(ByteBuffer buffer) {
+        buffer.putFloat(chunkPosition.y);
+        buffer.putFloat(minHeight);
+        buffer.putFloat(maxHeight);
+        for(int t = 0; t < numTypes; t++) {
+            buffer.putInt(instanceCounts[t]);
+            float[] data = instanceData[t];
+            for(int i = 0; i < instanceCounts[t] * FLOATS_PER_INSTANCE; i++)
+                buffer.putFloat(data[i]);
+        }
+    }
+
+    // Restore a chunk serialized by write() from the buffer at the given offset, instead of generating it.
+    // The chunk is ready afterwards.
+    public void read(ByteBuffer buffer, int offset, BoundingBox modelBounds) {
+        chunkPosition.y = buffer.getFloat(offset);
+        minHeight = buffer.getFloat(offset+4);
+        maxHeight = buffer.getFloat(offset+8);
+        offset += 12;
+        int[] counts = new int[numTypes];
+        int pos = offset;
+        for(int t = 0; t < numTypes; t++) {
+            counts[t] = buffer.getInt(pos);
+            pos += 4 + counts[t] * FLOATS_PER_INSTANCE * 4;
+        }
+        allocate(counts);
+        numInstances = 0;
+        pos = offset;
+        for(int t = 0; t < numTypes; t++) {
+            pos += 4;
+            float[] data = instanceData[t];
+            for(int i = 0; i < counts[t] * FLOATS_PER_INSTANCE; i++, pos += 4)
+                data[i] = buffer.getFloat(pos);
+            numInstances += counts[t];
+        }
+        setBounds(modelBounds);
+        generated = true;
+        ready = true;
+    }
+
+    // estimated memory use of the chunk in bytes, valid once the chunk is ready
+    public int getMemorySize() {
+        return memorySize;
+    }
+
+    public boolean isGenerated() {
+        return generated;
+    }
+
+    // has the chunk been finished so that instance positions are available?
+    public boolean isReady() {
+        return ready;
     }
 
     public Vector3 getWorldPosition() {
         return chunkPosition;
     }
 
-    public Array<Vector4> getPositions( int t ){
-        return instancePositions[t];
+    // packed instance data for type t: x, y, z, rotY per instance
+    public float[] getInstanceData( int t ){
+        return instanceData[t];
+    }
+
+    public int getInstanceCount( int t ){
+        return instanceCounts[t];
+    }
+
+    // total nr of instances of all types
+    public int getInstanceCount(){
+        int total = 0;
+        for(int t = 0; t < numTypes; t++)
+            total += instanceCounts[t];
+        return total;
     }
 
     public int getLodLevel() {
@@ -85,5 +312,12 @@ public class SceneryChunk  implements Disposable {
     }
 
     @Override
-    public void dispose() {}
+    public void dispose() {
+        if(instanceData != null) {
+            for (float[] data : instanceData)
+                pool.free(data);
+            instanceData = null;
+        }
+        ready = false;
+    }
 }
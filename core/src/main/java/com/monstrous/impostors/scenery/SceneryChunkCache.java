@@ -0,0 +1,95 @@
+package com.monstrous.impostors.scenery;
+
+import com.badlogic.gdx.Gdx;
+import com.monstrous.impostors.Settings;
+import com.monstrous.impostors.utils.ChunkGrid;
+
+
+// Keeps the memory used by scenery chunks within Settings.sceneryCacheBudget (in bytes of instance data).
+//
+// Chunks that are in range of the camera are in use and are never evicted.
+// Chunks that go out of range are put at the head of an intrusive doubly linked list, so the tail
+// is always the least recently used chunk and eviction is O(1) per chunk.
+// When the budget is exceeded, chunks are evicted from the tail in one batch until the memory use
+// is down to the low watermark, so that eviction doesn't have to run on every camera change.
+
+
+class SceneryChunkCache {
+
+    private SceneryChunk head;          // most recently used
+    private SceneryChunk tail;          // least recently used
+    private long bytesUsed;             // by all ready chunks, in range or not
+
+    // account for a chunk that just became ready
+    public void add(SceneryChunk chunk) {
+        bytesUsed += chunk.getMemorySize();
+        if(!chunk.inRange)
+            release(chunk);
+    }
+
+    // chunk is no longer in use: make it the most recently used candidate for eviction
+    public void release(SceneryChunk chunk) {
+        if(chunk.inCache)
+            unlink(chunk);
+        chunk.lruPrev = null;
+        chunk.lruNext = head;
+        if(head != null)
+            head.lruPrev = chunk;
+        head = chunk;
+        if(tail == null)
+            tail = chunk;
+        chunk.inCache = true;
+    }
+
+    // chunk is in use again: it may not be evicted
+    public void retain(SceneryChunk chunk) {
+        if(chunk.inCache)
+            unlink(chunk);
+    }
+
+    private void unlink(SceneryChunk chunk) {
+        if(chunk.lruPrev != null)
+            chunk.lruPrev.lruNext = chunk.lruNext;
+        else
+            head = chunk.lruNext;
+        if(chunk.lruNext != null)
+            chunk.lruNext.lruPrev = chunk.lruPrev;
+        else
+            tail = chunk.lruPrev;
+        chunk.lruPrev = null;
+        chunk.lruNext = null;
+        chunk.inCache = false;
+    }
+
+    // if over budget, evict least recently used chunks until memory use is at the low watermark
+    // returns number of evicted chunks
+    public int evict(ChunkGrid<SceneryChunk> chunks) {
+        if(bytesUsed <= Settings.sceneryCacheBudget)
+            return 0;
+
+        long lowWatermark = (long)(Settings.sceneryCacheLowWatermark * Settings.sceneryCacheBudget);
+        long before = bytesUsed;
+        int count = 0;
+        while(bytesUsed > lowWatermark && tail != null) {
+            SceneryChunk oldest = tail;
+            unlink(oldest);
+            chunks.remove(oldest.cx, oldest.cz);
+            bytesUsed -= oldest.getMemorySize();
+            oldest.dispose();
+            count++;
+        }
+        if(count > 0 && Settings.debugSceneryChunkAllocation)
+            Gdx.app.log("deleting scenery chunks", "evicted " + count + " chunks, bytes: " + before + " -> " + bytesUsed + ", num chunks " + chunks.size());
+        return count;
+    }
+
+    public long getBytesUsed() {
+        return bytesUsed;
+    }
+
+    public void clear() {
+        head = null;
+        tail = null;
+        bytesUsed = 0;
+    }
+}
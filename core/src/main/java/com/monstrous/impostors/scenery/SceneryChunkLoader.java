@@ -0,0 +1,165 @@
+package com.monstrous.impostors.scenery;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.Camera;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.BoundingBox;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.Disposable;
+import com.monstrous.impostors.Settings;
+import com.monstrous.impostors.terrain.Terrain;
+
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+
+
+// Generates scenery chunks in the background so that the render thread doesn't stutter when the camera
+// moves into a new area.
+// Requested chunks are queued by priority (chunks in the camera frustum first, then by distance).
+// A pool of worker threads generates the chunks and the render thread finishes the completed
+// chunks (placing them at terrain height) up to a time budget per frame.
+// If Settings.asyncSceneryGeneration is false (e.g. on web), the chunks are generated on the render thread
+// but still in priority order and within the time budget.
+
+
+public class SceneryChunkLoader implements Disposable {
+
+    private static final float OUT_OF_VIEW_PENALTY = 1000000f;     // added to priority of chunks outside the frustum
+    private static final long REPRIORITIZE_INTERVAL = 250000000L;  // in ns, min time between two reprioritizations of the queue
+
+    private final PriorityBlockingQueue<SceneryChunk> queue;        // chunks waiting to be generated
+    private final ConcurrentLinkedQueue<SceneryChunk> completed;    // chunks generated, waiting to be finished
+    private final Array<SceneryChunk> tmpChunks;
+    private final BoundingBox modelBounds;
+    private final Vector3 lastPosition = new Vector3();            // camera at the last reprioritization
+    private final Vector3 lastDirection = new Vector3();
+    private long lastReprioritizeTime;
+    private Thread[] workers;
+    private volatile boolean running;
+
+    private static class PriorityComparator implements Comparator<SceneryChunk> {
+        @Override
+        public int compare(SceneryChunk o1, SceneryChunk o2) {
+            return Float.compare(o1.priority, o2.priority);
+        }
+    }
+
+    public SceneryChunkLoader(BoundingBox modelBounds) {
+        this.modelBounds = modelBounds;
+        queue = new PriorityBlockingQueue<>(256, new PriorityComparator());
+        completed = new ConcurrentLinkedQueue<>();
+        tmpChunks = new Array<>();
+
+        if(Settings.asyncSceneryGeneration) {
+            running = true;
+            int numWorkers = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);   // leave a core for the render thread
+            workers = new Thread[numWorkers];
+            for (int i = 0; i < numWorkers; i++) {
+                workers[i] = new Thread(this::work, "scenery-worker-" + i);
+                workers[i].setDaemon(true);
+                workers[i].start();
+            }
+            Gdx.app.log("SceneryChunkLoader", "worker threads: " + numWorkers);
+        }
+    }
+
+    // worker thread loop
+    private void work() {
+        while (running) {
+            try {
+                SceneryChunk chunk = queue.take();      // blocks until a chunk is available
+                chunk.generate();
+                completed.add(chunk);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // queue a new chunk for generation
+    public void request(SceneryChunk chunk, Camera cam) {
+        setPriority(chunk, cam);
+        queue.add(chunk);
+    }
+
+    // Remove a chunk that is still waiting from the queue, e.g. because it went out of range.
+    // Returns false if the chunk is not waiting (anymore), i.e. it is being generated or has been generated.
+    public boolean cancel(SceneryChunk chunk) {
+        return queue.remove(chunk);
+    }
+
+    // Recalculate the priorities of the chunks that are still waiting, if the camera has moved or turned since the last time.
+    // Can be called every frame: re-queueing all chunks is O(n log n), so it is done at most every REPRIORITIZE_INTERVAL.
+    public void reprioritize(Camera cam) {
+        if(queue.isEmpty())
+            return;
+        long now = System.nanoTime();
+        if(now - lastReprioritizeTime < REPRIORITIZE_INTERVAL)
+            return;
+        if(cam.position.epsilonEquals(lastPosition, Settings.cameraMoveEpsilon) && cam.direction.epsilonEquals(lastDirection, Settings.cameraTurnEpsilon))
+            return;
+        lastReprioritizeTime = now;
+        lastPosition.set(cam.position);
+        lastDirection.set(cam.direction);
+
+        tmpChunks.clear();
+        SceneryChunk chunk;
+        while((chunk = queue.poll()) != null)
+            tmpChunks.add(chunk);
+        for(SceneryChunk waiting : tmpChunks) {
+            setPriority(waiting, cam);
+            queue.add(waiting);
+        }
+        tmpChunks.clear();
+    }
+
+    private void setPriority(SceneryChunk chunk, Camera cam) {
+        // horizontal distance to the chunk centre
+        chunk.priority = cam.position.dst(chunk.getWorldPosition().x, cam.position.y, chunk.getWorldPosition().z);
+        if(!cam.frustum.boundsInFrustum(chunk.bbox))
+            chunk.priority += OUT_OF_VIEW_PENALTY;
+    }
+
+    // To be called from the render thread once per frame.
+    // Finishes generated chunks until the time budget is used up, the chunks that became ready are added to readyChunks.
+    public int update(Terrain terrain, Array<SceneryChunk> readyChunks) {
+        long startTime = System.nanoTime();
+        long budget = (long)(Settings.sceneryGenerationBudget * 1000000f);     // ms to ns
+        int count = 0;
+        while(true) {
+            SceneryChunk chunk;
+            if(workers != null)
+                chunk = completed.poll();
+            else {
+                chunk = queue.poll();
+                if(chunk != null)
+                    chunk.generate();
+            }
+            if(chunk == null)
+                break;
+            chunk.finish(terrain.getHeightField(), modelBounds);
+            readyChunks.add(chunk);
+            count++;
+            if(System.nanoTime() - startTime > budget)    // always finish at least one chunk per frame
+                break;
+        }
+        return count;
+    }
+
+    public int getPendingCount() {
+        return queue.size() + completed.size();
+    }
+
+    @Override
+    public void dispose() {
+        running = false;
+        if(workers != null) {
+            for (Thread worker : workers)
+                worker.interrupt();
+            workers = null;
+        }
+        queue.clear();
+        completed.clear();
+    }
+}
@@ -0,0 +1,322 @@
+package com.monstrous.impostors.scenery;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.math.collision.BoundingBox;
+import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.LongMap;
+import com.monstrous.impostors.Settings;
+import com.monstrous.impostors.terrain.TerrainChunk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+
+
+// Persistent on-disk cache of finished scenery chunks (desktop only).
+//
+// Chunks are grouped in region files of REGION_SIZE x REGION_SIZE chunks. Each region file has the layout:
+//      header:   magic, format version, hash of the generation parameters, nr of types (32 bytes)
+//      index:    per chunk of the region (offset, length) of its data, offset 0 means not stored (8 bytes per chunk)
+//      data:     serialized chunks (see SceneryChunk.write()), appended as they are generated
+//
+// The header and index are memory mapped, the chunk data is read with a positional read into a reused buffer, so
+// loading a chunk that was stored before, e.g. after a restart or after it was evicted, is one read call.
+// Chunks are serialized on the calling thread (their instance arrays may be recycled after eviction), but written to
+// the file on a writer thread, so the render thread doesn't wait for the disk. A chunk that is loaded before its write
+// has completed is a miss and is generated again. Chunks that are already in the index are not written again, so the
+// files only grow by new chunks.
+// The lock only guards the open regions and their index, the writer thread holds it to reserve space and to update the
+// index but not while it writes the data, so a load on the render thread doesn't wait for a write. A region that is
+// being written to is not closed.
+// At most MAX_OPEN_REGIONS region files are open, when another one is needed the least recently used one is closed.
+// If the generation parameters (world seed, separation distance, type bias, placement mode, terrain settings) change, the parameter
+// hash doesn't match anymore and the region file is cleared when it is opened.
+
+
+public class SceneryChunkStore implements Disposable {
+    private static final int MAGIC = 0x534E4348;            // "SNCH"
+    private static final int VERSION = 2;                 // 2: chunks assembled from pattern pieces
+    private static final int REGION_SIZE = 32;              // chunks per region file per axis
+    private static final int HEADER_SIZE = 32;
+    private static final int INDEX_SIZE = REGION_SIZE * REGION_SIZE * 8;
+    private static final int MAX_OPEN_REGIONS = 16;
+
+    private static class Region {
+        long key;
+        RandomAccessFile file;
+        FileChannel channel;
+        MappedByteBuffer index;     // header and index
+        long fileSize;
+        long lastUsed;              // for closing the least recently used region
+        boolean writing;            // data is being written outside the lock, don't close
+    }
+
+    // serialized chunk waiting for the writer thread
+    private static class PendingWrite {
+        final int cx, cz;
+        final ByteBuffer data;
+
+        PendingWrite(int cx, int cz, ByteBuffer data) {
+            this.cx = cx;
+            this.cz = cz;
+            this.data = data;
+        }
+    }
+    private static final PendingWrite STOP = new PendingWrite(0, 0, null);
+
+    private final File directory;
+    private final long paramsHash;
+    private final int numTypes;
+    private final BoundingBox modelBounds;
+    private final LongMap<Region> regions;                  // open regions and their index, guarded by this
+    private final LinkedBlockingQueue<PendingWrite> writeQueue;
+    private final Thread writer;
+    private ByteBuffer readBuffer;
+    private long useCounter;
+    private volatile boolean enabled;
+    public int hits;
+    public int misses;
+    public volatile int writes;
+
+    public SceneryChunkStore(File directory, int numTypes, float[] bias, float separationDistance, BoundingBox modelBounds) {
+        this.directory = directory;
+        this.numTypes = numTypes;
+        this.modelBounds = modelBounds;
+        regions = new LongMap<>();
+        readBuffer = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+        writeQueue = new LinkedBlockingQueue<>();
+
+        // everything that affects the content of a chunk goes into the hash
+        long h = Settings.worldSeed;
+        h = 31 * h + numTypes;
+        h = 31 * h + Float.floatToIntBits(separationDistance);
+        for(int t = 0; t < numTypes; t++)
+            h = 31 * h + Float.floatToIntBits(bias[t]);
+        h = 31 * h + Float.floatToIntBits(SceneryChunk.CHUNK_SIZE);
+        h = 31 * h + Float.floatToIntBits(Settings.terrainChunkSize);
+        h = 31 * h + Float.floatToIntBits(TerrainChunk.AMPLITUDE);
+        h = 31 * h + Float.floatToIntBits(TerrainChunk.GRID_SCALE);
+        h = 31 * h + TerrainChunk.MAP_SIZE;
+        h = 31 * h + (Settings.sceneryPoissonPatterns ? Settings.sceneryPatternColours : 0);
+        paramsHash = h;
+
+        enabled = directory.isDirectory() || directory.mkdirs();
+        if(!enabled)
+            Gdx.app.error("SceneryChunkStore", "cannot create directory " + directory);
+
+        writer = new Thread(this::writeLoop, "scenery-store-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Fill the chunk from the store if it was stored before. Returns true if the chunk is now ready.
+    public synchronized boolean load(SceneryChunk chunk) {
+        Region region = getRegion(chunk.cx, chunk.cz);
+        if(region == null)
+            return false;
+        int entry = HEADER_SIZE + 8 * slot(chunk.cx, chunk.cz);
+        int offset = region.index.getInt(entry);
+        int length = region.index.getInt(entry + 4);
+        if(offset == 0) {
+            misses++;
+            return false;
+        }
+        if(readBuffer.capacity() < length)
+            readBuffer = ByteBuffer.allocate(Math.max(length, 2 * readBuffer.capacity())).order(ByteOrder.LITTLE_ENDIAN);
+        readBuffer.clear();
+        readBuffer.limit(length);
+        try {
+            while(readBuffer.hasRemaining()) {
+                if(region.channel.read(readBuffer, offset + readBuffer.position()) < 0)
+                    throw new IOException("unexpected end of file");
+            }
+        } catch (IOException e) {
+            Gdx.app.error("SceneryChunkStore", "cannot read region file: " + e.getMessage());
+            misses++;
+            return false;
+        }
+        chunk.read(readBuffer, 0, modelBounds);
+        hits++;
+        return true;
+    }
+
+    // Store a chunk that just became ready. The chunk is serialized now and written to the file on the writer thread.
+    // Nothing is done if the chunk is already stored.
+    public void save(SceneryChunk chunk) {
+        if(!enabled || isStored(chunk.cx, chunk.cz))
+            return;
+        ByteBuffer data = ByteBuffer.allocate(chunk.getSerializedSize()).order(ByteOrder.LITTLE_ENDIAN);
+        chunk.write(data);
+        data.flip();
+        writeQueue.add(new PendingWrite(chunk.cx, chunk.cz, data));
+    }
+
+    // writer thread loop
+    private void writeLoop() {
+        while(true) {
+            PendingWrite pending;
+            try {
+                pending = writeQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if(pending == STOP)
+                return;
+            write(pending);
+        }
+    }
+
+    // true if chunk (cx, cz) is in the index
+    private synchronized boolean isStored(int cx, int cz) {
+        Region region = getRegion(cx, cz);
+        return region != null && region.index.getInt(HEADER_SIZE + 8 * slot(cx, cz)) != 0;
+    }
+
+    // called on the writer thread, the data is written without holding the lock
+    private void write(PendingWrite pending) {
+        ByteBuffer data = pending.data;
+        int length = data.remaining();
+        int entry = HEADER_SIZE + 8 * slot(pending.cx, pending.cz);
+        Region region;
+        long offset;
+        synchronized (this) {
+            region = getRegion(pending.cx, pending.cz);
+            if(region == null || region.index.getInt(entry) != 0)     // e.g. regenerated after eviction before the first write
+                return;
+            offset = region.fileSize;
+            region.writing = true;
+        }
+
+        boolean written = true;
+        try {
+            while(data.hasRemaining())
+                region.channel.write(data, offset + data.position());
+        } catch (IOException e) {
+            Gdx.app.error("SceneryChunkStore", "cannot write region file: " + e.getMessage());
+            written = false;
+        }
+
+        synchronized (this) {
+            region.writing = false;
+            if(!written)
+                return;
+            region.fileSize += length;
+            // update the index only after the data is written
+            region.index.putInt(entry, (int) offset);
+            region.index.putInt(entry + 4, length);
+            writes++;
+        }
+    }
+
+    // number of chunks waiting to be written
+    public int getPendingWrites() {
+        return writeQueue.size();
+    }
+
+    private static int slot(int cx, int cz) {
+        return Math.floorMod(cz, REGION_SIZE) * REGION_SIZE + Math.floorMod(cx, REGION_SIZE);
+    }
+
+    // region of chunk (cx, cz), opened if needed. Call with the lock held.
+    private Region getRegion(int cx, int cz) {
+        if(!enabled)
+            return null;
+        int rx = Math.floorDiv(cx, REGION_SIZE);
+        int rz = Math.floorDiv(cz, REGION_SIZE);
+        long key = ((long)rx << 32) | (rz & 0xFFFFFFFFL);
+        Region region = regions.get(key);
+        if(region == null) {
+            if(regions.size >= MAX_OPEN_REGIONS)
+                closeLeastRecentlyUsed();
+            region = openRegion(rx, rz);
+            if(region == null)
+                return null;
+            region.key = key;
+            regions.put(key, region);
+        }
+        region.lastUsed = ++useCounter;
+        return region;
+    }
+
+    private void closeLeastRecentlyUsed() {
+        Region oldest = null;
+        for(Region region : regions.values()) {
+            if(region.writing)
+                continue;
+            if(oldest == null || region.lastUsed < oldest.lastUsed)
+                oldest = region;
+        }
+        if(oldest != null) {
+            regions.remove(oldest.key);
+            close(oldest);
+        }
+    }
+
+    private Region openRegion(int rx, int rz) {
+        File file = new File(directory, "r." + rx + "." + rz + ".bin");
+        Region region = new Region();
+        try {
+            region.file = new RandomAccessFile(file, "rw");
+            region.channel = region.file.getChannel();
+            boolean valid = false;
+            if(region.file.length() >= HEADER_SIZE + INDEX_SIZE) {
+                ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+                region.channel.read(header, 0);
+                valid = header.getInt(0) == MAGIC && header.getInt(4) == VERSION && header.getLong(8) == paramsHash;
+            }
+            if(!valid) {
+                // new file or generated with other parameters: start afresh
+                region.file.setLength(0);
+                region.file.setLength(HEADER_SIZE + INDEX_SIZE);      // index is zero filled
+            }
+            region.index = region.channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + INDEX_SIZE);
+            region.index.order(ByteOrder.LITTLE_ENDIAN);
+            if(!valid) {
+                region.index.putInt(0, MAGIC);
+                region.index.putInt(4, VERSION);
+                region.index.putLong(8, paramsHash);
+                region.index.putInt(16, numTypes);
+            }
+            region.fileSize = region.file.length();
+            return region;
+        } catch (IOException e) {
+            Gdx.app.error("SceneryChunkStore", "cannot open " + file + ": " + e.getMessage() + ", disabling disk cache");
+            enabled = false;
+            return null;
+        }
+    }
+
+    private static void close(Region region) {
+        try {
+            region.index.force();
+            region.channel.close();
+            region.file.close();
+        } catch (IOException e) {
+            Gdx.app.error("SceneryChunkStore", "error closing region file: " + e.getMessage());
+        }
+    }
+
+    private synchronized void closeAll() {
+        for(Region region : regions.values())
+            close(region);
+        regions.clear();
+    }
+
+    // writes the chunks that are still pending, then closes the files
+    @Override
+    public void dispose() {
+        writeQueue.add(STOP);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeAll();
+        Gdx.app.log("SceneryChunkStore", "hits: " + hits + " misses: " + misses + " writes: " + writes);
+    }
+}
@@ -3,19 +3,22 @@ package com.monstrous.impostors.scenery;
 import com.badlogic.gdx.Gdx;
 import com.badlogic.gdx.graphics.*;
 import com.badlogic.gdx.math.*;
+import com.badlogic.gdx.math.collision.BoundingBox;
 import com.badlogic.gdx.utils.Array;
 import com.badlogic.gdx.utils.Disposable;
 import com.monstrous.impostors.Settings;
 import com.monstrous.impostors.terrain.Terrain;
+import com.monstrous.impostors.utils.ChunkGrid;
+import com.monstrous.impostors.utils.DiscDelta;
 
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 
 // Class to manage scenery chunks for a finite or infinite area.
 // Creates chunks as needed depending on the camera position and direction.
-// Returns list of visible chunks sorted by distance.
+// New chunks are generated in the background (see SceneryChunkLoader) and are only used once they are ready.
+// Chunks hidden behind the terrain are removed from the visible chunks (see SceneryOcclusionCuller).
+// Returns the visible chunks binned per LOD level, optionally ordered front to back in coarse distance buckets.
 
 
 
@@ -26,40 +29,62 @@ public class SceneryChunks implements Disposable {
     private final int numTypes;
     private float[] bias;
     private final float separationDistance;
-    final Map<Integer, SceneryChunk> chunks;        // map of scenery chunk per grid point
-    private final Array<SceneryChunk> chunksInRange;
+    final ChunkGrid<SceneryChunk> chunks;           // scenery chunk per grid point
+    private final Array<SceneryChunk> chunksInRange;          // unordered, chunk.rangeIndex is the index in this array
     private final Array<SceneryChunk> visibleChunks;
+    private final Array<SceneryChunk>[] lodBins;            // visible chunks per LOD level (last one for impostors)
+    private final Array<SceneryChunk>[][] distanceBuckets;  // per LOD level, coarse distance buckets for front to back order
+    private final Array<SceneryChunk> allChunks;
+    private final Array<SceneryChunk> readyChunks;
+    private final SceneryChunkLoader loader;
+    private final SceneryChunkCache cache;
+    private final SceneryQuadtree quadtree;
+    private final SceneryChunkStore store;                  // on-disk cache, null if disabled
+    private final SceneryOcclusionCuller occlusionCuller;
+    private final BoundingBox modelBounds;
     private int timeCounter;                                // used as timestamp for chunk creation time
     int lastCameraChange;                                   // time stamp of last camera change
-    private final ChunkComparator comparator;
     private GridPoint2 min, max;
     private GridPoint2 centre = new GridPoint2();
-    private GridPoint2 gp = new GridPoint2();
+    private final DiscDelta rangeDisc;
+    private final DiscDelta.CellVisitor enterRange = this::enterRange;
+    private final DiscDelta.CellVisitor leaveRange = this::leaveRange;
+    private PerspectiveCamera updateCam;                    // camera of the update in progress
     private GridPoint2 prevCentre = new GridPoint2(Integer.MAX_VALUE,Integer.MAX_VALUE);
     private PerspectiveCamera prevCam = new PerspectiveCamera();
-
-    private class ChunkComparator implements Comparator<SceneryChunk> {
-
-        @Override
-        public int compare(SceneryChunk o1, SceneryChunk o2) {
-
-            // sort in ascending order of distance
-            return (int)(o1.distance - o2.distance);
-        }
-    }
+    private float[] lodDistances = Settings.lodDistances;  // distances from which to use the next LOD level
 
     // if worldSize <= 0 it means infinite terrain.
+    // modelBounds should enclose every scenery model (relative to the model origin), it is used for the chunk bounding boxes.
 
-    public SceneryChunks(float worldSize, Terrain terrain, int numTypes, float[] bias, float separationDistance ) {
+    public SceneryChunks(float worldSize, Terrain terrain, int numTypes, float[] bias, float separationDistance, BoundingBox modelBounds ) {
         this.terrain = terrain;
         this.numTypes = numTypes;
         this.bias = bias;
         this.separationDistance = separationDistance;
-        comparator = new ChunkComparator();
+        this.modelBounds = modelBounds;
 
-        chunks = new HashMap<>();
+        chunks = new ChunkGrid<>(2*RANGE+1);
         chunksInRange = new Array<>();
+        rangeDisc = new DiscDelta(RANGE);
         visibleChunks = new Array<>();
+        lodBins = new Array[Settings.LOD_LEVELS+1];
+        distanceBuckets = new Array[Settings.LOD_LEVELS+1][Settings.sceneryDistanceBuckets];
+        for(int lod = 0; lod < Settings.LOD_LEVELS+1; lod++) {
+            lodBins[lod] = new Array<>();
+            for(int b = 0; b < Settings.sceneryDistanceBuckets; b++)
+                distanceBuckets[lod][b] = new Array<>();
+        }
+        allChunks = new Array<>();
+        readyChunks = new Array<>();
+        loader = new SceneryChunkLoader(modelBounds);
+        cache = new SceneryChunkCache();
+        quadtree = new SceneryQuadtree(chunks, RANGE);
+        if(Settings.sceneryDiskCache)
+            store = new SceneryChunkStore(Gdx.files.local(Settings.sceneryDiskCacheFolder).file(), numTypes, bias, separationDistance, modelBounds);
+        else
+            store = null;
+        occlusionCuller = new SceneryOcclusionCuller(terrain, Settings.occlusionBufferWidth, Settings.occlusionBufferHeight);
         timeCounter = 0;
 
         if(worldSize > 0){
@@ -72,20 +97,52 @@ public class SceneryChunks implements Disposable {
     }
 
 
+    SceneryOcclusionCuller getOcclusionCuller(){
+        return occlusionCuller;
+    }
+
+    // set the distances from which chunks use the next LOD level, by default Settings.lodDistances
+    public void setLodDistances(float[] lodDistances){
+        this.lodDistances = lodDistances;
+    }
+
+    // all visible chunks, in no particular order
     public Array<SceneryChunk> getVisibleChunks(){
         return visibleChunks;
     }
 
-    public void update(PerspectiveCamera cam, boolean forceUpdate){
+    // visible chunks at this LOD level (Settings.LOD_LEVELS for impostors)
+    public Array<SceneryChunk> getVisibleChunks(int lodLevel){
+        return lodBins[lodLevel];
+    }
+
+    // returns true if the visible chunks may have changed, false if they are guaranteed to be the same as after the previous call
+    public boolean update(PerspectiveCamera cam, boolean forceUpdate){
         timeCounter++;
 
+        // finish chunks that were generated in the background, this can change the set of visible chunks
+        readyChunks.clear();
+        int numReady = loader.update(terrain, readyChunks);
+        for(SceneryChunk chunk : readyChunks) {
+            if(store != null)
+                store.save(chunk);
+            cache.add(chunk);
+            if(chunk.inRange)
+                quadtree.add(chunk);
+        }
+
+        // camera movements below the epsilons are ignored, they accumulate until they exceed an epsilon because prevCam is not updated
+        boolean cameraChanged = !(cam.position.epsilonEquals(prevCam.position, Settings.cameraMoveEpsilon)
+            && cam.direction.epsilonEquals(prevCam.direction, Settings.cameraTurnEpsilon)
+            && cam.up.epsilonEquals(prevCam.up, Settings.cameraTurnEpsilon)
+            && cam.near == prevCam.near && cam.far == prevCam.far && cam.fieldOfView == prevCam.fieldOfView);
+
+        loader.reprioritize(cam);       // chunks in view and close by should be generated first (rate limited)
 
-        // quick exit if camera has not changed in position, direction or other parameters, because the instance data is then still valid
+        // quick exit if camera has not changed in position, direction or other parameters and no new chunks became ready, because the instance data is then still valid
         if(!Settings.singleInstance &&
-            !forceUpdate &&
-            cam.position.equals(prevCam.position) && cam.direction.equals(prevCam.direction)
-            && cam.up.equals(prevCam.up) && cam.near == prevCam.near && cam.far == prevCam.far && cam.fieldOfView == prevCam.fieldOfView)
-            return;
+            !forceUpdate && !cameraChanged && numReady == 0)
+            return false;
 
         lastCameraChange = timeCounter;
 
@@ -102,96 +159,202 @@ public class SceneryChunks implements Disposable {
         centre.set(px,pz);
 
 
-        // Create a list of chunks within visual range of the camera.
+        // Update the list of chunks within visual range of the camera.
         // Chunks are created if necessary.
         //
         if( !centre.equals(prevCentre) ) {  // if camera moved to new square
 
             //Gdx.app.log("location", ""+px+" , "+pz);
 
-            chunksInRange.clear();
-            for (int cx = px - RANGE; cx <= px + RANGE; cx++) {
-                for (int cz = pz - RANGE; cz <= pz + RANGE; cz++) {
-
-                    // cap to the world size if defined
-                    if(min != null){
-                        if(cx < min.x || cz < min.y || cx > max.x || cz > max.y)
-                            continue;
-                    }
-
-                    // quickly discard chunks outside a circular range
-                    gp.set(cx, cz);
-                    if (gp.dst2(centre) >= RANGE * RANGE)
-                        continue;
-
-                    Integer key = makeKey(cx, cz);
-
-                    SceneryChunk chunk = chunks.get(key);
-                    if (chunk == null) {
-                        chunk = new SceneryChunk(cx, cz, timeCounter, key, terrain, numTypes, bias, separationDistance);
-                        chunks.put(key, chunk);
-                        //Gdx.app.log("creating scenery chunk", "num chunks "+chunks.size());
-                    }
-                    chunksInRange.add(chunk);
-                }
+            chunks.setCentre(px, pz);          // slide the grid window along with the camera
+            quadtree.setCentre(px, pz);
+
+            // Only visit the cells that leave or enter the circular range, rather than rebuilding the whole range.
+            updateCam = cam;
+            if(prevCentre.x == Integer.MAX_VALUE)           // first time
+                rangeDisc.visitDisc(px, pz, enterRange);
+            else {
+                rangeDisc.visitDifference(prevCentre.x, prevCentre.y, px, pz, leaveRange);
+                rangeDisc.visitDifference(px, pz, prevCentre.x, prevCentre.y, enterRange);
             }
+            updateCam = null;
             prevCentre.set(centre);
         }
 
-        // Select chunks that are in camera frustum
+        // Select chunks that are in camera frustum (chunks still pending are not in the quadtree)
         //
         visibleChunks.clear();
-        for(SceneryChunk chunk : chunksInRange ) {
-            if (cam.frustum.boundsInFrustum(chunk.bbox)) {  // frustum culling
-                visibleChunks.add(chunk);
-                chunk.lastSeen = timeCounter;
-                chunk.distance = cam.position.dst(chunk.getWorldPosition());    // note: distance to chunk centre
-            }
-        }
-        visibleChunks.sort( comparator );   // sort closest chunk first
+        quadtree.cull(cam, px, pz, RANGE, visibleChunks, timeCounter);
+        if(Settings.occlusionCulling)
+            occlusionCuller.cull(cam, visibleChunks);
+        binChunks();
 
 //        float estimatedChunksInRange = MathUtils.ceil(MathUtils.PI * (float)Math.pow(RANGE, 2.0));
 //        float estimatedChunksInView = 1.7f * estimatedChunksInRange * cam.fieldOfView / 360f;
 //
 //                Gdx.app.log("chunks in range", ""+chunksInRange.size+" estimated: "+ estimatedChunksInRange);
 //                Gdx.app.log("chunks visible", ""+visibleChunks.size+" estimated: "+ estimatedChunksInView );
-        reaper();
+        cache.evict(chunks);     // keep memory use within budget
+        return true;
+    }
 
 
-    }
+    // Distribute the visible chunks over the LOD levels in O(n), instead of sorting them by distance.
+    // If Settings.sceneryFrontToBack is set, each LOD level is ordered front to back at the resolution of the distance buckets.
+    private void binChunks() {
+        float diagonalDistance = 0.707f * SceneryChunk.CHUNK_SIZE;        // subtract distance from corner to centre of chunk in case the camera is in corner of chunk (0.5*sqrt(2))
+        int numBuckets = Settings.sceneryFrontToBack ? Settings.sceneryDistanceBuckets : 1;
 
+        for(int lod = 0; lod < Settings.LOD_LEVELS+1; lod++) {
+            lodBins[lod].clear();
+            for(int b = 0; b < numBuckets; b++)
+                distanceBuckets[lod][b].clear();
+        }
 
-    private void reaper(){
-        if( chunks.size() > Settings.sceneryChunkCacheSize) {
-            // find the last seen chunk
-            SceneryChunk oldest = null;
-            for (SceneryChunk chunk : chunks.values()) {
-                if (oldest == null || chunk.lastSeen < oldest.lastSeen)
-                    oldest = chunk;
+        for(SceneryChunk chunk : visibleChunks) {
+            float distance = chunk.distance - diagonalDistance;
+            int level = determineLODlevel(distance);
+            chunk.setLodLevel(level);
+            if(numBuckets == 1) {
+                lodBins[level].add(chunk);
+                continue;
             }
-            // now remove this chunk
-            if (oldest != null) {
-                int before = chunks.size();
-                chunks.remove(oldest.key);
-                oldest.dispose();
-                oldest = null;
-                Gdx.app.log("deleting scenery chunk", "num chunks " + chunks.size() + " before: " + before);
+            // distance band of this LOD level
+            float near = level == 0 ? 0 : lodDistances[level-1];
+            float far = level < Settings.LOD_LEVELS ? lodDistances[level] : RANGE * SceneryChunk.CHUNK_SIZE;
+            int bucket = (int)(numBuckets * (distance - near) / (far - near));
+            bucket = MathUtils.clamp(bucket, 0, numBuckets-1);
+            distanceBuckets[level][bucket].add(chunk);
+        }
+
+        if(numBuckets > 1) {
+            for (int lod = 0; lod < Settings.LOD_LEVELS + 1; lod++)
+                for (int b = 0; b < numBuckets; b++)
+                    lodBins[lod].addAll(distanceBuckets[lod][b]);
+        }
+    }
+
+    private int determineLODlevel( float distance ){
+        // allocate this chunk to one of the LOD levels depending on the distance
+
+        for(int lod = Settings.LOD_LEVELS-1; lod >= 0; lod--) {
+            if (distance >= lodDistances[lod]   )        // optimized: most common case first
+                return lod+1;
+        }
+        return 0;       // LOD level 0, highest poly count
+    }
+
+    // Generate all missing chunks in the region (in world units, x and z) in one go, e.g. to warm up an area at load time.
+    // The instance placement is spread over all cores, the terrain heights are added on the calling (render) thread.
+    // As every chunk has its own random stream, the result is identical to generating the chunks one by one.
+    // Returns the number of chunks generated.
+    public int pregenerate(Rectangle region) {
+        long startTime = System.currentTimeMillis();
+        int x0 = MathUtils.floor(region.x / SceneryChunk.CHUNK_SIZE);
+        int z0 = MathUtils.floor(region.y / SceneryChunk.CHUNK_SIZE);
+        int x1 = MathUtils.floor((region.x + region.width) / SceneryChunk.CHUNK_SIZE);
+        int z1 = MathUtils.floor((region.y + region.height) / SceneryChunk.CHUNK_SIZE);
+
+        Array<SceneryChunk> newChunks = new Array<>(false, (x1-x0+1)*(z1-z0+1), SceneryChunk.class);
+        int numLoaded = 0;
+        for (int cz = z0; cz <= z1; cz++) {
+            for (int cx = x0; cx <= x1; cx++) {
+                if(min != null && (cx < min.x || cz < min.y || cx > max.x || cz > max.y))
+                    continue;
+                if(chunks.get(cx, cz) != null)
+                    continue;
+                SceneryChunk chunk = new SceneryChunk(cx, cz, timeCounter, numTypes, bias, separationDistance);
+                chunks.put(cx, cz, chunk);
+                if(store != null && store.load(chunk)) {
+                    cache.add(chunk);       // stored by a previous run
+                    numLoaded++;
+                    continue;
+                }
+                newChunks.add(chunk);
             }
         }
+
+        if(Settings.asyncSceneryGeneration)
+            Arrays.stream(newChunks.items, 0, newChunks.size).parallel().forEach(SceneryChunk::generate);
+        else {
+            for (SceneryChunk chunk : newChunks)
+                chunk.generate();
+        }
+
+        for (SceneryChunk chunk : newChunks) {
+            chunk.finish(terrain.getHeightField(), modelBounds);
+            if(store != null)
+                store.save(chunk);
+            cache.add(chunk);       // not in range yet, so becomes a candidate for eviction until the camera gets near
+        }
+        Gdx.app.log("pregenerate scenery", "generated: " + newChunks.size + " loaded: " + numLoaded + " time: " + (System.currentTimeMillis() - startTime) + " ms");
+        return newChunks.size + numLoaded;
     }
 
-    // convert chunk (X,Y) to a single integer for easy use as a key in the hash map
-    private int makeKey(int cx, int cz) {
-        return cx + 1000 * cz;
+    // cell (cx, cz) has come into range
+    private void enterRange(int cx, int cz) {
+        // cap to the world size if defined
+        if(min != null){
+            if(cx < min.x || cz < min.y || cx > max.x || cz > max.y)
+                return;
+        }
+
+        SceneryChunk chunk = chunks.get(cx, cz);
+        if (chunk == null) {
+            chunk = new SceneryChunk(cx, cz, timeCounter, numTypes, bias, separationDistance);
+            chunks.put(cx, cz, chunk);
+            if(store != null && store.load(chunk))
+                cache.add(chunk);                   // read from disk, no need to generate it
+            else
+                loader.request(chunk, updateCam);     // chunk will be generated in the background
+            //Gdx.app.log("creating scenery chunk", "num chunks "+chunks.size());
+        }
+        chunk.inRange = true;
+        cache.retain(chunk);                // chunk in use, so it cannot be evicted
+        if(chunk.isReady())
+            quadtree.add(chunk);
+        chunk.rangeIndex = chunksInRange.size;
+        chunksInRange.add(chunk);
     }
 
+    // cell (cx, cz) has gone out of range
+    private void leaveRange(int cx, int cz) {
+        SceneryChunk chunk = chunks.get(cx, cz);
+        if(chunk == null || !chunk.inRange)     // e.g. outside world size
+            return;
+
+        // remove from chunksInRange by moving the last chunk into its place
+        SceneryChunk last = chunksInRange.pop();
+        if(last != chunk) {
+            chunksInRange.set(chunk.rangeIndex, last);
+            last.rangeIndex = chunk.rangeIndex;
+        }
+        chunk.rangeIndex = -1;
+        chunk.inRange = false;
+        if(loader.cancel(chunk)) {
+            // not generated yet, so drop it: it is requested again if it comes back into range
+            chunks.remove(cx, cz);
+            return;
+        }
+        if(chunk.isReady()) {
+            quadtree.remove(chunk);
+            cache.release(chunk);           // chunk becomes a candidate for eviction
+        }
+    }
 
     @Override
     public void dispose() {
-        for(SceneryChunk chunk : chunks.values())
+        loader.dispose();
+        if(store != null)
+            store.dispose();
+        for(SceneryChunk chunk : chunks.values(allChunks))
             chunk.dispose();
         chunks.clear();
+        allChunks.clear();
+        cache.clear();
         chunksInRange.clear();
         visibleChunks.clear();
+        for(Array<SceneryChunk> bin : lodBins)
+            bin.clear();
     }
 }
@@ -5,6 +5,7 @@ import com.badlogic.gdx.graphics.Texture;
 import com.badlogic.gdx.graphics.g2d.SpriteBatch;
 import com.badlogic.gdx.graphics.g2d.TextureRegion;
 import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.utils.Array;
 import com.monstrous.impostors.Settings;
 import com.monstrous.impostors.terrain.Terrain;
 import com.monstrous.impostors.terrain.TerrainChunk;
@@ -59,6 +60,7 @@ public class SceneryDebug {
 
 
     private Vector3 pos = new Vector3();
+    private Array<SceneryChunk> allChunks = new Array<>();
 
     public void debugRender(Vector3 playerPos, Vector3 camPos) {
         if(!Settings.debugSceneryChunkAllocation)
@@ -66,7 +68,7 @@ public class SceneryDebug {
 
         int size = SIZE;  // pixels per chunk
         batch.begin();
-        for(SceneryChunk chunk : scenery.sceneryChunks.chunks.values() ) {
+        for(SceneryChunk chunk : scenery.sceneryChunks.chunks.values(allChunks) ) {
             pos.set(chunk.getWorldPosition());
             pos.x /=SceneryChunk.CHUNK_SIZE;
             pos.z /=SceneryChunk.CHUNK_SIZE;
@@ -0,0 +1,213 @@
+package com.monstrous.impostors.scenery;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.Camera;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.Disposable;
+import com.monstrous.impostors.Settings;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+// Frustum tests and LOD classification of the individual instances of nearby chunks, split over multiple cores.
+//
+// The chunks are divided in segments of a fixed number of consecutive chunks. Each segment is classified by one task
+// on a fork-join pool and writes to its own output per type and LOD level, so no locking is needed.
+// Afterwards the outputs are appended to the LOD models in segment order on the render thread.
+// As the segments don't depend on the number of threads, the result is identical to classifying the chunks one by one
+// in order, whatever the number of threads.
+// If Settings.parallelInstanceCulling is false (e.g. on web), the segments are classified on the render thread.
+// InstanceCullingBenchmark in the lwjgl3 module measures the scaling with the number of threads.
+
+
+public class SceneryInstanceClassifier implements Disposable {
+
+    private static final int SEGMENT_CHUNKS = 4;        // nr of consecutive chunks per segment
+    private static final int MIN_SPLIT = 2;             // don't split a task below this nr of segments
+
+    // classified instances of a range of chunks
+    private static class Segment {
+        final float[][][] data;     // per type and LOD level: packed x, y, z, rotY per instance
+        final int[][] counts;       // per type and LOD level
+        final Vector3 tmpPos = new Vector3();
+
+        Segment(int numTypes, int levels) {
+            data = new float[numTypes][levels][];
+            counts = new int[numTypes][levels];
+            for(int t = 0; t < numTypes; t++)
+                for(int lod = 0; lod < levels; lod++)
+                    data[t][lod] = new float[64 * SceneryChunk.FLOATS_PER_INSTANCE];
+        }
+
+        void add(int type, int level, float x, float y, float z, float rotY) {
+            float[] d = data[type][level];
+            int offset = counts[type][level] * SceneryChunk.FLOATS_PER_INSTANCE;
+            if(offset + SceneryChunk.FLOATS_PER_INSTANCE > d.length) {
+                float[] larger = new float[2 * d.length];
+                System.arraycopy(d, 0, larger, 0, offset);
+                data[type][level] = larger;
+                d = larger;
+            }
+            d[offset] = x;
+            d[offset+1] = y;
+            d[offset+2] = z;
+            d[offset+3] = rotY;
+            counts[type][level]++;
+        }
+    }
+
+    private class ClassifyTask extends RecursiveAction {
+        final int first, last;      // range of segments
+
+        ClassifyTask(int first, int last) {
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        protected void compute() {
+            if(last - first <= MIN_SPLIT) {
+                for(int s = first; s < last; s++)
+                    classifySegment(s);
+                return;
+            }
+            int mid = (first + last) >>> 1;
+            invokeAll(new ClassifyTask(first, mid), new ClassifyTask(mid, last));
+        }
+    }
+
+    private final Array<LodModel> lodModels;
+    private final int levels;
+    private final Array<Segment> segments;
+    private final Array<SceneryChunk> chunks;           // chunks to classify, in order
+    private final ForkJoinPool pool;
+    private int numSegments;
+    private Camera cam;
+
+    public SceneryInstanceClassifier(Array<LodModel> lodModels) {
+        this.lodModels = lodModels;
+        levels = Settings.LOD_LEVELS + 1;
+        segments = new Array<>();
+        chunks = new Array<>();
+        if(Settings.parallelInstanceCulling && Settings.instanceCullingThreads > 1) {
+            pool = new ForkJoinPool(Settings.instanceCullingThreads);
+            Gdx.app.log("SceneryInstanceClassifier", "threads: " + Settings.instanceCullingThreads);
+        }
+        else
+            pool = null;
+    }
+
+    public void begin() {
+        chunks.clear();
+    }
+
+    // chunk of which the instances should be classified individually
+    public void addChunk(SceneryChunk chunk) {
+        chunks.add(chunk);
+    }
+
+    // classify the instances of all chunks that were added and append them to the LOD models
+    public void end(Camera cam) {
+        this.cam = cam;
+        classifyAll(pool);
+
+        // concatenate in segment order
+        for(int s = 0; s < numSegments; s++) {
+            Segment segment = segments.get(s);
+            for(int type = 0; type < lodModels.size; type++) {
+                LodModel lodModel = lodModels.get(type);
+                for(int lod = 0; lod < levels; lod++) {
+                    if(segment.counts[type][lod] > 0)
+                        lodModel.addInstances(lod, segment.data[type][lod], segment.counts[type][lod]);
+                }
+            }
+        }
+        this.cam = null;
+    }
+
+    public int getChunkCount() {
+        return chunks.size;
+    }
+
+    // Classify the instances of the chunks that were added without appending them to the LOD models, using the given pool
+    // (null for the calling thread), e.g. to time the classification. checksum() identifies the result.
+    public void classify(Camera cam, ForkJoinPool pool) {
+        this.cam = cam;
+        classifyAll(pool);
+        this.cam = null;
+    }
+
+    // classify all chunks into the segments, using the pool if there is one
+    private void classifyAll(ForkJoinPool pool) {
+        numSegments = (chunks.size + SEGMENT_CHUNKS - 1) / SEGMENT_CHUNKS;
+        while(segments.size < numSegments)
+            segments.add(new Segment(lodModels.size, levels));
+
+        if(pool != null && numSegments > MIN_SPLIT)
+            pool.invoke(new ClassifyTask(0, numSegments));
+        else {
+            for (int s = 0; s < numSegments; s++)
+                classifySegment(s);
+        }
+    }
+
+    // hash of the classified instances in segment order
+    public long checksum() {
+        long h = numSegments;
+        for(int s = 0; s < numSegments; s++) {
+            Segment segment = segments.get(s);
+            for(int type = 0; type < lodModels.size; type++) {
+                for(int lod = 0; lod < levels; lod++) {
+                    int count = segment.counts[type][lod];
+                    h = 31 * h + count;
+                    float[] data = segment.data[type][lod];
+                    for(int i = 0; i < count * SceneryChunk.FLOATS_PER_INSTANCE; i++)
+                        h = 31 * h + Float.floatToIntBits(data[i]);
+                }
+            }
+        }
+        return h;
+    }
+
+    private void classifySegment(int s) {
+        Segment segment = segments.get(s);
+        for(int type = 0; type < lodModels.size; type++)
+            for(int lod = 0; lod < levels; lod++)
+                segment.counts[type][lod] = 0;
+
+        int end = Math.min(chunks.size, (s+1) * SEGMENT_CHUNKS);
+        for(int c = s * SEGMENT_CHUNKS; c < end; c++) {
+            SceneryChunk chunk = chunks.get(c);
+            for(int type = 0; type < lodModels.size; type++)
+                classify(segment, type, lodModels.get(type), chunk.getInstanceData(type), chunk.getInstanceCount(type));
+        }
+    }
+
+    // per instance frustum test (with some margin to prevent popping) and LOD level from distance to camera
+    private void classify(Segment segment, int type, LodModel lodModel, float[] instanceData, int count) {
+        Vector3 tmpPos = segment.tmpPos;
+        Vector3 modelCentre = lodModel.getModelCentre();
+        float radius = lodModel.getRadius();
+        for(int i = 0; i < count; i++){
+            int offset = i * SceneryChunk.FLOATS_PER_INSTANCE;
+            float x = instanceData[offset];
+            float y = instanceData[offset+1];
+            float z = instanceData[offset+2];
+
+            tmpPos.set( x, y, z ).add(modelCentre);
+            if(cam.frustum.sphereInFrustum(tmpPos, radius)) {
+                float distance = cam.position.dst(tmpPos);
+                int level = lodModel.determineLODlevel(distance);
+                segment.add(type, level, x, y, z, instanceData[offset+3]);
+            }
+        }
+    }
+
+    @Override
+    public void dispose() {
+        if(pool != null)
+            pool.shutdown();
+    }
+}
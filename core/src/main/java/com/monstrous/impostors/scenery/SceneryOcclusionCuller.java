@@ -0,0 +1,396 @@
+package com.monstrous.impostors.scenery;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.PerspectiveCamera;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.collision.BoundingBox;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.LongMap;
+import com.monstrous.impostors.Settings;
+import com.monstrous.impostors.terrain.HeightField;
+import com.monstrous.impostors.terrain.HeightTile;
+import com.monstrous.impostors.terrain.Terrain;
+import com.monstrous.impostors.terrain.TerrainChunk;
+import com.monstrous.impostors.utils.BenchmarkPath;
+
+
+// Software occlusion culling of scenery chunks behind the terrain, on the CPU.
+//
+// The terrain chunks around the camera are rasterized at a coarse resolution (see HeightTile.getOccluderHeights())
+// into a small depth buffer of NDC depth values. The coarse terrain lies nowhere above the real terrain, so it never hides
+// something that is visible over a ridge.
+// From the depth buffer a hierarchical-Z pyramid is built where each texel holds the farthest depth of the texels below it.
+// A chunk is occluded if the nearest depth of its bounding box is behind the farthest occluder depth over the screen
+// rectangle of the box (expanded by one texel), tested at the pyramid level where the rectangle covers at most 3 x 3 texels.
+//
+// Only math is used, no graphics calls, so the culler also runs headless: with a height field instead of the terrain,
+// the height tiles are used as occluders whether or not there is a terrain chunk for them. benchmark() flies the
+// benchmark path that way and logs the results (see OcclusionBenchmarkLauncher in the lwjgl3 module).
+
+
+public class SceneryOcclusionCuller {
+
+    private final Terrain terrain;          // null when running on a height field only
+    private final HeightField heightField;
+    private final BoundingBox tileBounds = new BoundingBox();
+    private final int width, height;
+    private final float[][] levels;         // hierarchical-Z pyramid, level 0 is the depth buffer
+    private final int[] levelWidth;
+    private final int[] levelHeight;
+    private final float[] vx, vy, vz;       // per occluder vertex of a terrain chunk: screen position and NDC depth
+    private final boolean[] vValid;         // vertex is in front of the near plane
+    private final float[] corners;
+    private float near;
+
+    // statistics of the last cull() and accumulated since resetTotals()
+    public int chunksTested;
+    public int chunksCulled;
+    public int instancesTested;
+    public int instancesCulled;
+    public long totalChunksTested;
+    public long totalChunksCulled;
+    public long totalInstancesTested;
+    public long totalInstancesCulled;
+
+    public SceneryOcclusionCuller(Terrain terrain, int width, int height) {
+        this(terrain, terrain.getHeightField(), width, height);
+    }
+
+    // culler with all height tiles of the height field as occluders, without terrain chunks
+    public SceneryOcclusionCuller(HeightField heightField, int width, int height) {
+        this(null, heightField, width, height);
+    }
+
+    private SceneryOcclusionCuller(Terrain terrain, HeightField heightField, int width, int height) {
+        this.terrain = terrain;
+        this.heightField = heightField;
+        this.width = width;
+        this.height = height;
+
+        int numLevels = 1;
+        while((width >> (numLevels-1)) > 1 || (height >> (numLevels-1)) > 1)
+            numLevels++;
+        levels = new float[numLevels][];
+        levelWidth = new int[numLevels];
+        levelHeight = new int[numLevels];
+        int w = width;
+        int h = height;
+        for(int level = 0; level < numLevels; level++) {
+            levelWidth[level] = w;
+            levelHeight[level] = h;
+            levels[level] = new float[w * h];
+            w = Math.max(1, (w + 1) / 2);
+            h = Math.max(1, (h + 1) / 2);
+        }
+
+        int n = TerrainChunk.OCCLUDER_GRID + 1;
+        vx = new float[n * n];
+        vy = new float[n * n];
+        vz = new float[n * n];
+        vValid = new boolean[n * n];
+        corners = new float[3 * 8];
+    }
+
+    // Remove the chunks that are hidden behind the terrain from visibleChunks, keeping the order of the others.
+    public void cull(PerspectiveCamera cam, Array<SceneryChunk> visibleChunks) {
+        near = cam.near;
+        rasterizeTerrain(cam);
+        buildPyramid();
+
+        chunksTested = visibleChunks.size;
+        chunksCulled = 0;
+        instancesTested = 0;
+        instancesCulled = 0;
+        int kept = 0;
+        for(int i = 0; i < visibleChunks.size; i++) {
+            SceneryChunk chunk = visibleChunks.get(i);
+            int instances = chunk.getInstanceCount();
+            instancesTested += instances;
+            if(isOccluded(cam.combined, chunk)) {
+                chunksCulled++;
+                instancesCulled += instances;
+                continue;
+            }
+            visibleChunks.set(kept++, chunk);
+        }
+        visibleChunks.truncate(kept);
+
+        totalChunksTested += chunksTested;
+        totalChunksCulled += chunksCulled;
+        totalInstancesTested += instancesTested;
+        totalInstancesCulled += instancesCulled;
+    }
+
+    public void resetTotals() {
+        totalChunksTested = 0;
+        totalChunksCulled = 0;
+        totalInstancesTested = 0;
+        totalInstancesCulled = 0;
+    }
+
+    // summary of the accumulated statistics, e.g. at the end of a benchmark path
+    public String getReport() {
+        return "chunks culled: " + totalChunksCulled + " of " + totalChunksTested + " (" + percentage(totalChunksCulled, totalChunksTested) + "%)"
+            + " instances culled: " + totalInstancesCulled + " of " + totalInstancesTested + " (" + percentage(totalInstancesCulled, totalInstancesTested) + "%)";
+    }
+
+    private static String percentage(long part, long total) {
+        if(total == 0)
+            return "0.0";
+        return String.valueOf(Math.round(1000.0 * part / total) / 10.0);
+    }
+
+    // Headless benchmark: fly the benchmark path over the height field (generated on the fly), generate the scenery chunks in
+    // range with the given types, and log the culled chunks and instances and the time per frame spent on occlusion culling.
+    // modelBounds should enclose every scenery model, as for SceneryChunks (the models themselves can't be loaded headless).
+    public static void benchmark(int numTypes, float[] bias, float separationDistance, BoundingBox modelBounds, float viewportWidth, float viewportHeight) {
+        HeightField heightField = new HeightField();
+        SceneryOcclusionCuller culler = new SceneryOcclusionCuller(heightField, Settings.occlusionBufferWidth, Settings.occlusionBufferHeight);
+        PerspectiveCamera cam = new PerspectiveCamera(Settings.cameraFOV, viewportWidth, viewportHeight);
+        cam.near = 1f;
+        cam.far = Settings.cameraFar;
+
+        LongMap<SceneryChunk> chunks = new LongMap<>();
+        Array<SceneryChunk> visible = new Array<>();
+        Array<SceneryChunk> outOfRange = new Array<>();
+        int range = SceneryChunks.RANGE;
+        int frames = 0;
+        long cullTime = 0;
+        long visibleBefore = 0;
+        for(float time = BenchmarkPath.STEP; time <= BenchmarkPath.DURATION; time += BenchmarkPath.STEP) {
+            BenchmarkPath.place(cam, time, heightField);
+            heightField.update(cam.position.x, cam.position.z);
+
+            // chunks in range, in the frustum
+            int px = (int)Math.floor(cam.position.x / SceneryChunk.CHUNK_SIZE);
+            int pz = (int)Math.floor(cam.position.z / SceneryChunk.CHUNK_SIZE);
+            visible.clear();
+            for(int cz = pz - range; cz <= pz + range; cz++) {
+                for(int cx = px - range; cx <= px + range; cx++) {
+                    if((cx-px)*(cx-px) + (cz-pz)*(cz-pz) >= range*range)
+                        continue;
+                    long key = ((long)cx << 32) | (cz & 0xFFFFFFFFL);
+                    SceneryChunk chunk = chunks.get(key);
+                    if(chunk == null) {
+                        chunk = new SceneryChunk(cx, cz, frames, numTypes, bias, separationDistance);
+                        chunk.generate();
+                        chunk.finish(heightField, modelBounds);
+                        chunks.put(key, chunk);
+                    }
+                    chunk.lastSeen = frames;
+                    if(cam.frustum.boundsInFrustum(chunk.bbox))
+                        visible.add(chunk);
+                }
+            }
+            visibleBefore += visible.size;
+
+            long start = System.nanoTime();
+            culler.cull(cam, visible);
+            cullTime += System.nanoTime() - start;
+            frames++;
+
+            // drop the chunks that left the range
+            outOfRange.clear();
+            for(SceneryChunk chunk : chunks.values())
+                if(chunk.lastSeen != frames-1)
+                    outOfRange.add(chunk);
+            for(SceneryChunk chunk : outOfRange) {
+                chunks.remove(((long)chunk.cx << 32) | (chunk.cz & 0xFFFFFFFFL));
+                chunk.dispose();
+            }
+        }
+        for(SceneryChunk chunk : chunks.values())
+            chunk.dispose();
+
+        Gdx.app.log("Occlusion benchmark", "headless, frames: " + frames + " frustum visible chunks per frame: " + (visibleBefore / Math.max(1, frames))
+            + " occlusion culling: " + (cullTime / Math.max(1, frames) / 1000) + " us/frame");
+        Gdx.app.log("Occlusion benchmark", culler.getReport());
+    }
+
+    private void rasterizeTerrain(PerspectiveCamera cam) {
+        float[] depth = levels[0];
+        for(int i = 0; i < depth.length; i++)
+            depth[i] = 1f;          // far plane
+
+        // terrain chunks that can occlude scenery in range, chunks that are not generated yet don't occlude anything
+        int range = (int)Math.ceil(SceneryChunks.RANGE * SceneryChunk.CHUNK_SIZE / Settings.terrainChunkSize);
+        int px = (int)Math.floor(cam.position.x/Settings.terrainChunkSize);
+        int pz = (int)Math.floor(cam.position.z/Settings.terrainChunkSize);
+        for (int cx = px-range; cx <= px+range; cx++) {
+            for (int cz = pz-range; cz <= pz+range; cz++) {
+                HeightTile tile;
+                if(terrain != null) {
+                    TerrainChunk chunk = terrain.getChunk(cx, cz);
+                    tile = chunk != null && chunk.isGenerated() ? chunk.getHeightTile() : null;
+                }
+                else
+                    tile = heightField.getTile(cx, cz);
+                if(tile == null)
+                    continue;
+                float x0 = cx * Settings.terrainChunkSize;
+                float z0 = cz * Settings.terrainChunkSize;
+                tileBounds.min.set(x0, tile.getMinHeight(), z0);
+                tileBounds.max.set(x0 + Settings.terrainChunkSize, tile.getMaxHeight(), z0 + Settings.terrainChunkSize);
+                tileBounds.update();
+                if(cam.frustum.boundsInFrustum(tileBounds))
+                    rasterizeTile(cam.combined, tile);
+            }
+        }
+    }
+
+    private void rasterizeTile(Matrix4 combined, HeightTile tile) {
+        final float[] m = combined.val;
+        final int grid = TerrainChunk.OCCLUDER_GRID;
+        final float step = Settings.terrainChunkSize / grid;
+        final float[] heights = tile.getOccluderHeights();
+        final float x0 = tile.cx * Settings.terrainChunkSize;
+        final float z0 = tile.cz * Settings.terrainChunkSize;
+
+        // project the vertices
+        for(int j = 0; j <= grid; j++) {
+            for (int i = 0; i <= grid; i++) {
+                int v = j * (grid + 1) + i;
+                float x = x0 + i * step;
+                float y = heights[v];
+                float z = z0 + j * step;
+                float w = m[Matrix4.M30] * x + m[Matrix4.M31] * y + m[Matrix4.M32] * z + m[Matrix4.M33];
+                vValid[v] = w > near;
+                if(!vValid[v])
+                    continue;
+                float invW = 1f / w;
+                vx[v] = (0.5f + 0.5f * invW * (m[Matrix4.M00] * x + m[Matrix4.M01] * y + m[Matrix4.M02] * z + m[Matrix4.M03])) * width;
+                vy[v] = (0.5f + 0.5f * invW * (m[Matrix4.M10] * x + m[Matrix4.M11] * y + m[Matrix4.M12] * z + m[Matrix4.M13])) * height;
+                vz[v] = invW * (m[Matrix4.M20] * x + m[Matrix4.M21] * y + m[Matrix4.M22] * z + m[Matrix4.M23]);
+            }
+        }
+
+        // two triangles per cell, triangles crossing the near plane are skipped (they only make the occluder smaller)
+        for(int j = 0; j < grid; j++) {
+            for (int i = 0; i < grid; i++) {
+                int v0 = j * (grid + 1) + i;
+                int v1 = v0 + 1;
+                int v2 = v0 + grid + 1;
+                int v3 = v2 + 1;
+                if(vValid[v0] && vValid[v1] && vValid[v2])
+                    rasterizeTriangle(v0, v1, v2);
+                if(vValid[v1] && vValid[v3] && vValid[v2])
+                    rasterizeTriangle(v1, v3, v2);
+            }
+        }
+    }
+
+    // depth test and write at the pixel centres inside the triangle, depth is interpolated linearly in screen space
+    private void rasterizeTriangle(int a, int b, int c) {
+        float ax = vx[a], ay = vy[a];
+        float bx = vx[b], by = vy[b];
+        float cx = vx[c], cy = vy[c];
+        float area = (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+        if(Math.abs(area) < 1e-6f)
+            return;
+
+        int minX = Math.max(0, (int)Math.floor(Math.min(ax, Math.min(bx, cx))));
+        int maxX = Math.min(width - 1, (int)Math.ceil(Math.max(ax, Math.max(bx, cx))));
+        int minY = Math.max(0, (int)Math.floor(Math.min(ay, Math.min(by, cy))));
+        int maxY = Math.min(height - 1, (int)Math.ceil(Math.max(ay, Math.max(by, cy))));
+        if(minX > maxX || minY > maxY)
+            return;
+
+        float invArea = 1f / area;
+        float az = vz[a], bz = vz[b], cz = vz[c];
+        float[] depth = levels[0];
+        for(int y = minY; y <= maxY; y++) {
+            float py = y + 0.5f;
+            for(int x = minX; x <= maxX; x++) {
+                float px = x + 0.5f;
+                // barycentric weights, all positive inside the triangle for either winding
+                float wa = ((bx - px) * (cy - py) - (by - py) * (cx - px)) * invArea;
+                float wb = ((cx - px) * (ay - py) - (cy - py) * (ax - px)) * invArea;
+                float wc = 1f - wa - wb;
+                if(wa < 0 || wb < 0 || wc < 0)
+                    continue;
+                float z = wa * az + wb * bz + wc * cz;
+                int index = y * width + x;
+                if(z < depth[index])
+                    depth[index] = z;
+            }
+        }
+    }
+
+    // each texel of the next level is the farthest depth of the (up to) 2 x 2 texels below it
+    private void buildPyramid() {
+        for(int level = 1; level < levels.length; level++) {
+            float[] src = levels[level-1];
+            float[] dst = levels[level];
+            int sw = levelWidth[level-1];
+            int sh = levelHeight[level-1];
+            int dw = levelWidth[level];
+            int dh = levelHeight[level];
+            for(int y = 0; y < dh; y++) {
+                int y0 = 2 * y;
+                int y1 = Math.min(y0 + 1, sh - 1);
+                for(int x = 0; x < dw; x++) {
+                    int x0 = 2 * x;
+                    int x1 = Math.min(x0 + 1, sw - 1);
+                    float d = Math.max(Math.max(src[y0 * sw + x0], src[y0 * sw + x1]), Math.max(src[y1 * sw + x0], src[y1 * sw + x1]));
+                    dst[y * dw + x] = d;
+                }
+            }
+        }
+    }
+
+    private boolean isOccluded(Matrix4 combined, SceneryChunk chunk) {
+        final float[] m = combined.val;
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        fillCorners(chunk);
+        for(int k = 0; k < 8; k++) {
+            float x = corners[3*k], y = corners[3*k+1], z = corners[3*k+2];
+            float w = m[Matrix4.M30] * x + m[Matrix4.M31] * y + m[Matrix4.M32] * z + m[Matrix4.M33];
+            if(w <= near)
+                return false;       // box crosses the near plane: treat as visible
+            float invW = 1f / w;
+            float sx = (0.5f + 0.5f * invW * (m[Matrix4.M00] * x + m[Matrix4.M01] * y + m[Matrix4.M02] * z + m[Matrix4.M03])) * width;
+            float sy = (0.5f + 0.5f * invW * (m[Matrix4.M10] * x + m[Matrix4.M11] * y + m[Matrix4.M12] * z + m[Matrix4.M13])) * height;
+            float sz = invW * (m[Matrix4.M20] * x + m[Matrix4.M21] * y + m[Matrix4.M22] * z + m[Matrix4.M23]);
+            minX = Math.min(minX, sx);
+            maxX = Math.max(maxX, sx);
+            minY = Math.min(minY, sy);
+            maxY = Math.max(maxY, sy);
+            minZ = Math.min(minZ, sz);
+        }
+
+        // screen rectangle in texels, expanded by one texel to be conservative at the occluder silhouette
+        int x0 = Math.max(0, (int)Math.floor(minX) - 1);
+        int x1 = Math.min(width - 1, (int)Math.floor(maxX) + 1);
+        int y0 = Math.max(0, (int)Math.floor(minY) - 1);
+        int y1 = Math.min(height - 1, (int)Math.floor(maxY) + 1);
+        if(x0 > x1 || y0 > y1)
+            return false;       // off screen, left to frustum culling
+
+        int level = 0;
+        while(level < levels.length - 1 && (x1 - x0 > 2 || y1 - y0 > 2)) {
+            level++;
+            x0 >>= 1;
+            x1 >>= 1;
+            y0 >>= 1;
+            y1 >>= 1;
+        }
+        float[] depth = levels[level];
+        int w = levelWidth[level];
+        for(int y = y0; y <= y1; y++)
+            for(int x = x0; x <= x1; x++)
+                if(depth[y * w + x] >= minZ)
+                    return false;
+        return true;
+    }
+
+    private void fillCorners(SceneryChunk chunk) {
+        float[] c = corners;
+        int k = 0;
+        for(int i = 0; i < 8; i++) {
+            c[k++] = (i & 1) == 0 ? chunk.bbox.min.x : chunk.bbox.max.x;
+            c[k++] = (i & 2) == 0 ? chunk.bbox.min.y : chunk.bbox.max.y;
+            c[k++] = (i & 4) == 0 ? chunk.bbox.min.z : chunk.bbox.max.z;
+        }
+    }
+}
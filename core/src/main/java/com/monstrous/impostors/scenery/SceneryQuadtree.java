@@ -0,0 +1,168 @@
+package com.monstrous.impostors.scenery;
+
+import com.badlogic.gdx.graphics.Camera;
+import com.badlogic.gdx.math.Plane;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.BoundingBox;
+import com.badlogic.gdx.utils.Array;
+import com.monstrous.impostors.utils.ChunkGrid;
+
+
+// Hierarchical frustum culling of the scenery chunks in range.
+//
+// Level 0 are the chunks themselves, a node at level k covers a block of 2^k x 2^k chunks aligned to the chunk grid.
+// Each node keeps the number of chunks (in range and ready) below it and the union of their bounding boxes,
+// which is recalculated lazily when a chunk below it was added or removed.
+//
+// Culling starts from the top level nodes. A node that is completely outside the frustum is skipped with all its children.
+// Each node passes down a mask of the frustum planes its box intersects, the planes it is completely inside of
+// don't need to be tested again for the children. If the mask is empty the whole subtree is accepted without any tests.
+
+
+class SceneryQuadtree {
+
+    private static final int ALL_PLANES = 0x3F;     // bit mask for the 6 frustum planes
+
+    private static class Node {
+        int count;                  // nr of chunks in this block that are in range and ready
+        boolean dirty = true;       // bounds need to be recalculated
+        final BoundingBox bounds = new BoundingBox();
+    }
+
+    private final int levels;
+    private final ChunkGrid<Node>[] nodes;          // per level 1 .. levels
+    private final ChunkGrid<SceneryChunk> chunks;
+    private Plane[] planes;
+    private Vector3 camPosition;
+    private Array<SceneryChunk> visible;
+    private int timeStamp;
+
+    public SceneryQuadtree(ChunkGrid<SceneryChunk> chunks, int range) {
+        this.chunks = chunks;
+        int levels = 0;
+        while((1 << levels) < 2*range+1)
+            levels++;
+        this.levels = levels;
+        nodes = new ChunkGrid[levels+1];
+        for(int k = 1; k <= levels; k++)
+            nodes[k] = new ChunkGrid<>(((2*range+1) >> k) + 2);
+    }
+
+    public void setCentre(int cx, int cz) {
+        for(int k = 1; k <= levels; k++)
+            nodes[k].setCentre(cx >> k, cz >> k);       // note: shift rounds down, also for negative coordinates
+    }
+
+    // chunk is in range and ready
+    public void add(SceneryChunk chunk) {
+        for(int k = 1; k <= levels; k++) {
+            Node node = nodes[k].get(chunk.cx >> k, chunk.cz >> k);
+            if(node == null) {
+                node = new Node();
+                nodes[k].put(chunk.cx >> k, chunk.cz >> k, node);
+            }
+            node.count++;
+            node.dirty = true;
+        }
+    }
+
+    // chunk is no longer in range
+    public void remove(SceneryChunk chunk) {
+        for(int k = 1; k <= levels; k++) {
+            Node node = nodes[k].get(chunk.cx >> k, chunk.cz >> k);
+            node.count--;
+            node.dirty = true;
+            if(node.count == 0)
+                nodes[k].remove(chunk.cx >> k, chunk.cz >> k);
+        }
+    }
+
+    // Add the chunks inside the camera frustum to visibleChunks, for the range around (px, pz).
+    // Visible chunks get their lastSeen and distance fields updated.
+    public void cull(Camera cam, int px, int pz, int range, Array<SceneryChunk> visibleChunks, int timeStamp) {
+        this.planes = cam.frustum.planes;
+        this.camPosition = cam.position;
+        this.visible = visibleChunks;
+        this.timeStamp = timeStamp;
+
+        for(int bz = (pz - range) >> levels; bz <= (pz + range) >> levels; bz++)
+            for(int bx = (px - range) >> levels; bx <= (px + range) >> levels; bx++)
+                cullNode(levels, bx, bz, ALL_PLANES);
+
+        this.planes = null;
+        this.visible = null;
+    }
+
+    private void cullNode(int level, int bx, int bz, int mask) {
+        if(level == 0) {
+            SceneryChunk chunk = chunks.get(bx, bz);
+            if(chunk == null || !chunk.inRange || !chunk.isReady())
+                return;
+            if(mask != 0 && testBounds(chunk.bbox, mask) < 0)
+                return;
+            chunk.lastSeen = timeStamp;
+            chunk.distance = camPosition.dst(chunk.getWorldPosition());    // note: distance to chunk centre
+            visible.add(chunk);
+            return;
+        }
+
+        Node node = nodes[level].get(bx, bz);
+        if(node == null || node.count == 0)
+            return;
+        if(mask != 0) {
+            if(node.dirty)
+                updateBounds(level, bx, bz, node);
+            mask = testBounds(node.bounds, mask);
+            if(mask < 0)
+                return;     // completely outside
+        }
+        for(int j = 0; j < 2; j++)
+            for(int i = 0; i < 2; i++)
+                cullNode(level-1, 2*bx+i, 2*bz+j, mask);
+    }
+
+    // recalculate the union of the bounding boxes in this block
+    private void updateBounds(int level, int bx, int bz, Node node) {
+        node.bounds.inf();
+        for(int j = 0; j < 2; j++) {
+            for (int i = 0; i < 2; i++) {
+                int x = 2 * bx + i;
+                int z = 2 * bz + j;
+                if (level == 1) {
+                    SceneryChunk chunk = chunks.get(x, z);
+                    if (chunk != null && chunk.inRange && chunk.isReady())
+                        node.bounds.ext(chunk.bbox);
+                } else {
+                    Node child = nodes[level - 1].get(x, z);
+                    if (child == null || child.count == 0)
+                        continue;
+                    if (child.dirty)
+                        updateBounds(level - 1, x, z, child);
+                    node.bounds.ext(child.bounds);
+                }
+            }
+        }
+        node.dirty = false;
+    }
+
+    // Test box against the frustum planes in the mask.
+    // Returns -1 if the box is completely outside, otherwise the mask of planes that the box intersects.
+    private int testBounds(BoundingBox box, int mask) {
+        for(int i = 0; i < planes.length; i++) {
+            int bit = 1 << i;
+            if((mask & bit) == 0)
+                continue;
+            Vector3 n = planes[i].normal;
+            float d = planes[i].d;
+            // corner furthest in the direction of the normal
+            float far = n.x * (n.x >= 0 ? box.max.x : box.min.x) + n.y * (n.y >= 0 ? box.max.y : box.min.y) + n.z * (n.z >= 0 ? box.max.z : box.min.z) + d;
+            if(far < 0)
+                return -1;      // completely behind this plane
+            // corner furthest against the direction of the normal
+            float near = n.x * (n.x >= 0 ? box.min.x : box.max.x) + n.y * (n.y >= 0 ? box.min.y : box.max.y) + n.z * (n.z >= 0 ? box.min.z : box.max.z) + d;
+            if(near >= 0)
+                mask &= ~bit;   // completely in front, children don't need to test this plane
+        }
+        return mask;
+    }
+}
@@ -0,0 +1,220 @@
+package com.monstrous.impostors.scenery;
+
+import com.badlogic.gdx.graphics.Camera;
+import com.badlogic.gdx.math.Frustum;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.Plane;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.BoundingBox;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.IntArray;
+import com.monstrous.impostors.Settings;
+import com.monstrous.impostors.utils.ChunkGrid;
+
+
+// Selects the scenery instances that cast shadows, for the shadow caster set of the LOD models.
+//
+// The colour pass instances are culled against the camera frustum, but shadows are cast by instances in the frustum
+// of the shadow light (or of any cascade), also outside the view. The casters are culled against the light frustums
+// instead, and each one uses the LOD level Settings.shadowLodLevels gives for its distance band from the camera,
+// so distant casters don't render detailed geometry into the shadow map.
+// Instances in a band with shadow LOD level -1 cast no shadow (impostors don't cast shadows either).
+//
+// Culling is done per chunk first: chunks outside all light frustums are skipped, and the instances of chunks fully
+// inside a light frustum are not tested one by one. If such a chunk also lies within one distance band of a type,
+// its instances are added as one block. Only chunks that straddle a frustum plane or a band border are done per instance.
+// When the light cameras, the camera position, the LOD distances and the classification of the chunks are the same as
+// in the previous update, the casters are the same as well and nothing is done (see Settings.skipChecksWhenCameraStill).
+
+
+class ShadowCasterCuller {
+
+    private static final int OUTSIDE = 0;
+    private static final int PARTIAL = 1;
+    private static final int INSIDE = 2;
+
+    private final ChunkGrid<SceneryChunk> chunks;
+    private final Array<LodModel> lodModels;
+    private final Vector3 min = new Vector3();
+    private final Vector3 max = new Vector3();
+    private final Vector3 tmpPos = new Vector3();
+    private final Array<SceneryChunk> candidates = new Array<>();     // ready chunks in a light frustum
+    private final IntArray classifications = new IntArray();          // per candidate: PARTIAL or INSIDE
+    private final Array<Matrix4> prevLightCombined = new Array<>();
+    private final Vector3 prevCamPosition = new Vector3();
+    private int prevSignature;
+    private boolean valid;                  // false until the first update
+    public int numCasters;
+
+    public ShadowCasterCuller(ChunkGrid<SceneryChunk> chunks, Array<LodModel> lodModels) {
+        this.chunks = chunks;
+        this.lodModels = lodModels;
+    }
+
+    // cam is the view camera for the distance bands, lightCameras are the cameras of the shadow light or of each cascade
+    public void update(Camera cam, Array<Camera> lightCameras) {
+
+        // chunk range that covers all light frustums
+        min.set(Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE);
+        max.set(-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE);
+        for(Camera lightCam : lightCameras) {
+            for (Vector3 corner : lightCam.frustum.planePoints) {
+                min.set(Math.min(min.x, corner.x), Math.min(min.y, corner.y), Math.min(min.z, corner.z));
+                max.set(Math.max(max.x, corner.x), Math.max(max.y, corner.y), Math.max(max.z, corner.z));
+            }
+        }
+        int cx0 = (int)Math.floor(min.x / SceneryChunk.CHUNK_SIZE - 0.5f);
+        int cz0 = (int)Math.floor(min.z / SceneryChunk.CHUNK_SIZE - 0.5f);
+        int cx1 = (int)Math.floor(max.x / SceneryChunk.CHUNK_SIZE + 0.5f);
+        int cz1 = (int)Math.floor(max.z / SceneryChunk.CHUNK_SIZE + 0.5f);
+
+        // classify the ready chunks in range against the light frustums
+        candidates.clear();
+        classifications.clear();
+        int signature = 1;
+        for(int cz = cz0; cz <= cz1; cz++) {
+            for (int cx = cx0; cx <= cx1; cx++) {
+                SceneryChunk chunk = chunks.get(cx, cz);
+                if(chunk == null || !chunk.isReady())
+                    continue;
+                int classification = classify(lightCameras, chunk.bbox);
+                if(classification == OUTSIDE)
+                    continue;
+                candidates.add(chunk);
+                classifications.add(classification);
+                signature = 31 * signature + cx;
+                signature = 31 * signature + cz;
+                signature = 31 * signature + classification;
+            }
+        }
+        for(LodModel lodModel : lodModels) {
+            for(float distance : lodModel.getLodDistances())
+                signature = 31 * signature + Float.floatToIntBits(distance);
+        }
+        for(int level : Settings.shadowLodLevels)
+            signature = 31 * signature + level;
+
+        if(Settings.skipChecksWhenCameraStill && valid && signature == prevSignature
+            && cam.position.epsilonEquals(prevCamPosition, Settings.cameraMoveEpsilon) && sameLightCameras(lightCameras))
+            return;     // same casters as last time, the shadow caster buffers are still valid
+        valid = true;
+        prevSignature = signature;
+        prevCamPosition.set(cam.position);
+        while(prevLightCombined.size < lightCameras.size)
+            prevLightCombined.add(new Matrix4());
+        prevLightCombined.setSize(lightCameras.size);
+        for(int i = 0; i < lightCameras.size; i++)
+            prevLightCombined.get(i).set(lightCameras.get(i).combined);
+
+        for(LodModel lodModel : lodModels)
+            lodModel.beginShadowCasters();
+        numCasters = 0;
+        for(int i = 0; i < candidates.size; i++) {
+            SceneryChunk chunk = candidates.get(i);
+            boolean inside = classifications.get(i) == INSIDE;
+            for(int type = 0; type < lodModels.size; type++)
+                addCasters(cam, lightCameras, lodModels.get(type), chunk, type, inside);
+        }
+        for(LodModel lodModel : lodModels)
+            lodModel.endShadowCasters();
+    }
+
+    private boolean sameLightCameras(Array<Camera> lightCameras) {
+        if(lightCameras.size != prevLightCombined.size)
+            return false;
+        for(int i = 0; i < lightCameras.size; i++) {
+            float[] a = lightCameras.get(i).combined.val;
+            float[] b = prevLightCombined.get(i).val;
+            for(int j = 0; j < 16; j++)
+                if(a[j] != b[j])
+                    return false;
+        }
+        return true;
+    }
+
+    // INSIDE if the box is fully inside any light frustum, PARTIAL if it intersects one, otherwise OUTSIDE
+    private static int classify(Array<Camera> lightCameras, BoundingBox box) {
+        int result = OUTSIDE;
+        for(Camera lightCam : lightCameras) {
+            int c = classify(lightCam.frustum, box);
+            if(c == INSIDE)
+                return INSIDE;
+            result = Math.max(result, c);
+        }
+        return result;
+    }
+
+    // test the box corner furthest along each plane normal (outside if behind) and the nearest corner (intersecting if behind)
+    // the frustum plane normals point inwards
+    private static int classify(Frustum frustum, BoundingBox box) {
+        int result = INSIDE;
+        for(Plane plane : frustum.planes) {
+            Vector3 n = plane.normal;
+            float px = n.x >= 0 ? box.max.x : box.min.x;
+            float py = n.y >= 0 ? box.max.y : box.min.y;
+            float pz = n.z >= 0 ? box.max.z : box.min.z;
+            if(n.x * px + n.y * py + n.z * pz + plane.d < 0)
+                return OUTSIDE;
+            float qx = n.x >= 0 ? box.min.x : box.max.x;
+            float qy = n.y >= 0 ? box.min.y : box.max.y;
+            float qz = n.z >= 0 ? box.min.z : box.max.z;
+            if(n.x * qx + n.y * qy + n.z * qz + plane.d < 0)
+                result = PARTIAL;
+        }
+        return result;
+    }
+
+    private void addCasters(Camera cam, Array<Camera> lightCameras, LodModel lodModel, SceneryChunk chunk, int type, boolean inside) {
+        float[] instanceData = chunk.getInstanceData(type);
+        int count = chunk.getInstanceCount(type);
+        if(count == 0)
+            return;
+        int[] shadowLevels = Settings.shadowLodLevels;
+
+        // the instance centres lie within the chunk bounding box, so if its nearest and farthest point are in the
+        // same distance band, so are all instances
+        BoundingBox box = chunk.bbox;
+        Vector3 p = cam.position;
+        float dx = Math.max(0, Math.max(box.min.x - p.x, p.x - box.max.x));
+        float dy = Math.max(0, Math.max(box.min.y - p.y, p.y - box.max.y));
+        float dz = Math.max(0, Math.max(box.min.z - p.z, p.z - box.max.z));
+        int nearLevel = lodModel.determineLODlevel((float)Math.sqrt(dx*dx + dy*dy + dz*dz));
+        dx = Math.max(Math.abs(box.min.x - p.x), Math.abs(box.max.x - p.x));
+        dy = Math.max(Math.abs(box.min.y - p.y), Math.abs(box.max.y - p.y));
+        dz = Math.max(Math.abs(box.min.z - p.z), Math.abs(box.max.z - p.z));
+        int farLevel = lodModel.determineLODlevel((float)Math.sqrt(dx*dx + dy*dy + dz*dz));
+        boolean oneBand = nearLevel == farLevel;
+        if(oneBand && shadowLevels[nearLevel] < 0)
+            return;
+        if(inside && oneBand) {
+            lodModel.addShadowCasters(shadowLevels[nearLevel], instanceData, count);
+            numCasters += count;
+            return;
+        }
+
+        Vector3 modelCentre = lodModel.getModelCentre();
+        float radius = lodModel.getRadius();
+        for(int i = 0; i < count; i++) {
+            int offset = i * SceneryChunk.FLOATS_PER_INSTANCE;
+            float x = instanceData[offset];
+            float y = instanceData[offset+1];
+            float z = instanceData[offset+2];
+
+            tmpPos.set(x, y, z).add(modelCentre);
+            int level = shadowLevels[oneBand ? nearLevel : lodModel.determineLODlevel(p.dst(tmpPos))];
+            if(level < 0)
+                continue;
+            if(inside || inAnyFrustum(lightCameras, tmpPos, radius)) {
+                lodModel.addShadowCaster(level, x, y, z, instanceData[offset+3]);
+                numCasters++;
+            }
+        }
+    }
+
+    private static boolean inAnyFrustum(Array<Camera> lightCameras, Vector3 centre, float radius) {
+        for(Camera lightCam : lightCameras)
+            if(lightCam.frustum.sphereInFrustum(centre, radius))
+                return true;
+        return false;
+    }
+}
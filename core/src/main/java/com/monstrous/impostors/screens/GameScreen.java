@@ -10,6 +10,7 @@ import com.badlogic.gdx.graphics.g3d.attributes.ColorAttribute;
 import com.badlogic.gdx.graphics.g3d.utils.DefaultShaderProvider;
 import com.badlogic.gdx.graphics.g3d.utils.DepthShaderProvider;
 import com.badlogic.gdx.math.*;
+import com.badlogic.gdx.utils.Array;
 import com.badlogic.gdx.utils.GdxRuntimeException;
 import com.badlogic.gdx.utils.ScreenUtils;
 import com.monstrous.impostors.Settings;
@@ -24,6 +25,7 @@ import com.monstrous.impostors.shaders.InstancedPBRDepthShaderProvider;
 import com.monstrous.impostors.shaders.InstancedPBRShaderProvider;
 import com.monstrous.impostors.terrain.Terrain;
 import com.monstrous.impostors.terrain.TerrainDebug;
+import com.monstrous.impostors.utils.BenchmarkPath;
 import net.mgsx.gltf.loaders.gltf.GLTFLoader;
 import net.mgsx.gltf.scene3d.attributes.FogAttribute;
 import net.mgsx.gltf.scene3d.attributes.PBRCubemapAttribute;
@@ -31,6 +33,7 @@ import net.mgsx.gltf.scene3d.attributes.PBRFloatAttribute;
 import net.mgsx.gltf.scene3d.attributes.PBRTextureAttribute;
 import net.mgsx.gltf.scene3d.lights.DirectionalShadowLight;
 import net.mgsx.gltf.scene3d.scene.*;
+import net.mgsx.gltf.scene3d.shaders.PBRCommon;
 import net.mgsx.gltf.scene3d.utils.IBLBuilder;
 
 
@@ -60,6 +63,12 @@ public class GameScreen extends ScreenAdapter {
     public Scenery scenery;
     private int width, height;
     private boolean guiMode = false;
+    private float benchmarkTime = 0;
+    private int lodBenchmarkRun = 0;        // 0: fixed LOD distances, 1: screen space LOD
+    private long benchmarkTriangles;        // scenery triangles summed over the frames of the benchmark path
+    private long benchmarkMaxTriangles;
+    private int benchmarkFrames;
+    private final Array<Camera> lightCameras = new Array<>();
 
     public GameScreen(Main game) {
         this.game = game;
@@ -111,6 +120,10 @@ public class GameScreen extends ScreenAdapter {
 
         camera.position.set(0, terrain.getHeight(0, 50) + 10, 50);
 
+        // warm up the scenery around the start position, rather than streaming it in during the first seconds
+        float size = Settings.sceneryPregenerateSize;
+        scenery.pregenerate(new Rectangle(camera.position.x - size/2, camera.position.z - size/2, size, size));
+
         // input multiplexer to input to GUI and to cam controller
         InputMultiplexer im = new InputMultiplexer();
         Gdx.input.setInputProcessor(im);
@@ -219,16 +232,27 @@ public class GameScreen extends ScreenAdapter {
                 Settings.lodLevel = -1;
         }
 
+        if(Gdx.input.isKeyJustPressed(KeyBinding.SCREEN_SPACE_LOD.getKeyCode())) {
+            Settings.lodScreenSpace = !Settings.lodScreenSpace;
+            Gdx.app.log("Screen space LOD", ""+Settings.lodScreenSpace);
+        }
+        if(Gdx.input.isKeyJustPressed(KeyBinding.OCCLUSION_CULLING.getKeyCode())) {
+            Settings.occlusionCulling = !Settings.occlusionCulling;
+            Gdx.app.log("Occlusion culling", ""+Settings.occlusionCulling);
+            scenery.update( deltaTime, camera, true );
+        }
+        if(Gdx.input.isKeyJustPressed(KeyBinding.LOD_BUDGET.getKeyCode())) {
+            Settings.lodBudget = !Settings.lodBudget;
+            Gdx.app.log("LOD triangle budget", Settings.lodBudget ? ""+Settings.lodTriangleBudget : "off");
+        }
         if(Gdx.input.isKeyJustPressed(KeyBinding.INCREASE_LOD_DISTANCE.getKeyCode())) {
-            for(int lod = 0; lod < Settings.LOD_LEVELS; lod++)
-                Settings.lodDistances[lod] = 1.1f * Settings.lodDistances[lod];
+            scaleLodDistances(1.1f);
             Settings.dynamicLODAdjustment = false;
             Gdx.app.log("Update LOD1 distance to:", ""+Settings.lodDistances[0]);
             scenery.update( deltaTime, camera, true );
         }
         if(Gdx.input.isKeyJustPressed(KeyBinding.DECREASE_LOD_DISTANCE.getKeyCode())) {
-            for(int lod = 0; lod < Settings.LOD_LEVELS; lod++)
-                Settings.lodDistances[lod] = 0.9f * Settings.lodDistances[lod];
+            scaleLodDistances(0.9f);
             Gdx.app.log("Update LOD1 distance to:", ""+Settings.lodDistances[0]);
             Settings.dynamicLODAdjustment = false;
             scenery.update( deltaTime, camera, true );
@@ -247,11 +271,21 @@ public class GameScreen extends ScreenAdapter {
         }
 
         camera.up.set(Vector3.Y);
-        if(!guiMode)
+        if(Settings.occlusionBenchmark || Settings.lodBenchmark)
+            followBenchmarkPath();
+        else if(!guiMode)
             camController.update( deltaTime );
 
-        terrain.update( camera );
+        terrain.update( deltaTime, camera );
         scenery.update( deltaTime, camera, !Settings.skipChecksWhenCameraStill );
+        scenery.statistics.terrainChunks = terrain.getRenderedChunkCount();
+        scenery.statistics.terrainTriangles = terrain.getTriangleCount();
+        if(Settings.lodBenchmark && benchmarkTime > 0) {
+            long triangles = scenery.statistics.getTotalTriangles();
+            benchmarkTriangles += triangles;
+            benchmarkMaxTriangles = Math.max(benchmarkMaxTriangles, triangles);
+            benchmarkFrames++;
+        }
 
         if(Settings.cascadedShadows) {
             csm.setCascades(sceneManager.camera, light, 0, Settings.cascadeSplitDivisor);
@@ -259,6 +293,19 @@ public class GameScreen extends ScreenAdapter {
         else
             light.setCenter(camera.position); // keep shadow light on player so that we have shadows
 
+        // the shadow pass gets its own scenery instances, culled against the light (note: the light cameras are
+        // positioned when their shadow map is rendered, so this uses the light frustums of the previous frame)
+        boolean separateShadowPass = Settings.shadowCasters && !Settings.singleInstance;
+        if(separateShadowPass) {
+            lightCameras.clear();
+            lightCameras.add(light.getCamera());
+            if(Settings.cascadedShadows) {
+                for (DirectionalShadowLight cascade : csm.lights)
+                    lightCameras.add(cascade.getCamera());
+            }
+            scenery.updateShadowCasters(camera, lightCameras);
+        }
+
         sceneManager.getRenderableProviders().clear();
 
         // terrain chunks are taken directly from the Terrain class
@@ -271,15 +318,36 @@ public class GameScreen extends ScreenAdapter {
                 sceneManager.addScene(scene, false);
         }
 
-        // add scenery (instanced objects)
-        for(Scene scene : scenery.getScenes())
-            sceneManager.addScene(scene, false);
-
         // render
         ScreenUtils.clear(Color.SKY, true);
 
-        sceneManager.update(deltaTime);
-        sceneManager.render();
+        if(separateShadowPass) {
+            // This does what SceneManager.render() does (seamless cube maps, shadows, mirror, transmission, colours) but
+            // with another set of renderables for the shadow pass. The mirror and transmission source passes are left out:
+            // this scene has no mirror or transmission source, for which they render nothing. If one is added, call
+            // sceneManager.renderMirror() and renderTransmission() between the two passes.
+            // shadow pass with the shadow caster set
+            Array<Scene> shadowScenes = scenery.getShadowCasterScenes();
+            for(Scene scene : shadowScenes)
+                sceneManager.addScene(scene, false);
+            sceneManager.update(deltaTime);
+            PBRCommon.enableSeamlessCubemaps();
+            sceneManager.renderShadows();
+
+            // colour pass with the scenery instances culled against the camera
+            sceneManager.getRenderableProviders().removeAll(shadowScenes, true);
+            for(Scene scene : scenery.getScenes())
+                sceneManager.addScene(scene, false);
+            sceneManager.renderColors();
+        }
+        else {
+            // add scenery (instanced objects)
+            for (Scene scene : scenery.getScenes())
+                sceneManager.addScene(scene, false);
+
+            sceneManager.update(deltaTime);
+            sceneManager.render();
+        }
 
         if(Settings.lodLevel == Settings.LOD_LEVELS || Settings.lodLevel < 0 ) {      // impostors
             modelBatch.begin(camera);
@@ -297,6 +365,49 @@ public class GameScreen extends ScreenAdapter {
     }
 
 
+    // Fly the camera low over the terrain along a fixed path, crossing valleys and ridges, and log the occlusion culling
+    // statistics at the end of the path.
+    // For the LOD benchmark the path is flown twice, first with fixed LOD distances and then with screen space LOD selection,
+    // and the scenery triangles per frame are logged for each.
+    private void followBenchmarkPath(){
+        if(benchmarkTime == 0) {
+            scenery.resetOcclusionStatistics();
+            benchmarkTriangles = 0;
+            benchmarkMaxTriangles = 0;
+            benchmarkFrames = 0;
+            if(Settings.lodBenchmark)
+                Settings.lodScreenSpace = (lodBenchmarkRun == 1);
+        }
+        benchmarkTime += BenchmarkPath.STEP;
+        BenchmarkPath.place(camera, benchmarkTime, terrain.getHeightField());
+
+        if(benchmarkTime >= BenchmarkPath.DURATION) {
+            if(Settings.occlusionBenchmark) {
+                Gdx.app.log("Occlusion benchmark", scenery.getOcclusionReport());
+                Settings.occlusionBenchmark = false;
+            }
+            if(Settings.lodBenchmark) {
+                Gdx.app.log("LOD benchmark", (Settings.lodScreenSpace ? "screen space" : "fixed distance") + " LOD, "
+                    + Gdx.graphics.getWidth() + "x" + Gdx.graphics.getHeight() + ", frames: " + benchmarkFrames
+                    + " triangles per frame: average " + (benchmarkTriangles / Math.max(1, benchmarkFrames)) + " max " + benchmarkMaxTriangles);
+                lodBenchmarkRun++;
+                if(lodBenchmarkRun == 2) {
+                    Settings.lodBenchmark = false;
+                    lodBenchmarkRun = 0;
+                }
+            }
+            benchmarkTime = 0;
+        }
+    }
+
+    // make the LOD distances larger (factor > 1) or smaller, for both fixed distance and screen space LOD selection
+    private void scaleLodDistances(float factor){
+        for(int lod = 0; lod < Settings.LOD_LEVELS; lod++) {
+            Settings.lodDistances[lod] = factor * Settings.lodDistances[lod];
+            Settings.lodPixelSizes[lod] = Settings.lodPixelSizes[lod] / factor;
+        }
+    }
+
     private int numSamples = 0;
     private float totalTime = 0;
     private float sampleTime = 1;
@@ -315,8 +426,7 @@ public class GameScreen extends ScreenAdapter {
 
             if(frameRate < targetFrameRate ){
                 // to improve performance, make LOD distances smaller
-                for(int lod = 0; lod < Settings.LOD_LEVELS; lod++)
-                    Settings.lodDistances[lod] = 0.7f * Settings.lodDistances[lod];
+                scaleLodDistances(0.7f);
 
                 Gdx.app.log("Frame rate too low, increasing LOD1 distance to:", ""+Settings.lodDistances[0]);
             }
@@ -23,12 +23,21 @@ public class InstancedDecalShaderProvider extends DefaultShaderProvider {
     String vertexShader;
     String fragmentShader;
 
-    static public class UVSize{     // userData structure to hold UV information
-        float u, v;
-
-        public UVSize(float u, float v) {
-            this.u = u;
-            this.v = v;
+    static public final int MAX_TYPES = 8;      // must match MAX_TYPES in decalinstanced.vert
+
+    static public class ImpostorTypes{     // userData structure to hold per type UV information and quad size
+        int numTypes;
+        int columns, rows;  // grid of type slices in the combined atlas, type 0 at the bottom left
+        float[] uvSteps;    // per type: u width (fraction) per Y rotation, v height (fraction) per elevation, within the type's atlas
+        float[] sizes;      // per type: quad width and height in world units
+
+        public ImpostorTypes(int numTypes, int columns, int rows, float[] uvSteps, float[] sizes) {
+            if(numTypes > MAX_TYPES) throw new GdxRuntimeException("Too many impostor types: "+numTypes+" > "+MAX_TYPES);
+            this.numTypes = numTypes;
+            this.columns = columns;
+            this.rows = rows;
+            this.uvSteps = uvSteps;
+            this.sizes = sizes;
         }
     }
 
@@ -56,8 +65,10 @@ public class InstancedDecalShaderProvider extends DefaultShaderProvider {
             //
             //    Instance data:
             //    in vec4 i_offset;
+            //    in float i_type;
             //
-            // Note: we can use the same shader for decals with different textures and uvDimensions
+            // Note: the atlases of all types are packed in a grid of slices in one texture (see ImpostorStore), so all impostors
+            // are rendered in one call
 
             @Override
             public void init() {
@@ -84,13 +95,15 @@ public class InstancedDecalShaderProvider extends DefaultShaderProvider {
 
             @Override
             public void render(Renderable renderable, Attributes combinedAttributes) {
-                if(renderable.userData == null) throw new GdxRuntimeException("Missing UVsize, renderable.userData is null");
+                if(renderable.userData == null) throw new GdxRuntimeException("Missing ImpostorTypes, renderable.userData is null");
 
                 final int unit = context.textureBinder.bind(((TextureAttribute)(renderable.material.get(TextureAttribute.Diffuse))).textureDescription);
                 program.setUniformi("u_texture", unit);
 
-                UVSize uvDimensions = (UVSize)(renderable.userData);
-                program.setUniformf("u_step", uvDimensions.u, uvDimensions.v);
+                ImpostorTypes types = (ImpostorTypes)(renderable.userData);
+                program.setUniformf("u_grid", types.columns, types.rows);
+                program.setUniform2fv("u_steps", types.uvSteps, 0, 2*types.numTypes);
+                program.setUniform2fv("u_sizes", types.sizes, 0, 2*types.numTypes);
 
                 super.render(renderable, combinedAttributes);
             }
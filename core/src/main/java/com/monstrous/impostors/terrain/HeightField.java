@@ -0,0 +1,125 @@
+package com.monstrous.impostors.terrain;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.utils.Array;
+import com.monstrous.impostors.Settings;
+import com.monstrous.impostors.utils.ChunkGrid;
+import com.monstrous.impostors.utils.Noise;
+
+
+// Cache of terrain height tiles for height queries, e.g. to place scenery, independent of the terrain meshes.
+// Querying a height far away from the camera only generates a height tile (a float array) instead of a complete
+// terrain chunk with mesh, model and scene. The cache has its own size limit (Settings.heightTileCacheSize) and evicts
+// the least recently used tile.
+// Tiles of terrain chunks that were generated for rendering are shared with this cache (see Terrain). For a terrain chunk
+// that is still being generated in the background, a query uses the chunk's tile: it waits for the worker if that is
+// creating the tile, or creates it for the worker to use. So the heights of a chunk are never generated twice.
+// Not thread safe, use from the render thread.
+
+
+public class HeightField {
+
+    private final ChunkGrid<HeightTile> tiles;
+    private final Array<HeightTile> allTiles;
+    private final Noise noise;
+    private HeightTile lastTile;            // most recently used tile, queries tend to be coherent
+    private ChunkGrid<TerrainChunk> chunks; // terrain chunks of which to share the height tile, null if none
+    private int timeCounter;
+
+    public HeightField() {
+        tiles = new ChunkGrid<>(8);
+        allTiles = new Array<>();
+        noise = new Noise();
+    }
+
+    // share the height tiles of these terrain chunks (pending or ready) instead of generating them again
+    public void setTerrainChunks(ChunkGrid<TerrainChunk> chunks) {
+        this.chunks = chunks;
+    }
+
+    // get the tile for chunk (cx, cz), generate it if needed
+    public HeightTile getTile(int cx, int cz) {
+        HeightTile tile = lastTile;
+        if(tile == null || tile.cx != cx || tile.cz != cz) {
+            tile = tiles.get(cx, cz);
+            if (tile == null) {
+                TerrainChunk chunk = chunks == null ? null : chunks.get(cx, cz);
+                tile = chunk != null ? chunk.getOrCreateHeightTile(noise) : new HeightTile(cx, cz, noise);
+                add(tile);
+            }
+            lastTile = tile;
+        }
+        tile.lastUsed = timeCounter;
+        return tile;
+    }
+
+    // tile for chunk (cx, cz) if it is cached, or null
+    public HeightTile peekTile(int cx, int cz) {
+        return tiles.get(cx, cz);
+    }
+
+    // add a tile that was generated elsewhere, e.g. for a terrain chunk, unless there is one already
+    public void offer(HeightTile tile) {
+        if(tiles.get(tile.cx, tile.cz) == null)
+            add(tile);
+    }
+
+    private void add(HeightTile tile) {
+        tile.lastUsed = timeCounter;
+        tiles.put(tile.cx, tile.cz, tile);
+        if(tiles.size() > Settings.heightTileCacheSize)
+            evict();
+    }
+
+    // remove the least recently used tile, but not the most recent one
+    private void evict() {
+        HeightTile oldest = null;
+        for(HeightTile tile : tiles.values(allTiles)) {
+            if(tile != lastTile && (oldest == null || tile.lastUsed < oldest.lastUsed))
+                oldest = tile;
+        }
+        allTiles.clear();
+        if(oldest != null) {
+            tiles.remove(oldest.cx, oldest.cz);
+            if(Settings.debugTerrainChunkAllocation)
+                Gdx.app.log("HeightField", "evict tile " + oldest.cx + ", " + oldest.cz);
+        }
+    }
+
+    // call once per frame, for the least recently used order and to keep the cache window near the camera
+    public void update(float camX, float camZ) {
+        timeCounter++;
+        tiles.setCentre((int)Math.floor(camX/Settings.terrainChunkSize), (int)Math.floor(camZ/Settings.terrainChunkSize));
+    }
+
+    public int size() {
+        return tiles.size();
+    }
+
+    // get terrain height at (x,z)
+    public float getHeight(float x, float z) {
+        int cx = (int)Math.floor(x/Settings.terrainChunkSize);
+        int cz = (int)Math.floor(z/Settings.terrainChunkSize);
+        return getTile(cx, cz).getHeight(x - cx*Settings.terrainChunkSize, z - cz*Settings.terrainChunkSize);
+    }
+
+    // Get the terrain heights for count positions (xs[i], zs[i]) in one pass. Consecutive positions in the same
+    // tile only do the tile lookup once, so keep positions that are close together next to each other.
+    public void getHeights(float[] xs, float[] zs, int count, float[] heights) {
+        final float size = Settings.terrainChunkSize;
+        HeightTile tile = null;
+        float ox = 0, oz = 0;
+        for(int i = 0; i < count; i++) {
+            float x = xs[i];
+            float z = zs[i];
+            int cx = (int)Math.floor(x/size);
+            int cz = (int)Math.floor(z/size);
+            if(tile == null || tile.cx != cx || tile.cz != cz) {
+                tile = getTile(cx, cz);
+                ox = cx * size;
+                oz = cz * size;
+            }
+            heights[i] = tile.getHeight(x - ox, z - oz);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.monstrous.impostors.terrain;
+
+import com.monstrous.impostors.Settings;
+import com.monstrous.impostors.utils.Noise;
+
+
+// Height map of one terrain chunk as a plain float array, without any mesh.
+// (MAP_SIZE+1) x (MAP_SIZE+1) heights, row by row in z, so that neighbouring tiles share their edge heights.
+// There is an apron of one extra row/column of heights on each side, for the normals on the tile edges.
+// Immutable once generated, so it can be shared between threads.
+
+
+public class HeightTile {
+    public static final int SIZE = TerrainChunk.MAP_SIZE + 1;      // heights per row
+    private static final int STRIDE = SIZE + 2;                     // heights per row including the apron
+    public static final int BYTES = 4 * STRIDE * STRIDE;            // memory use of the heights
+
+    public final int cx, cz;            // chunk grid coordinates
+    public int lastUsed;                // for the cache eviction (see HeightField)
+    private final float[] heights;
+    private final float[] occluderHeights;
+    private float minHeight, maxHeight;
+
+    // generate the height map for chunk (cx, cz), noise is not thread safe so use one instance per thread
+    public HeightTile(int cx, int cz, Noise noise) {
+        this.cx = cx;
+        this.cz = cz;
+        heights = noise.generatePerlinMap(new float[STRIDE * STRIDE], cx*TerrainChunk.MAP_SIZE - 1, cz*TerrainChunk.MAP_SIZE - 1,
+            STRIDE-1, STRIDE-1, TerrainChunk.GRID_SCALE, TerrainChunk.AMPLITUDE);
+
+        minHeight = Float.MAX_VALUE;
+        maxHeight = -Float.MAX_VALUE;
+        for(int z = 0; z < SIZE; z++) {
+            for (int x = 0; x < SIZE; x++) {
+                float h = get(x, z);
+                minHeight = Math.min(minHeight, h);
+                maxHeight = Math.max(maxHeight, h);
+            }
+        }
+        occluderHeights = calculateOccluderHeights();
+    }
+
+    // Heights of a coarse (OCCLUDER_GRID+1) x (OCCLUDER_GRID+1) grid for occlusion culling, row by row in z.
+    // Each vertex takes the lowest height of the map within one coarse cell around it, so the coarse surface
+    // is nowhere above the real terrain.
+    public float[] getOccluderHeights() {
+        return occluderHeights;
+    }
+
+    private float[] calculateOccluderHeights() {
+        final int N = TerrainChunk.OCCLUDER_GRID;
+        final int M = TerrainChunk.MAP_SIZE;
+        final int step = M / N;
+        float[] occluder = new float[(N+1) * (N+1)];
+        for(int j = 0; j <= N; j++) {
+            int z0 = Math.max(0, (j-1) * step);
+            int z1 = Math.min(M, (j+1) * step);
+            for(int i = 0; i <= N; i++) {
+                int x0 = Math.max(0, (i-1) * step);
+                int x1 = Math.min(M, (i+1) * step);
+                float min = Float.MAX_VALUE;
+                for(int z = z0; z <= z1; z++)
+                    for(int x = x0; x <= x1; x++)
+                        min = Math.min(min, get(x, z));
+                occluder[j * (N+1) + i] = min;
+            }
+        }
+        return occluder;
+    }
+
+    // height at grid point (x, z), in [-1 .. MAP_SIZE+1] (i.e. including the apron)
+    public float get(int x, int z) {
+        return heights[(z+1) * STRIDE + x + 1];
+    }
+
+    // height range of the tile, excluding the apron
+    public float getMinHeight() {
+        return minHeight;
+    }
+
+    public float getMaxHeight() {
+        return maxHeight;
+    }
+
+    // x, z relative to terrain chunk
+    public float getHeight(float relx, float relz) {
+        // position in grid (rounded down) : grid cell coordinates [0.. MAP_SIZE-1]
+        final int N = TerrainChunk.MAP_SIZE;
+        float cellSize = Settings.terrainChunkSize / (float)N;
+        float gx = relx / cellSize;
+        float gz = relz / cellSize;
+        int mx = (int)Math.floor(gx);
+        int mz = (int)Math.floor(gz);
+
+        if(mx < 0 || mx >= N || mz < 0 || mz >= N) {
+            // allow for rounding on the far edges
+            if(mx == N && gx - N < 0.001f) mx = N-1;
+            if(mz == N && gz - N < 0.001f) mz = N-1;
+            if(mx < 0 || mx >= N || mz < 0 || mz >= N)
+                return 0;
+        }
+
+        // barycentric interpolation within the triangle of the grid cell, same triangles as the terrain mesh
+        float xCoord = gx - mx;
+        float zCoord = gz - mz;
+        int i = (mz+1) * STRIDE + mx + 1;
+        if( xCoord < 1f - zCoord) {   // top triangle
+            float h00 = heights[i];
+            return h00 + xCoord * (heights[i+1] - h00) + zCoord * (heights[i+STRIDE] - h00);
+        }
+        else { // bottom triangle
+            float h11 = heights[i+STRIDE+1];
+            return h11 + (1f-xCoord) * (heights[i+STRIDE] - h11) + (1f-zCoord) * (heights[i+1] - h11);
+        }
+    }
+}
@@ -1,50 +1,84 @@
 package com.monstrous.impostors.terrain;
 
+import com.badlogic.gdx.Gdx;
 import com.badlogic.gdx.graphics.Camera;
 import com.badlogic.gdx.math.Vector3;
 import com.badlogic.gdx.utils.Array;
 import com.badlogic.gdx.utils.Disposable;
 import com.monstrous.impostors.Settings;
-import com.monstrous.impostors.utils.Noise;
+import com.monstrous.impostors.utils.ChunkGrid;
 import net.mgsx.gltf.scene3d.scene.Scene;
 
-import java.util.HashMap;
+import java.util.Comparator;
 
 
 // Infinite Terrain using terrain chunks that are generated on demand.
 // It is subdivided into chunks of size Settings.chunkSize
+// Chunks are generated in the background (see TerrainChunkLoader) and rendered once their mesh is uploaded.
+// Height queries use the HeightField, so they don't create terrain chunks outside the viewing range.
+// The chunks get a geometry LOD level from their distance to the camera (see TerrainLod).
+// Chunks ahead of the camera, in the direction it is moving, are requested before they enter the viewing range.
+// The chunk cache is kept within Settings.terrainCacheBudget bytes by evicting the least recently used chunks.
 
-// call terrain.update( camera ) before rendering
+// call terrain.update( deltaTime, camera ) before rendering
 
 
 public class Terrain implements Disposable {
     private static final int RANGE = 2;               // viewing range in chunks
 
-    final HashMap<Integer, TerrainChunk> chunks;      // map of terrain chunk per grid point
+    final ChunkGrid<TerrainChunk> chunks;             // terrain chunk per grid point
+    private final Array<TerrainChunk> allChunks;
     private final Array<Scene> scenes;                 // scenes to be rendered
+    private final TerrainChunkLoader loader;
+    private final HeightField heightField;
+    private final TerrainLod lod;
+    private final int[] lodLevels;                     // per chunk in range, -1 if not ready
+    private final TerrainChunk[] chunksInRange;
+    private int numRendered;
+    private int numTriangles;                          // of the rendered chunks
+    private final Vector3 focus;                       // camera position of the last update, for the priority of new chunks
+    private final Vector3 velocity;                    // smoothed camera velocity, for prefetching
+    private final Vector3 tmpVec;
+    private final Array<TerrainChunk> evictable;
+    private final Array<TerrainChunk> cancelled;       // waiting chunks dropped by the loader
+    private final Array<TerrainChunk> readyChunks;     // chunks that became ready in this update
+    private final Comparator<TerrainChunk> lruComparator;
+    private long bytesUsed;                            // of the ready chunks, kept up to date as chunks become ready or are evicted
     int timeCounter;                            // used as timestamp for chunk creation time
-    private Noise noise;
 
     public Terrain( Vector3 startPosition) {
-        chunks = new HashMap<>();
+        chunks = new ChunkGrid<>(2*RANGE+1);
+        allChunks = new Array<>();
         scenes = new Array<>();
-        noise = new Noise();
+        lod = new TerrainLod();
+        loader = new TerrainChunkLoader(lod);
+        lodLevels = new int[(2*RANGE+1)*(2*RANGE+1)];
+        chunksInRange = new TerrainChunk[(2*RANGE+1)*(2*RANGE+1)];
+        heightField = new HeightField();
+        heightField.setTerrainChunks(chunks);       // height queries share the tiles of chunks that are being generated
+        focus = new Vector3(startPosition);
+        velocity = new Vector3();
+        tmpVec = new Vector3();
+        evictable = new Array<>();
+        cancelled = new Array<>();
+        readyChunks = new Array<>();
+        lruComparator = (a, b) -> Integer.compare(a.lastUsed, b.lastUsed);
 
         int px = (int)Math.floor(startPosition.x/Settings.terrainChunkSize);
         int pz = (int)Math.floor(startPosition.z/Settings.terrainChunkSize);
+        chunks.setCentre(px, pz);
 
-        // Add a NxN square of chunks to the scenes array (is RANGE is 2, this is 5x5)
-        // Create chunks as needed
+        // Request a NxN square of chunks (is RANGE is 2, this is 5x5)
 
         for (int cx = px-RANGE; cx <= px+RANGE; cx++) {
             for (int cz = pz-RANGE; cz <= pz+RANGE; cz++) {
 
-                Integer key = makeKey(cx, cz);
-
-                TerrainChunk chunk = chunks.get(key);
+                TerrainChunk chunk = chunks.get(cx, cz);
                 if(chunk == null) {
                     chunk = new TerrainChunk(cx, cz, timeCounter);
-                    chunks.put(key, chunk);
+                    chunks.put(cx, cz, chunk);
+                    chunk.setHeightTile(heightField.peekTile(cx, cz));
+                    loader.request(chunk, focus, null);
                 }
             }
         }
@@ -56,94 +90,227 @@ public class Terrain implements Disposable {
 
 
     // call in the render loop or when camera moves
-    public boolean update(Camera cam){
+    // returns true if chunks became ready or were deleted
+    public boolean update(float deltaTime, Camera cam){
         timeCounter++;
+        if(deltaTime > 0) {
+            tmpVec.set(cam.position).sub(focus).scl(1f / deltaTime);
+            velocity.lerp(tmpVec, Math.min(1f, Settings.terrainVelocitySmoothing * deltaTime));
+        }
+        focus.set(cam.position);
+        heightField.update(cam.position.x, cam.position.z);
+
+        // upload the meshes of chunks that were generated in the background, within the time budget
+        int ready = loader.update(readyChunks);
+        for(TerrainChunk chunk : readyChunks)
+            bytesUsed += chunk.getMemorySize();
+        readyChunks.clear();
 
         int px = (int)Math.floor(cam.position.x/Settings.terrainChunkSize);
         int pz = (int)Math.floor(cam.position.z/Settings.terrainChunkSize);
+        chunks.setCentre(px, pz);       // slide the grid window along with the camera
 
         // Add a NxN square of chunks to the scenes array (is RANGE is 2, this is 5x5)
-        // Create chunks as needed (but not more than one at a time to avoid stutter)
+        // Request chunks as needed, only chunks that are ready are rendered
 
-        int added = 0;
         scenes.clear();
+        numRendered = 0;
+        numTriangles = 0;
         for (int cx = px-RANGE; cx <= px+RANGE; cx++) {
             for (int cz = pz-RANGE; cz <= pz+RANGE; cz++) {
+                int index = (cz-pz+RANGE)*(2*RANGE+1) + (cx-px+RANGE);
+                chunksInRange[index] = null;
 
-                Integer key = makeKey(cx, cz);
-
-                TerrainChunk chunk = chunks.get(key);
-                if(chunk == null && added == 0) {
-                        chunk = new TerrainChunk(cx, cz, timeCounter);
-                        chunks.put(key, chunk);
-                        //Gdx.app.log("num chunks", "" + chunks.size());
-                        added++;                             // avoid generating more than 1 chunk per frame to avoid stutter
-                }
-                if(chunk != null && cam.frustum.boundsInFrustum(chunk.bbox)) {  // frustum culling
+                TerrainChunk chunk = getOrRequest(cx, cz, cam);
+                if(!chunk.isReady())
+                    continue;
+                heightField.offer(chunk.getHeightTile());       // share the heights with the height queries (no-op if cached)
+                chunksInRange[index] = chunk;
+                if(cam.frustum.boundsInFrustum(chunk.bbox)) {  // frustum culling
                     scenes.add(chunk.getScene());
                     chunk.lastSeen = timeCounter;
                 }
             }
         }
+        updateLod(cam);
+        prefetch(cam, px, pz);
+
+        // drop the waiting chunks that are no longer in range or prefetched, they are requested again when needed
+        loader.reprioritize(cam, timeCounter, cancelled);
+        for(TerrainChunk chunk : cancelled) {
+            chunks.remove(chunk.coord.x, chunk.coord.y);
+            if(Settings.debugTerrainChunkAllocation)
+                Gdx.app.log("Terrain", "cancel chunk " + chunk.coord + ", chunks: " + chunks.size());
+        }
+        cancelled.clear();
+
+        int evicted = evict();
+        return ready > 0 || evicted > 0;
+    }
+
+    // chunk at (cx, cz), it is created and requested if it doesn't exist. Marks the chunk as used.
+    private TerrainChunk getOrRequest(int cx, int cz, Camera cam) {
+        TerrainChunk chunk = chunks.get(cx, cz);
+        if(chunk == null) {
+            chunk = new TerrainChunk(cx, cz, timeCounter);
+            chunks.put(cx, cz, chunk);
+            chunk.setHeightTile(heightField.peekTile(cx, cz));     // reuse the heights if they were queried before
+            loader.request(chunk, cam.position, cam.frustum);
+            //Gdx.app.log("num chunks", "" + chunks.size());
+        }
+        chunk.lastUsed = timeCounter;
+        return chunk;
+    }
 
-        // keep the chunk cache at a reasonable size
-        // delete the oldest chunk if cache gets too big
+    // Request the chunks around the position the camera will be at in Settings.terrainPrefetchTime seconds at its current
+    // velocity, that are not in the viewing range yet. These are further away than the chunks in range, so the
+    // loader generates them afterwards.
+    private void prefetch(Camera cam, int px, int pz) {
+        if(Settings.terrainPrefetchTime <= 0)
+            return;
+        tmpVec.set(velocity).scl(Settings.terrainPrefetchTime);
+        tmpVec.y = 0;
+        tmpVec.limit(RANGE * Settings.terrainChunkSize);     // at most the viewing range ahead
+        tmpVec.add(cam.position);
+        int ax = (int)Math.floor(tmpVec.x/Settings.terrainChunkSize);
+        int az = (int)Math.floor(tmpVec.z/Settings.terrainChunkSize);
+        if(ax == px && az == pz)
+            return;
 
-        if(added == 0 && chunks.size() > Settings.terrainChunkCacheSize){
-            // find the oldest chunk
-            // alternative: last seen chunk
-            TerrainChunk oldest = null;
-            for(TerrainChunk chunk : chunks.values()){
-                if(oldest == null || chunk.creationTime < oldest.creationTime)
-                    oldest = chunk;
+        for (int cx = ax-RANGE; cx <= ax+RANGE; cx++) {
+            for (int cz = az-RANGE; cz <= az+RANGE; cz++) {
+                if(Math.abs(cx - px) > RANGE || Math.abs(cz - pz) > RANGE)      // outside the viewing range
+                    getOrRequest(cx, cz, cam);
             }
-            // now remove this chunk
-            if(oldest != null) {
-                Integer key =  makeKey(oldest.coord.x, oldest.coord.y);
-                chunks.remove(key);
-                scenes.removeValue(oldest.getScene(), true);
-                oldest.dispose();
-                //Gdx.app.log("deleting "+oldest.coord.toString(), "num chunks"+chunks.size());
-                return true;
+        }
+    }
+
+    // If the ready chunks use more than Settings.terrainCacheBudget bytes, evict the least recently used chunks until the memory
+    // use is at the low watermark. Chunks that are used in this update (in range or prefetched) or that are still
+    // being generated are kept. Returns the number of evicted chunks.
+    // The memory use is kept as a running total, so the chunks are only visited and sorted when over budget.
+    private int evict() {
+        if(bytesUsed <= Settings.terrainCacheBudget)
+            return 0;
+
+        evictable.clear();
+        for(TerrainChunk chunk : chunks.values(allChunks)) {
+            if(chunk.isReady() && chunk.lastUsed != timeCounter)
+                evictable.add(chunk);
+        }
+        evictable.sort(lruComparator);
+
+        long target = (long)(Settings.terrainCacheBudget * Settings.terrainCacheLowWatermark);
+        int count = 0;
+        for(TerrainChunk chunk : evictable) {
+            if(bytesUsed <= target)
+                break;
+            chunks.remove(chunk.coord.x, chunk.coord.y);
+            bytesUsed -= chunk.getMemorySize();
+            chunk.dispose();
+            count++;
+            if(Settings.debugTerrainChunkAllocation)
+                Gdx.app.log("Terrain", "evict chunk " + chunk.coord + ", chunks: " + chunks.size() + ", bytes: " + bytesUsed);
+        }
+        evictable.clear();
+        return count;
+    }
+
+    // bytes used by the ready terrain chunks, as of the last update
+    public long getMemoryUsed() {
+        return bytesUsed;
+    }
+
+    // Select the LOD level of each ready chunk in range from its distance, and limit the difference between neighbours
+    // to one level so that the edges can be stitched. Edges next to a coarser neighbour are stitched to it.
+    private void updateLod(Camera cam) {
+        final int W = 2*RANGE+1;
+        for(int i = 0; i < chunksInRange.length; i++)
+            lodLevels[i] = chunksInRange[i] == null ? -1 : TerrainLod.selectLevel(cam.position, chunksInRange[i].bbox);
+
+        // lower the level of chunks that are more than one level coarser than a neighbour, until nothing changes
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+            for (int z = 0; z < W; z++) {
+                for (int x = 0; x < W; x++) {
+                    int level = lodLevels[z*W + x];
+                    if(level < 0)
+                        continue;
+                    int limit = Math.min(Math.min(neighbourLevel(x, z-1), neighbourLevel(x+1, z)),
+                                         Math.min(neighbourLevel(x, z+1), neighbourLevel(x-1, z))) + 1;
+                    if(level > limit) {
+                        lodLevels[z*W + x] = limit;
+                        changed = true;
+                    }
+                }
+            }
+        }
+
+        for (int z = 0; z < W; z++) {
+            for (int x = 0; x < W; x++) {
+                TerrainChunk chunk = chunksInRange[z*W + x];
+                if(chunk == null)
+                    continue;
+                int level = lodLevels[z*W + x];
+                int edges = 0;
+                if(neighbourLevel(x, z-1) == level+1) edges |= TerrainLod.EDGE_MIN_Z;
+                if(neighbourLevel(x+1, z) == level+1) edges |= TerrainLod.EDGE_MAX_X;
+                if(neighbourLevel(x, z+1) == level+1) edges |= TerrainLod.EDGE_MAX_Z;
+                if(neighbourLevel(x-1, z) == level+1) edges |= TerrainLod.EDGE_MIN_X;
+                chunk.setLod(lod, level, edges);
+                if(chunk.lastSeen == timeCounter) {
+                    numRendered++;
+                    numTriangles += chunk.getTriangleCount();
+                }
             }
         }
-        return added > 0;
     }
 
-    // convert chunk (X,Y) to a single integer for easy use as a key in the hash map
-    private int makeKey(int cx, int cz) {
-        return cx + 1000 * cz;
+    // level of the chunk at (x, z) in the range window, a large value if there is no (ready) chunk
+    private int neighbourLevel(int x, int z) {
+        final int W = 2*RANGE+1;
+        if(x < 0 || x >= W || z < 0 || z >= W || lodLevels[z*W + x] < 0)
+            return Integer.MAX_VALUE - 1;
+        return lodLevels[z*W + x];
     }
 
+    // number of chunks rendered in the last update
+    public int getRenderedChunkCount() {
+        return numRendered;
+    }
 
-    // get terrain height at (x,z)
+    // number of triangles of the chunks rendered in the last update
+    public int getTriangleCount() {
+        return numTriangles;
+    }
+
+    // terrain chunk at grid position (cx, cz), or null if it is not created yet (this doesn't create it)
+    public TerrainChunk getChunk(int cx, int cz) {
+        return chunks.get(cx, cz);
+    }
+
+    public HeightField getHeightField() {
+        return heightField;
+    }
+
+    // get terrain height at (x,z), from the render thread
     public float getHeight(float x, float z) {
-//        float scale = Settings.terrainChunkSize;
-//        float ht = noise.PerlinNoise(z/scale, x/scale) * TerrainChunk.AMPLITUDE;
-//        return ht;
-
-        // work out what chunk we're in
-        // and the relative position for that chunk
-        //
-        int cx = (int)Math.floor(x/Settings.terrainChunkSize);
-        int cz = (int)Math.floor(z/Settings.terrainChunkSize);
-        Integer key = makeKey(cx, cz);
-        TerrainChunk chunk = chunks.get(key);
-        if(chunk == null){
-            // this can happen if the terrain chunk is not generated yet and e.g. we want to place some scenery here
-            // create terrain chunk on demand
-            chunk = new TerrainChunk(cx, cz, timeCounter);
-            chunks.put(key, chunk);
-            //Gdx.app.error("position outside chunks, generating on demand", "cx:"+cx+", cz:"+cz);
-        }
-        return chunk.getHeight(x - cx*Settings.terrainChunkSize, z - cz*Settings.terrainChunkSize);
+        return heightField.getHeight(x, z);
+    }
+
+    // get terrain heights at count positions (xs[i], zs[i]) in one pass, see HeightField.getHeights()
+    public void getHeights(float[] xs, float[] zs, int count, float[] heights) {
+        heightField.getHeights(xs, zs, count, heights);
     }
 
 
     @Override
     public void dispose() {
-        for(TerrainChunk chunk : chunks.values())
+        loader.dispose();
+        for(TerrainChunk chunk : chunks.values(allChunks))
             chunk.dispose();
+        lod.dispose();
     }
 
 }
@@ -1,19 +1,15 @@
 package com.monstrous.impostors.terrain;
 
-import com.badlogic.gdx.Gdx;
 import com.badlogic.gdx.graphics.Color;
 import com.badlogic.gdx.graphics.GL20;
-import com.badlogic.gdx.graphics.VertexAttributes;
+import com.badlogic.gdx.graphics.Mesh;
 import com.badlogic.gdx.graphics.g3d.Material;
 import com.badlogic.gdx.graphics.g3d.Model;
 import com.badlogic.gdx.graphics.g3d.ModelInstance;
 import com.badlogic.gdx.graphics.g3d.attributes.ColorAttribute;
-import com.badlogic.gdx.graphics.g3d.utils.MeshBuilder;
-import com.badlogic.gdx.graphics.g3d.utils.MeshPartBuilder;
+import com.badlogic.gdx.graphics.g3d.model.MeshPart;
 import com.badlogic.gdx.graphics.g3d.utils.ModelBuilder;
-import com.badlogic.gdx.math.GeometryUtils;
 import com.badlogic.gdx.math.GridPoint2;
-import com.badlogic.gdx.math.Vector2;
 import com.badlogic.gdx.math.Vector3;
 import com.badlogic.gdx.math.collision.BoundingBox;
 import com.badlogic.gdx.utils.Disposable;
@@ -23,6 +19,13 @@ import net.mgsx.gltf.scene3d.attributes.PBRColorAttribute;
 import net.mgsx.gltf.scene3d.scene.Scene;
 
 
+// Square of terrain, made in two steps:
+//  generate(): height tile and vertex array, can run on a worker thread (see TerrainChunkLoader)
+//  finish():   GL mesh and scene, on the render thread
+// The mesh has the full resolution vertices and uses the shared index buffer of TerrainLod, setLod() selects the
+// indices for the LOD level.
+// Height queries don't go through terrain chunks but through the HeightField, which shares the chunk's height tile.
+
 
 public class TerrainChunk implements Disposable {
 
@@ -30,16 +33,27 @@ public class TerrainChunk implements Disposable {
     public static final float SCALE  = Settings.terrainChunkSize;       // terrain size in world units
     public static final float AMPLITUDE  = 400f; // amplitude in world units
     public static final float GRID_SCALE = 64;      // how many Perlin points across the map
+    public static final int OCCLUDER_GRID = 16;     // grid cells per axis of the coarse occluder, must divide MAP_SIZE
+    public static final int BYTES_PER_CHUNK = 1024; // estimated memory use of the chunk itself, its model and scene
 
     public GridPoint2 coord;
-    public int creationTime;            // when was chunk created? used to delete old chunks when needed
-    public int lastSeen;
-    public BoundingBox bbox;
+    public int creationTime;            // when was chunk created?
+    public int lastSeen;                // when was chunk last rendered?
+    public int lastUsed;                // when was chunk last in range or prefetched? used to evict the least recently used chunks
+    public BoundingBox bbox;            // conservative until the chunk is finished
+    public float priority;              // for the loader, lower values are generated first
 
     private Model model;
     private ModelInstance modelInstance;
     private Scene scene;
-    private float[][] heightMap;
+    private volatile HeightTile heightTile;
+    private final Object heightLock = new Object();     // guards the creation of the height tile
+    private float[] vertices;           // vertex data from generate(), released by finish()
+    private MeshPart meshPart;          // of the model instance, its offset and size select the LOD pattern
+    private int lodPattern = -1;
+    private int triangleCount;
+    private float minHeight, maxHeight;
+    private volatile boolean generated;
     private Vector3 position; // position of terrain in world coordinates
 
 
@@ -50,169 +64,116 @@ public class TerrainChunk implements Disposable {
         this.coord = new GridPoint2(xoffset, yoffset);
         this.creationTime = creationTime;
         position = new Vector3(xoffset * Settings.terrainChunkSize, 0, yoffset * Settings.terrainChunkSize);
-        bbox = new BoundingBox();
+        bbox = new BoundingBox(new Vector3(position.x, -AMPLITUDE, position.z),
+            new Vector3(position.x + SCALE, AMPLITUDE, position.z + SCALE));
+    }
 
-        Noise noise = new Noise();
+    // Height map and vertex data. Thread safe: if another thread is generating this chunk, wait for its result
+    // instead of generating it again. Does nothing if the chunk was generated already.
+    public synchronized void generate() {
+        if(generated)
+            return;
+
+        HeightTile heightTile = getOrCreateHeightTile(null);
+        vertices = TerrainMeshBuilder.allocate();
+        TerrainMeshBuilder.build(heightTile, SCALE, vertices);
+        minHeight = heightTile.getMinHeight();
+        maxHeight = heightTile.getMaxHeight();
+        generated = true;
+    }
 
+    // use a height tile that is available already (e.g. from the HeightField), call before generate()
+    public void setHeightTile(HeightTile tile) {
+        synchronized (heightLock) {
+            heightTile = tile;
+        }
+    }
 
-        heightMap = noise.generatePerlinMap(xoffset*MAP_SIZE, yoffset*MAP_SIZE, MAP_SIZE, MAP_SIZE,  GRID_SCALE, AMPLITUDE);
+    // The height tile of this chunk, it is created now if there is none yet. Thread safe: the worker generating the chunk
+    // and a height query on the render thread (see HeightField) get the same tile, whichever needs it first creates it
+    // and the other one waits for it. The lock is only held while the tile is created, not while the vertices are built.
+    // noise may be null, then a new Noise is used.
+    public HeightTile getOrCreateHeightTile(Noise noise) {
+        synchronized (heightLock) {
+            if(heightTile == null)
+                heightTile = new HeightTile(coord.x, coord.y, noise != null ? noise : new Noise());
+            return heightTile;
+        }
+    }
 
+    public HeightTile getHeightTile() {
+        return heightTile;
+    }
+
+    // Upload the mesh, must be called on the render thread after generate().
+    public void finish(TerrainLod lod) {
         Material material =  new Material();
         if(Settings.usePBRshader)
             material.set(PBRColorAttribute.createBaseColorFactor(new Color(0x529E5BFF)));
         else
             material.set(ColorAttribute.createDiffuse(new Color(0x425A47FF)));
-        model = makeGridModel(heightMap, SCALE, MAP_SIZE, GL20.GL_TRIANGLES, material);
-        modelInstance =  new ModelInstance(model, position);
-
-        modelInstance.calculateBoundingBox(bbox);       // could be done faster
-        bbox.mul(modelInstance.transform);
-        scene = new Scene(modelInstance, false);
-    }
 
-
-    public Scene getScene() { return scene; }
-
-    @Override
-    public void dispose() {
-        model.dispose();
-    }
-
-
-    // make a Model consisting of a square grid
-    private Model makeGridModel(float[][] heightMap, float scale, int divisions, int primitive, Material material) {
-        final int N = divisions;
-
-        int attr = VertexAttributes.Usage.Position | VertexAttributes.Usage.Normal | VertexAttributes.Usage.TextureCoordinates;
+        Mesh mesh = new TerrainMesh(vertices.length / TerrainMeshBuilder.FLOATS_PER_VERTEX, lod.getIndices());
+        mesh.setVertices(vertices);
+        vertices = null;
 
         ModelBuilder modelBuilder = new ModelBuilder();
         modelBuilder.begin();
-        MeshBuilder meshBuilder = (MeshBuilder) modelBuilder.part("face", primitive, attr, material);
-        final int numVerts = (N + 1) * (N + 1);
-        final int numTris = 2 * N * N;
-        Vector3[] positions = new Vector3[numVerts];
-        Vector3[] normals = new Vector3[numVerts];
-
-        meshBuilder.ensureVertices(numVerts);
-        meshBuilder.ensureTriangleIndices(numTris);
-
-        Vector3 pos = new Vector3();
-        float posz;
-
-        for (int y = 0; y <= N; y++) {
-            float posy = ((float) y / (float) N);        // y in [0.0 ..1.0]
-            for (int x = 0; x <= N; x++) {
-                float posx = ((float) x / (float) N);        // x in [0.0 .. 1.0]
-
-                posz = heightMap[y][x];
-                pos.set(posx * scale, posz, posy * scale);            // swapping z,y to orient horizontally
-
-                positions[y * (N + 1) + x] = new Vector3(pos);
-                normals[y * (N + 1) + x] = new Vector3(0, 0, 0);
-            }
-        }
-
-        for (int y = 1; y <= N; y++) {
-            short v0 = (short) ((y - 1) * (N + 1));    // vertex number at top left of this row
-            for (int x = 0; x <= N-1; x++, v0++) {
-                addRect(meshBuilder, positions, normals, (short) (v0 + N + 1), (short) (v0 + N + 2), (short) (v0 + 1), v0);
-            }
-        }
-
-        // now normalize each normal (which is the sum of the attached triangle normals)
-        // and pass vertex to meshBuilder
-        MeshPartBuilder.VertexInfo vert = new MeshPartBuilder.VertexInfo();
-        vert.hasColor = false;
-        vert.hasNormal = true;
-        vert.hasPosition = true;
-        vert.hasUV = true;
-
-        Vector3 normal = new Vector3();
-        for (int i = 0; i < numVerts; i++) {
-            normal.set(normals[i]);     // sum of normals to get smoothed normals
-            normal.nor();               // take average
-
-            int x = i % (N+1);	// e.g. in [0 .. 3] if N == 3
-            int y = i / (N+1);
-
-            float reps=64; //16
-            float u = (x*reps)/(float)(N+1);
-            float v = (y*reps)/(float)(N+1);
-            vert.position.set(positions[i]);
-            vert.normal.set(normal);
-            vert.uv.x = u;					// texture needs to have repeat wrapping enables to handle u,v > 1
-            vert.uv.y = v;
-            meshBuilder.vertex(vert);
-        }
-
-        Model model = modelBuilder.end();
-        return model;
+        modelBuilder.part("face", mesh, GL20.GL_TRIANGLES, material);
+        model = modelBuilder.end();
+        model.manageDisposable(mesh);
+        modelInstance =  new ModelInstance(model, position);
+        meshPart = modelInstance.nodes.first().parts.first().meshPart;
+        setLod(lod, 0, 0);
+        bbox.set(new Vector3(position.x, minHeight, position.z), new Vector3(position.x + SCALE, maxHeight, position.z + SCALE));
+        scene = new Scene(modelInstance, false);
     }
 
-    private void addRect(MeshBuilder meshBuilder, final Vector3[] vertices, Vector3[] normals, short v0, short v1, short v2, short v3) {
-        meshBuilder.rect(v0, v1, v2, v3);
-        calcNormal(vertices, normals, v0, v1, v2);
-        calcNormal(vertices, normals, v2, v3, v0);
-        // 6 indices to make 2 triangles, follows order of meshBuilder.rect()
-        //
-        //     v3 --v2
-        //      | /  |
-        //     v0 --v1
-        // triangle v0,v1,v2 and v2, v3, v0
-
+    // select the LOD level, and the edges that are stitched to a coarser neighbour (see TerrainLod)
+    public void setLod(TerrainLod lod, int level, int edges) {
+        int pattern = TerrainLod.getPattern(level, edges);
+        if(pattern == lodPattern)
+            return;
+        lodPattern = pattern;
+        meshPart.offset = lod.getOffset(pattern);
+        meshPart.size = lod.getSize(pattern);
+        triangleCount = lod.getTriangleCount(pattern);
     }
 
-    /*
-     * Calculate the normal
-     */
-    private Vector3 u = new Vector3();
-    private Vector3 v = new Vector3();
-    private Vector3 n = new Vector3();
-
-    private void calcNormal(final Vector3[] vertices, Vector3[] normals, short v0, short v1, short v2) {
-
-        Vector3 p0 = vertices[v0];
-        Vector3 p1 = vertices[v1];
-        Vector3 p2 = vertices[v2];
-
-        v = new Vector3(p2).sub(p1);
-        u = new Vector3(p0).sub(p1);
-        n = new Vector3(v).crs(u).nor();
+    public int getTriangleCount() {
+        return triangleCount;
+    }
 
-        normals[v0].add(n);
-        normals[v1].add(n);
-        normals[v2].add(n);
+    // Estimated memory use in bytes: the height tile and the vertices (as array until finish(), then as mesh).
+    // The shared index buffer is not included.
+    public long getMemorySize() {
+        long size = BYTES_PER_CHUNK;
+        if(generated)
+            size += HeightTile.BYTES + TerrainMeshBuilder.BYTES;
+        return size;
     }
 
+    public boolean isGenerated() {
+        return generated;
+    }
 
-    private Vector2 baryCoord = new Vector2();
+    // finished and can be rendered
+    public boolean isReady() {
+        return scene != null;
+    }
 
-    // x, z relative to terrain chunk
-    public float getHeight(float relx, float relz) {
-        // position relative to terrain origin
+    public Scene getScene() { return scene; }
 
-        // position in grid (rounded down) : grid cell coordinates [0.. MAP_SIZE-1]
-        int mx = (int)Math.floor((relx * MAP_SIZE) / Settings.terrainChunkSize);
-        int mz = (int)Math.floor((relz * MAP_SIZE) / Settings.terrainChunkSize);
+    @Override
+    public void dispose() {
+        if(model != null)
+            model.dispose();
+    }
 
-        if(mx < 0 ||mx >= MAP_SIZE || mz < 0 || mz >= MAP_SIZE){
-            Gdx.app.error("getHeight", "coord out of bounds");
-            return 0;
-        }
 
-        float cellSize = Settings.terrainChunkSize / (float)MAP_SIZE;
-        float xCoord = (relx % cellSize)/cellSize;
-        float zCoord = (relz % cellSize)/cellSize;
-        float ht;
-        if( xCoord < 1f - zCoord) {   // top triangle
-            baryCoord.set(xCoord, zCoord);
-            ht = GeometryUtils.fromBarycoord(baryCoord, heightMap[mz][mx], heightMap[mz][mx+1], heightMap[mz+1][mx]);
-        }
-        else { // bottom triangle
-            baryCoord.set(1f-xCoord, 1f-zCoord);
-            ht =  GeometryUtils.fromBarycoord(baryCoord, heightMap[mz+1][mx+1], heightMap[mz+1][mx], heightMap[mz][mx+1]);
-        }
-        return ht;
+    // Heights of the coarse occluder grid, see HeightTile.getOccluderHeights(). The chunk must be generated.
+    public float[] getOccluderHeights() {
+        return heightTile.getOccluderHeights();
     }
 
 }
@@ -0,0 +1,165 @@
+package com.monstrous.impostors.terrain;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.Camera;
+import com.badlogic.gdx.math.Frustum;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.Disposable;
+import com.monstrous.impostors.Settings;
+
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+
+
+// Generates terrain chunks in the background, in the same way as SceneryChunkLoader does for scenery.
+// Requested chunks are queued by priority (chunks in the camera frustum first, then by distance).
+// Worker threads generate the height maps and vertex data, the render thread only uploads the meshes
+// of completed chunks, up to a time budget per frame.
+// If Settings.asyncTerrainGeneration is false (e.g. on web), the chunks are generated on the render thread
+// but still in priority order and within the time budget.
+
+
+public class TerrainChunkLoader implements Disposable {
+
+    private static final float OUT_OF_VIEW_PENALTY = 1000000f;     // added to priority of chunks outside the frustum
+    private static final long REPRIORITIZE_INTERVAL = 250000000L;  // in ns, min time between two reprioritizations of the queue
+
+    private final PriorityBlockingQueue<TerrainChunk> queue;        // chunks waiting to be generated
+    private final ConcurrentLinkedQueue<TerrainChunk> completed;    // chunks generated, waiting for their mesh upload
+    private final Array<TerrainChunk> tmpChunks;
+    private final TerrainLod lod;
+    private final Vector3 lastPosition = new Vector3();            // camera at the last reprioritization
+    private final Vector3 lastDirection = new Vector3();
+    private long lastReprioritizeTime;
+    private Thread[] workers;
+    private volatile boolean running;
+
+    private static class PriorityComparator implements Comparator<TerrainChunk> {
+        @Override
+        public int compare(TerrainChunk o1, TerrainChunk o2) {
+            return Float.compare(o1.priority, o2.priority);
+        }
+    }
+
+    public TerrainChunkLoader(TerrainLod lod) {
+        this.lod = lod;
+        queue = new PriorityBlockingQueue<>(32, new PriorityComparator());
+        completed = new ConcurrentLinkedQueue<>();
+        tmpChunks = new Array<>();
+
+        if(Settings.asyncTerrainGeneration) {
+            running = true;
+            int numWorkers = Math.max(1, Math.min(Settings.terrainWorkerThreads, Runtime.getRuntime().availableProcessors() - 1));
+            workers = new Thread[numWorkers];
+            for (int i = 0; i < numWorkers; i++) {
+                workers[i] = new Thread(this::work, "terrain-worker-" + i);
+                workers[i].setDaemon(true);
+                workers[i].start();
+            }
+            Gdx.app.log("TerrainChunkLoader", "worker threads: " + numWorkers);
+        }
+    }
+
+    // worker thread loop
+    private void work() {
+        while (running) {
+            try {
+                TerrainChunk chunk = queue.take();      // blocks until a chunk is available
+                chunk.generate();                       // no-op if the render thread needed its heights first
+                completed.add(chunk);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // queue a new chunk for generation, frustum may be null (e.g. before there is a camera)
+    public void request(TerrainChunk chunk, Vector3 position, Frustum frustum) {
+        setPriority(chunk, position, frustum);
+        queue.add(chunk);
+    }
+
+    // Recalculate the priorities of the chunks that are still waiting, if the camera has moved or turned since the last time.
+    // Waiting chunks that were not used (in range or prefetched) at timeCounter are dropped from the queue instead and added
+    // to cancelled, so that they are not generated after the camera has left them behind.
+    // Can be called every frame: re-queueing all chunks is O(n log n), so it is done at most every REPRIORITIZE_INTERVAL.
+    public void reprioritize(Camera cam, int timeCounter, Array<TerrainChunk> cancelled) {
+        if(queue.isEmpty())
+            return;
+        long now = System.nanoTime();
+        if(now - lastReprioritizeTime < REPRIORITIZE_INTERVAL)
+            return;
+        if(cam.position.epsilonEquals(lastPosition, Settings.cameraMoveEpsilon) && cam.direction.epsilonEquals(lastDirection, Settings.cameraTurnEpsilon))
+            return;
+        lastReprioritizeTime = now;
+        lastPosition.set(cam.position);
+        lastDirection.set(cam.direction);
+
+        tmpChunks.clear();
+        TerrainChunk chunk;
+        while((chunk = queue.poll()) != null)
+            tmpChunks.add(chunk);
+        for(TerrainChunk waiting : tmpChunks) {
+            if(waiting.lastUsed != timeCounter) {
+                cancelled.add(waiting);
+                continue;
+            }
+            setPriority(waiting, cam.position, cam.frustum);
+            queue.add(waiting);
+        }
+        tmpChunks.clear();
+    }
+
+    private void setPriority(TerrainChunk chunk, Vector3 position, Frustum frustum) {
+        // horizontal distance to the chunk centre
+        float half = 0.5f * Settings.terrainChunkSize;
+        chunk.priority = position.dst((chunk.coord.x * Settings.terrainChunkSize) + half, position.y, (chunk.coord.y * Settings.terrainChunkSize) + half);
+        if(frustum != null && !frustum.boundsInFrustum(chunk.bbox))
+            chunk.priority += OUT_OF_VIEW_PENALTY;
+    }
+
+    // To be called from the render thread once per frame.
+    // Uploads the meshes of generated chunks until the time budget is used up, the chunks that became ready are added to readyChunks.
+    // Returns the number of chunks that became ready.
+    public int update(Array<TerrainChunk> readyChunks) {
+        long startTime = System.nanoTime();
+        long budget = (long)(Settings.terrainUploadBudget * 1000000f);     // ms to ns
+        int count = 0;
+        while(true) {
+            TerrainChunk chunk;
+            if(workers != null)
+                chunk = completed.poll();
+            else {
+                chunk = queue.poll();
+                if(chunk != null)
+                    chunk.generate();
+            }
+            if(chunk == null)
+                break;
+            chunk.finish(lod);
+            readyChunks.add(chunk);
+            count++;
+            if(System.nanoTime() - startTime > budget)    // always finish at least one chunk per frame
+                break;
+        }
+        return count;
+    }
+
+    public int getPendingCount() {
+        return queue.size() + completed.size();
+    }
+
+    @Override
+    public void dispose() {
+        running = false;
+        if(workers != null) {
+            for (Thread worker : workers)
+                worker.interrupt();
+            workers = null;
+        }
+        queue.clear();
+        completed.clear();
+    }
+}
@@ -6,6 +6,7 @@ import com.badlogic.gdx.graphics.Texture;
 import com.badlogic.gdx.graphics.g2d.SpriteBatch;
 import com.badlogic.gdx.graphics.g2d.TextureRegion;
 import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.utils.Array;
 import com.monstrous.impostors.Settings;
 
 
@@ -51,6 +52,7 @@ public class TerrainDebug {
 
 
     private Vector3 pos = new Vector3();
+    private Array<TerrainChunk> allChunks = new Array<>();
 
     public void debugRender(Vector3 playerPos, Vector3 camPos) {
         if(!Settings.debugTerrainChunkAllocation)
@@ -58,7 +60,7 @@ public class TerrainDebug {
 
         int size = SIZE;  // pixels per chunk
         batch.begin();
-        for(TerrainChunk chunk : terrain.chunks.values() ) {
+        for(TerrainChunk chunk : terrain.chunks.values(allChunks) ) {
             pos.set(chunk.coord.x, 0, chunk.coord.y);
             convert(pos);
             if(chunk.lastSeen == terrain.timeCounter)
@@ -0,0 +1,171 @@
+package com.monstrous.impostors.terrain;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.glutils.IndexBufferObject;
+import com.badlogic.gdx.graphics.glutils.IndexData;
+import com.badlogic.gdx.math.collision.BoundingBox;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.utils.Disposable;
+import com.monstrous.impostors.Settings;
+
+
+// Geometry LOD of the terrain chunks (geomipmapping).
+//
+// Every chunk keeps its full resolution vertex buffer, and the LOD level only selects which vertices are used:
+// level L uses every (2^L)th vertex in each direction. The index lists of all levels are built once and stored
+// in a single index buffer that all terrain chunk meshes share, so a chunk changes its level by changing the
+// offset and size of its mesh part.
+//
+// To avoid cracks, the levels of neighbouring chunks differ by at most one (see Terrain), and a chunk next to a coarser
+// neighbour is stitched along that edge: the odd vertices on the edge are snapped to the previous even vertex, so the
+// edge follows the coarser neighbour's edge exactly (the collapsed triangles are left out).
+// There is an index list per level and combination of coarser edges, i.e. LEVELS * 16 patterns.
+
+
+public class TerrainLod implements Disposable {
+
+    public static final int LEVELS = 5;             // level 0 is full resolution, each level halves the resolution
+
+    // bit masks for the chunk edges that are next to a coarser neighbour
+    public static final int EDGE_MIN_Z = 1;         // neighbour at (cx, cz-1)
+    public static final int EDGE_MAX_X = 2;         // neighbour at (cx+1, cz)
+    public static final int EDGE_MAX_Z = 4;         // neighbour at (cx, cz+1)
+    public static final int EDGE_MIN_X = 8;         // neighbour at (cx-1, cz)
+    private static final int EDGE_PATTERNS = 16;
+
+    private final SharedIndexBuffer indices;
+    private final int[] offsets;                    // per pattern: offset in the index buffer
+    private final int[] sizes;                      // per pattern: number of indices
+
+    // index buffer that doesn't get disposed along with a mesh, because it is shared by all terrain chunk meshes
+    private static class SharedIndexBuffer extends IndexBufferObject {
+        public SharedIndexBuffer(int maxIndices) {
+            super(true, maxIndices);
+        }
+
+        @Override
+        public void dispose() {
+            // ignore, see release()
+        }
+
+        public void release() {
+            super.dispose();
+        }
+    }
+
+    public TerrainLod() {
+        final int N = TerrainChunk.MAP_SIZE;
+        final int numPatterns = LEVELS * EDGE_PATTERNS;
+        offsets = new int[numPatterns];
+        sizes = new int[numPatterns];
+
+        int maxIndices = 0;
+        for(int level = 0; level < LEVELS; level++) {
+            int cells = N >> level;
+            maxIndices += EDGE_PATTERNS * 6 * cells * cells;
+        }
+        short[] all = new short[maxIndices];
+        int index = 0;
+        for(int level = 0; level < LEVELS; level++) {
+            for(int edges = 0; edges < EDGE_PATTERNS; edges++) {
+                int pattern = level * EDGE_PATTERNS + edges;
+                offsets[pattern] = index;
+                index = addPattern(all, index, level, edges);
+                sizes[pattern] = index - offsets[pattern];
+            }
+        }
+        indices = new SharedIndexBuffer(index);
+        indices.setIndices(all, 0, index);
+        Gdx.app.log("TerrainLod", "patterns: " + numPatterns + " indices: " + index);
+    }
+
+    // the index buffer to use for the terrain chunk meshes
+    public IndexData getIndices() {
+        return indices;
+    }
+
+    public static int getPattern(int level, int edges) {
+        return level * EDGE_PATTERNS + edges;
+    }
+
+    public int getOffset(int pattern) {
+        return offsets[pattern];
+    }
+
+    public int getSize(int pattern) {
+        return sizes[pattern];
+    }
+
+    public int getTriangleCount(int pattern) {
+        return sizes[pattern] / 3;
+    }
+
+    // LOD level for a chunk from its distance to the camera: level L is used beyond Settings.terrainLodDistance * 2^(L-1)
+    public static int selectLevel(Vector3 camPosition, BoundingBox bbox) {
+        if(!Settings.terrainLod)
+            return 0;
+        // distance from the camera to the nearest point of the bounding box
+        float dx = Math.max(0, Math.max(bbox.min.x - camPosition.x, camPosition.x - bbox.max.x));
+        float dy = Math.max(0, Math.max(bbox.min.y - camPosition.y, camPosition.y - bbox.max.y));
+        float dz = Math.max(0, Math.max(bbox.min.z - camPosition.z, camPosition.z - bbox.max.z));
+        float distance = (float)Math.sqrt(dx*dx + dy*dy + dz*dz);
+
+        int level = 0;
+        float threshold = Settings.terrainLodDistance;
+        while(distance > threshold && level < LEVELS-1) {
+            level++;
+            threshold *= 2f;
+        }
+        return level;
+    }
+
+    // Triangles of a chunk at the given level, with the given edges stitched to a coarser neighbour.
+    // Same triangulation as the full resolution grid, at a step of 2^level vertices.
+    private static int addPattern(short[] out, int index, int level, int edges) {
+        final int N = TerrainChunk.MAP_SIZE;
+        final int step = 1 << level;
+        for (int z = 0; z < N; z += step) {
+            for (int x = 0; x < N; x += step) {
+                //     v3 --v2
+                //      | /  |
+                //     v0 --v1
+                int v0 = vertex(x, z+step, step, edges);
+                int v1 = vertex(x+step, z+step, step, edges);
+                int v2 = vertex(x+step, z, step, edges);
+                int v3 = vertex(x, z, step, edges);
+                index = addTriangle(out, index, v0, v1, v2);
+                index = addTriangle(out, index, v2, v3, v0);
+            }
+        }
+        return index;
+    }
+
+    // Vertex index of grid point (x, z), snapping odd points on stitched edges to the previous even point
+    private static int vertex(int x, int z, int step, int edges) {
+        final int N = TerrainChunk.MAP_SIZE;
+        if((edges & EDGE_MIN_Z) != 0 && z == 0 && ((x / step) & 1) == 1)
+            x -= step;
+        if((edges & EDGE_MAX_Z) != 0 && z == N && ((x / step) & 1) == 1)
+            x -= step;
+        if((edges & EDGE_MIN_X) != 0 && x == 0 && ((z / step) & 1) == 1)
+            z -= step;
+        if((edges & EDGE_MAX_X) != 0 && x == N && ((z / step) & 1) == 1)
+            z -= step;
+        return z * (N + 1) + x;
+    }
+
+    // add a triangle unless it collapsed because of snapping
+    private static int addTriangle(short[] out, int index, int v0, int v1, int v2) {
+        if(v0 == v1 || v1 == v2 || v2 == v0)
+            return index;
+        out[index++] = (short)v0;
+        out[index++] = (short)v1;
+        out[index++] = (short)v2;
+        return index;
+    }
+
+    @Override
+    public void dispose() {
+        indices.release();
+    }
+}
@@ -0,0 +1,19 @@
+package com.monstrous.impostors.terrain;
+
+import com.badlogic.gdx.graphics.Mesh;
+import com.badlogic.gdx.graphics.VertexAttribute;
+import com.badlogic.gdx.graphics.glutils.IndexData;
+import com.badlogic.gdx.graphics.glutils.VertexBufferObject;
+
+
+// Mesh of a terrain chunk: its own vertex buffer and the index buffer shared by all chunks (see TerrainLod).
+// The shared index buffer is not disposed with the mesh.
+
+
+class TerrainMesh extends Mesh {
+
+    public TerrainMesh(int numVertices, IndexData sharedIndices) {
+        super(new VertexBufferObject(true, numVertices, VertexAttribute.Position(), VertexAttribute.Normal(), VertexAttribute.TexCoords(0)),
+            sharedIndices, false);
+    }
+}
@@ -0,0 +1,64 @@
+package com.monstrous.impostors.terrain;
+
+import com.monstrous.impostors.Settings;
+
+import java.util.stream.IntStream;
+
+
+// Builds the vertices of a terrain chunk mesh from its height tile: interleaved position, normal and texture coordinates
+// in a float array that is uploaded to the mesh in one call.
+//
+// The normals are calculated from central differences on the height map, using the apron of the height tile on the
+// edges, so there is no per triangle work and the normals match across chunk borders.
+// Every row only depends on the height tile, so the rows are built in parallel if Settings.parallelTerrainMeshBuilder is set.
+//
+// TerrainMeshBenchmark in the lwjgl3 module compares it to the previous builder, which averaged the triangle normals
+// (see BenchmarkLauncher).
+
+
+public class TerrainMeshBuilder {
+    public static final int FLOATS_PER_VERTEX = 8; // position, normal, texture coordinates
+    public static final float UV_REPEATS = 64f;     // texture repeats across a chunk
+    public static final int BYTES = 4 * FLOATS_PER_VERTEX * (TerrainChunk.MAP_SIZE + 1) * (TerrainChunk.MAP_SIZE + 1);  // of the vertices of a chunk
+
+    public static float[] allocate() {
+        final int N = TerrainChunk.MAP_SIZE;
+        return new float[FLOATS_PER_VERTEX * (N + 1) * (N + 1)];
+    }
+
+    // write the vertices of the chunk with this height tile into vertices (see allocate())
+    public static void build(HeightTile tile, float scale, float[] vertices) {
+        final int N = TerrainChunk.MAP_SIZE;
+        if(Settings.parallelTerrainMeshBuilder)
+            IntStream.rangeClosed(0, N).parallel().forEach(z -> buildRow(tile, scale, vertices, z));
+        else {
+            for (int z = 0; z <= N; z++)
+                buildRow(tile, scale, vertices, z);
+        }
+    }
+
+    private static void buildRow(HeightTile tile, float scale, float[] vertices, int z) {
+        final int N = TerrainChunk.MAP_SIZE;
+        final float cellSize = scale / N;
+        final float posz = ((float) z / (float) N) * scale;
+        final float v = (z * UV_REPEATS) / (float)(N+1);
+        int offset = FLOATS_PER_VERTEX * z * (N + 1);
+        for (int x = 0; x <= N; x++) {
+            // normal of the height field y = h(x,z) is (-dh/dx, 1, -dh/dz), scaled by 2*cellSize
+            float nx = tile.get(x-1, z) - tile.get(x+1, z);
+            float ny = 2f * cellSize;
+            float nz = tile.get(x, z-1) - tile.get(x, z+1);
+            float len = (float)Math.sqrt(nx*nx + ny*ny + nz*nz);
+
+            vertices[offset]   = ((float) x / (float) N) * scale;
+            vertices[offset+1] = tile.get(x, z);
+            vertices[offset+2] = posz;
+            vertices[offset+3] = nx / len;
+            vertices[offset+4] = ny / len;
+            vertices[offset+5] = nz / len;
+            vertices[offset+6] = (x * UV_REPEATS) / (float)(N+1);       // texture needs to have repeat wrapping enabled to handle u,v > 1
+            vertices[offset+7] = v;
+            offset += FLOATS_PER_VERTEX;
+        }
+    }
+}
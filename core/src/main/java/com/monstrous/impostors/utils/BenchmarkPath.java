@@ -0,0 +1,28 @@
+package com.monstrous.impostors.utils;
+
+import com.badlogic.gdx.graphics.Camera;
+import com.badlogic.gdx.math.MathUtils;
+import com.monstrous.impostors.terrain.HeightField;
+
+// Fixed camera path for benchmarks: low over the terrain, crossing valleys and ridges, looking ahead along the path.
+// Advanced with a fixed time step, so that every run (in the game or headless) sees the same views.
+
+
+public class BenchmarkPath {
+    public static final float DURATION = 60f;       // seconds of the path
+    public static final float STEP = 1f/60f;        // fixed time step along the path
+    public static final float SPEED = 150f;         // world units per second
+
+    // place the camera at the given time along the path
+    public static void place(Camera camera, float time, HeightField heights) {
+        float x = SPEED * time;
+        float z = 50f + 1000f * MathUtils.sin(0.05f * time);
+        camera.position.set(x, heights.getHeight(x, z) + 10f, z);
+        // look at a point further along the path
+        float ahead = time + 2f;
+        float lx = SPEED * ahead;
+        float lz = 50f + 1000f * MathUtils.sin(0.05f * ahead);
+        camera.direction.set(lx - x, 0, lz - z).nor();
+        camera.update();
+    }
+}
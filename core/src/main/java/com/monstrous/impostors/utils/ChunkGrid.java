@@ -0,0 +1,193 @@
+package com.monstrous.impostors.utils;
+
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.LongMap;
+
+// Index of chunks by signed integer grid coordinates (cx, cz).
+//
+// Chunks inside a square window around the camera are kept in a toroidal array, i.e. cell (cx, cz) is stored
+// in slot (cx mod size, cz mod size), so a lookup is just an array access.
+// When the window slides, only the rows/columns that leave or enter the window are moved.
+// Chunks outside the window are kept in an overflow map keyed on the full coordinates.
+// There is no boxing and no key collisions, whatever the distance from the origin.
+//
+// ChunkGridBenchmark in the lwjgl3 module checks the grid against a HashMap and times lookups (see BenchmarkLauncher).
+
+
+public class ChunkGrid<T> {
+
+    private final int size;         // window size in chunks per axis, power of two
+    private final int mask;
+    private final T[] cells;
+    private final LongMap<T> overflow;
+    private int originX, originZ;   // grid coordinates of the window's minimum corner
+    private int count;
+
+    // windowSize is rounded up to a power of two
+    public ChunkGrid(int windowSize) {
+        size = nextPowerOfTwo(Math.max(1, windowSize));
+        mask = size - 1;
+        cells = (T[]) new Object[size * size];
+        overflow = new LongMap<>();
+        originX = -size/2;
+        originZ = -size/2;
+        count = 0;
+    }
+
+    public int getWindowSize() {
+        return size;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    private boolean inWindow(int cx, int cz) {
+        return cx - originX >= 0 && cx - originX < size && cz - originZ >= 0 && cz - originZ < size;
+    }
+
+    private int slot(int cx, int cz) {
+        return (cz & mask) * size + (cx & mask);
+    }
+
+    private static long makeKey(int cx, int cz) {
+        return ((long)cx << 32) | (cz & 0xFFFFFFFFL);
+    }
+
+    public T get(int cx, int cz) {
+        if(inWindow(cx, cz))
+            return cells[slot(cx, cz)];
+        return overflow.get(makeKey(cx, cz));
+    }
+
+    // returns the previous value at these coordinates or null
+    public T put(int cx, int cz, T value) {
+        T previous;
+        if(inWindow(cx, cz)) {
+            int index = slot(cx, cz);
+            previous = cells[index];
+            cells[index] = value;
+        }
+        else
+            previous = overflow.put(makeKey(cx, cz), value);
+        if(previous == null)
+            count++;
+        return previous;
+    }
+
+    public T remove(int cx, int cz) {
+        T previous;
+        if(inWindow(cx, cz)) {
+            int index = slot(cx, cz);
+            previous = cells[index];
+            cells[index] = null;
+        }
+        else
+            previous = overflow.remove(makeKey(cx, cz));
+        if(previous != null)
+            count--;
+        return previous;
+    }
+
+    // Centre the window on (cx, cz).
+    // Chunks in the columns and rows that leave the window are moved to the overflow store and chunks from the overflow store
+    // that enter the window are moved in.  The cost scales with the window size times the distance moved.
+    public void setCentre(int cx, int cz) {
+        int newX = cx - size/2;
+        int newZ = cz - size/2;
+        if(newX == originX && newZ == originZ)
+            return;
+
+        if(Math.abs(newX - originX) >= size || Math.abs(newZ - originZ) >= size) {
+            // no overlap between old and new window
+            for (int z = originZ; z < originZ + size; z++)
+                for (int x = originX; x < originX + size; x++)
+                    evict(x, z);
+            originX = newX;
+            originZ = newZ;
+            for (int z = originZ; z < originZ + size; z++)
+                for (int x = originX; x < originX + size; x++)
+                    admit(x, z);
+            return;
+        }
+
+        // evict columns and rows that leave the window
+        int keepX0 = Math.max(originX, newX);
+        int keepX1 = Math.min(originX, newX) + size;      // exclusive
+        int keepZ0 = Math.max(originZ, newZ);
+        int keepZ1 = Math.min(originZ, newZ) + size;
+        visitStrips(originX, originZ, keepX0, keepX1, keepZ0, keepZ1, true);
+        originX = newX;
+        originZ = newZ;
+        // admit columns and rows that enter the window
+        visitStrips(originX, originZ, keepX0, keepX1, keepZ0, keepZ1, false);
+    }
+
+    // visit the cells of the window at (x0, z0) that are outside the kept rectangle [keepX0, keepX1) x [keepZ0, keepZ1)
+    private void visitStrips(int x0, int z0, int keepX0, int keepX1, int keepZ0, int keepZ1, boolean evict) {
+        for (int z = z0; z < z0 + size; z++) {
+            if(z >= keepZ0 && z < keepZ1) {
+                // row partly kept: only visit the columns on either side
+                for (int x = x0; x < keepX0; x++)
+                    visit(x, z, evict);
+                for (int x = keepX1; x < x0 + size; x++)
+                    visit(x, z, evict);
+            }
+            else {
+                for (int x = x0; x < x0 + size; x++)
+                    visit(x, z, evict);
+            }
+        }
+    }
+
+    private void visit(int x, int z, boolean evict) {
+        if(evict)
+            evict(x, z);
+        else
+            admit(x, z);
+    }
+
+    // move chunk at (x,z) from the window to the overflow store, (x,z) must be inside the current window
+    private void evict(int x, int z) {
+        int index = slot(x, z);
+        T value = cells[index];
+        if(value != null) {
+            cells[index] = null;
+            overflow.put(makeKey(x, z), value);
+        }
+    }
+
+    // move chunk at (x,z) from the overflow store to the window, (x,z) must be inside the current window
+    private void admit(int x, int z) {
+        if(overflow.size == 0)
+            return;
+        T value = overflow.remove(makeKey(x, z));
+        if(value != null)
+            cells[slot(x, z)] = value;
+    }
+
+    // add all chunks (in window and in overflow) to the output array
+    public Array<T> values(Array<T> output) {
+        output.clear();
+        for(T value : cells)
+            if(value != null)
+                output.add(value);
+        for(T value : overflow.values())
+            output.add(value);
+        return output;
+    }
+
+    public void clear() {
+        for(int i = 0; i < cells.length; i++)
+            cells[i] = null;
+        overflow.clear();
+        count = 0;
+    }
+
+    private static int nextPowerOfTwo(int value) {
+        int result = 1;
+        while(result < value)
+            result <<= 1;
+        return result;
+    }
+}
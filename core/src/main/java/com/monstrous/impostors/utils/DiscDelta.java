@@ -0,0 +1,73 @@
+package com.monstrous.impostors.utils;
+
+// Enumerates grid cells within a circular range, or the difference between two such ranges.
+//
+// A cell (x, z) is in the disc around (cx, cz) if (x-cx)^2 + (z-cz)^2 < radius^2.
+// When the centre moves, the cells that leave or enter the disc are found row by row as the difference
+// of two intervals, so the cost scales with the radius (plus the number of changed cells), not with the area.
+//
+// DiscDeltaBenchmark in the lwjgl3 module checks incremental updates against a brute force rebuild and times both along
+// a straight path (see BenchmarkLauncher).
+
+
+public class DiscDelta {
+
+    public interface CellVisitor {
+        void visit(int x, int z);
+    }
+
+    private final int radius;
+    private final int[] halfWidth;      // half width of the disc per row offset, -1 if the row is outside the disc
+
+    public DiscDelta(int radius) {
+        this.radius = radius;
+        halfWidth = new int[radius+1];
+        for(int dz = 0; dz <= radius; dz++) {
+            int w = -1;
+            while((w+1)*(w+1) + dz*dz < radius*radius)
+                w++;
+            halfWidth[dz] = w;
+        }
+    }
+
+    public int getRadius() {
+        return radius;
+    }
+
+    private int rowHalfWidth(int dz) {
+        dz = Math.abs(dz);
+        return dz > radius ? -1 : halfWidth[dz];
+    }
+
+    // visit all cells of the disc around (cx, cz)
+    public void visitDisc(int cx, int cz, CellVisitor visitor) {
+        for(int z = cz - radius; z <= cz + radius; z++) {
+            int w = rowHalfWidth(z - cz);
+            for(int x = cx - w; x <= cx + w; x++)
+                visitor.visit(x, z);
+        }
+    }
+
+    // visit cells in the disc around (ax, az) that are not in the disc around (bx, bz)
+    public void visitDifference(int ax, int az, int bx, int bz, CellVisitor visitor) {
+        for(int z = az - radius; z <= az + radius; z++) {
+            int wa = rowHalfWidth(z - az);
+            if(wa < 0)
+                continue;
+            int a0 = ax - wa;
+            int a1 = ax + wa;
+            int wb = rowHalfWidth(z - bz);
+            if(wb < 0) {        // row not in disc b
+                for(int x = a0; x <= a1; x++)
+                    visitor.visit(x, z);
+                continue;
+            }
+            int b0 = bx - wb;
+            int b1 = bx + wb;
+            for(int x = a0; x <= Math.min(a1, b0-1); x++)     // part left of interval b
+                visitor.visit(x, z);
+            for(int x = Math.max(a0, b1+1); x <= a1; x++)     // part right of interval b
+                visitor.visit(x, z);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.monstrous.impostors.utils;
+
+import com.badlogic.gdx.utils.Array;
+
+// Pool of float arrays to recycle the instance data of evicted chunks.
+// Arrays are handed out in power of two sizes, so an array freed by one chunk fits any chunk of a similar size.
+// Thread safe.
+
+
+public class FloatArrayPool {
+    private static final float[] EMPTY = new float[0];
+    private static final int MIN_SIZE_CLASS = 4;         // smallest array is 16 floats
+
+    private final Array<float[]>[] freeArrays;           // free arrays per size class, size class n holds arrays of length 2^n
+    private final int maxFreePerClass;
+
+    public FloatArrayPool(int maxFreePerClass) {
+        this.maxFreePerClass = maxFreePerClass;
+        freeArrays = new Array[31];
+        for(int i = 0; i < freeArrays.length; i++)
+            freeArrays[i] = new Array<>(false, 16, float[].class);
+    }
+
+    private static int sizeClass(int length) {
+        return Math.max(MIN_SIZE_CLASS, 32 - Integer.numberOfLeadingZeros(length - 1));
+    }
+
+    // get an array of at least minLength floats, contents are undefined
+    public synchronized float[] obtain(int minLength) {
+        if(minLength == 0)
+            return EMPTY;
+        int sizeClass = sizeClass(minLength);
+        Array<float[]> free = freeArrays[sizeClass];
+        if(free.size > 0)
+            return free.pop();
+        return new float[1 << sizeClass];
+    }
+
+    // return an array obtained from this pool
+    public synchronized void free(float[] array) {
+        if(array == null || array.length == 0)
+            return;
+        Array<float[]> free = freeArrays[sizeClass(array.length)];
+        if(free.size < maxFreePerClass)
+            free.add(array);
+    }
+
+    public synchronized void clear() {
+        for(Array<float[]> free : freeArrays)
+            free.clear();
+    }
+}
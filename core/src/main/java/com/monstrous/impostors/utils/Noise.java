@@ -85,4 +85,18 @@ public class Noise {
         return noise;
 
     }
+
+    // same as above, into a flat array of (height+1) rows of (width+1) values
+    public float[] generatePerlinMap (float[] output, int xoffset, int yoffset, int width, int height,  float gridscale, float amplitude) {
+        int index = 0;
+        for (int y = 0; y <= height; y++) {
+            for (int x = 0; x <= width; x++) {
+
+                float xf = (xoffset+x)/gridscale;
+                float yf = (yoffset+y)/gridscale;
+                output[index++] = PerlinNoise(xf, yf) * amplitude;
+            }
+        }
+        return output;
+    }
 }
@@ -13,12 +13,19 @@ import com.badlogic.gdx.math.Rectangle;
 import com.badlogic.gdx.math.Vector2;
 import com.badlogic.gdx.utils.Array;
 
+import java.util.Random;
+
 public class PoissonDiskDistribution {
 
     public static final int MAX_TRIES = 20;
 
     public static Array<Vector2> generatePoissonDistribution(float minDistance, Rectangle area) {
+        return generatePoissonDistribution(minDistance, area, MathUtils.random);
+    }
 
+    // variant using its own random generator, so it can be called from a worker thread
+    // (gives identical results to the above for an identically seeded generator)
+    public static Array<Vector2> generatePoissonDistribution(float minDistance, Rectangle area, Random random) {
 
         Array<Vector2> output = new Array<>();
         Array<Vector2> active = new Array<>();
@@ -29,7 +36,7 @@ public class PoissonDiskDistribution {
         Vector2[][] grid = new Vector2[w][h];	// initialized to nulls
 
 
-        Vector2 p0 = new Vector2( MathUtils.random(area.x, area.x+area.width), MathUtils.random(area.y, area.y+area.height) );
+        Vector2 p0 = new Vector2( randomRange(random, area.x, area.x+area.width), randomRange(random, area.y, area.y+area.height) );
 
         output.add(p0);
         active.add(p0);
@@ -38,15 +45,15 @@ public class PoissonDiskDistribution {
         while(active.size > 0 ) {
 
             // get a random point from the active list
-            int randomIndex = MathUtils.random(active.size-1);	// random index in [0 .. size-1]
+            int randomIndex = random.nextInt(active.size);	// random index in [0 .. size-1]
             Vector2 p = active.get(randomIndex);
 
             boolean found = false;
             for(int attempt = 0; attempt < MAX_TRIES; attempt++) {	// try k times before giving up
 
                 // generate a random point between r and 2r distance from p
-                float distance = MathUtils.random(minDistance, 2f*minDistance);
-                float angle = MathUtils.random(0, 2f*MathUtils.PI);
+                float distance = randomRange(random, minDistance, 2f*minDistance);
+                float angle = randomRange(random, 0, 2f*MathUtils.PI);
 
                 float x = p.x + distance*(float) Math.cos(angle);
                 float y = p.y + distance*(float) Math.sin(angle);
@@ -68,6 +75,12 @@ public class PoissonDiskDistribution {
     }
 
 
+    // same as MathUtils.random(start, end)
+    private static float randomRange(Random random, float start, float end) {
+        return start + random.nextFloat() * (end - start);
+    }
+
+
     private static void addToGrid(Vector2[][] grid, float cellSize, Rectangle area, Vector2 p) {
         int x = (int)Math.floor((p.x - area.x)/ cellSize);
         int y = (int)Math.floor((p.y - area.y)/ cellSize);
@@ -0,0 +1,277 @@
+package com.monstrous.impostors.utils;
+
+// Set of precomputed Poisson disk pieces from which tiles can be assembled that match their neighbours, in the spirit of Wang tiles.
+//
+// The border of a tile is split into pieces that are shared with the neighbouring tiles:
+//      corner pieces:  a square of 2c x 2c around each grid vertex (c = CORNER_FACTOR * minDistance)
+//      edge pieces:    a strip of 2d wide (d = minDistance) along each tile edge, between the corner squares
+// Every grid vertex gets one of numColours corner pieces and every edge one of numColours edge colours, chosen by hashing their
+// coordinates, so each tile has its own combination of borders while the tile on the other side of an edge uses the same pieces.
+// Corner pieces are generated first. There is an edge piece per edge colour and per pair of corner pieces at its ends, generated
+// around those two corner pieces. Because c > d * (1 + 1/sqrt(2)), edge pieces that meet at a corner are always more than d apart.
+// The interior of a tile is filled per tile with Bridson's algorithm around its border points. That is only a small part of the
+// tile, so this is still much cheaper than generating the whole tile, and no two tiles share their interior.
+//
+// Tiles need to be at least MIN_TILE_FACTOR * minDistance wide, see fits().
+// Tile points are in [0, tileSize) in both directions, relative to the tile corner.
+//
+// PoissonPatternBenchmark in the lwjgl3 module checks the minimum distance across tile seams, measures how many positions
+// tiles have in common and times tile generation against Bridson's algorithm (see BenchmarkLauncher).
+
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class PoissonPatternSet {
+
+    public static final int MAX_TRIES = 20;
+    public static final float CORNER_FACTOR = 1.75f;            // half size of a corner piece in units of minDistance
+    public static final float MIN_TILE_FACTOR = 2f*CORNER_FACTOR + 1f;
+
+    private final float minDistance;
+    private final float tileSize;
+    private final float cornerSize;                 // half size of a corner piece
+    private final long seed;
+    private final float[][] corners;                // per colour: packed x, z relative to the grid vertex
+    private final float[][] horizontalEdges;        // per colour: packed x, z relative to the left end of the edge
+    private final float[][] verticalEdges;          // per colour: packed x, z relative to the bottom end of the edge
+
+    private interface Area {
+        boolean contains(float x, float z);
+    }
+
+    public PoissonPatternSet(float minDistance, float tileSize, int numColours, long seed) {
+        if(!fits(minDistance, tileSize))
+            throw new IllegalArgumentException("tile size " + tileSize + " too small for minimum distance " + minDistance);
+        this.minDistance = minDistance;
+        this.tileSize = tileSize;
+        this.seed = seed;
+        cornerSize = CORNER_FACTOR * minDistance;
+        float c = cornerSize;
+        float d = minDistance;
+        float t = tileSize;
+
+        Random random = new Random(seed);
+        corners = new float[numColours][];
+        for(int k = 0; k < numColours; k++) {
+            Sampler sampler = new Sampler(d, -c, -c, c, c);
+            sampler.fill((x, z) -> x >= -c && x < c && z >= -c && z < c, -c, -c, c, c, random);
+            corners[k] = sampler.copyPoints(0);
+        }
+
+        // one edge piece per colour and per pair of corner colours at its ends
+        horizontalEdges = new float[numColours * numColours * numColours][];
+        verticalEdges = new float[numColours * numColours * numColours][];
+        for(int k = 0; k < horizontalEdges.length; k++) {
+            float[] first = corners[(k / numColours) % numColours];
+            float[] second = corners[k % numColours];
+
+            Sampler sampler = new Sampler(d, -c, -c, t + c, c);
+            sampler.addAll(first, 0, 0);
+            sampler.addAll(second, t, 0);
+            int start = sampler.numPoints;
+            sampler.fill((x, z) -> x >= c && x < t - c && z >= -d && z < d, c, -d, t - c, d, random);
+            horizontalEdges[k] = sampler.copyPoints(start);
+
+            sampler = new Sampler(d, -c, -c, c, t + c);
+            sampler.addAll(first, 0, 0);
+            sampler.addAll(second, 0, t);
+            start = sampler.numPoints;
+            sampler.fill((x, z) -> x >= -d && x < d && z >= c && z < t - c, -d, c, d, t - c, random);
+            verticalEdges[k] = sampler.copyPoints(start);
+        }
+    }
+
+    // can tiles of this size be assembled from pieces for this minimum distance?
+    public static boolean fits(float minDistance, float tileSize) {
+        return tileSize >= MIN_TILE_FACTOR * minDistance;
+    }
+
+    public int getColourCount() {
+        return corners.length;
+    }
+
+    public float getMinDistance() {
+        return minDistance;
+    }
+
+    public float getTileSize() {
+        return tileSize;
+    }
+
+    // Points of tile (tx, tz), packed x, z. The interior is filled using the given random generator, so the result is
+    // deterministic for a deterministically seeded generator. Can be called from any thread.
+    public float[] generate(int tx, int tz, Random random) {
+        float c = cornerSize;
+        float d = minDistance;
+        float t = tileSize;
+        Sampler sampler = new Sampler(d, -c, -c, t + c, t + c);
+
+        // all border pieces of the tile, including the parts that belong to the neighbours, which the interior must keep clear of
+        int c00 = colour(tx, tz, 0);
+        int c10 = colour(tx+1, tz, 0);
+        int c01 = colour(tx, tz+1, 0);
+        int c11 = colour(tx+1, tz+1, 0);
+        sampler.addAll(corners[c00], 0, 0);
+        sampler.addAll(corners[c10], t, 0);
+        sampler.addAll(corners[c01], 0, t);
+        sampler.addAll(corners[c11], t, t);
+        sampler.addAll(horizontalEdges[edge(colour(tx, tz, 1), c00, c10)], 0, 0);
+        sampler.addAll(horizontalEdges[edge(colour(tx, tz+1, 1), c01, c11)], 0, t);
+        sampler.addAll(verticalEdges[edge(colour(tx, tz, 2), c00, c01)], 0, 0);
+        sampler.addAll(verticalEdges[edge(colour(tx+1, tz, 2), c10, c11)], t, 0);
+        int start = sampler.numPoints;
+
+        sampler.fill((x, z) -> x >= d && x < t - d && z >= d && z < t - d
+                && !(Math.min(x, t - x) < c && Math.min(z, t - z) < c),         // not in a corner piece
+            d, d, t - d, t - d, random);
+
+        // keep the border points inside this tile and the interior points
+        float[] out = new float[2 * sampler.numPoints];
+        int n = 0;
+        for(int i = 0; i < sampler.numPoints; i++) {
+            float x = sampler.points[2*i];
+            float z = sampler.points[2*i+1];
+            if(i < start && (x < 0 || x >= t || z < 0 || z >= t))
+                continue;
+            out[n++] = x;
+            out[n++] = z;
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    // index of the edge piece of the given colour between corner pieces of colours first and second
+    private int edge(int colour, int first, int second) {
+        int n = corners.length;
+        return (colour * n + first) * n + second;
+    }
+
+    // colour of a grid vertex (kind 0), horizontal edge (kind 1) or vertical edge (kind 2), identical for all tiles sharing it
+    private int colour(int x, int z, int kind) {
+        long h = ((long)x << 32) | (z & 0xFFFFFFFFL);
+        h = mix64(h ^ mix64(seed + kind));
+        return (int)((h >>> 1) % corners.length);
+    }
+
+    // splitmix64 finalizer
+    private static long mix64(long h) {
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 31);
+    }
+
+
+    // Bridson's algorithm on a background grid of cells smaller than minDistance/sqrt(2), starting from the points already present.
+    // Points added with addAll() may be closer together than minDistance (e.g. the union of several corner pieces),
+    // so each cell has a list of points instead of a single one.
+    private static class Sampler {
+        final float minDistance;
+        final float x0, z0;
+        final float cellSize;
+        final int width, height;
+        final int reach;                // nr of cells to check in each direction
+        final int[] head;               // per cell: first point, -1 if none
+        int[] next;                     // per point: next point in the same cell
+        float[] points;                 // packed x, z
+        int numPoints;
+
+        Sampler(float minDistance, float x0, float z0, float x1, float z1) {
+            this.minDistance = minDistance;
+            this.x0 = x0;
+            this.z0 = z0;
+            cellSize = minDistance / (float)Math.sqrt(2);
+            width = (int)Math.ceil((x1 - x0) / cellSize) + 1;
+            height = (int)Math.ceil((z1 - z0) / cellSize) + 1;
+            reach = (int)Math.ceil(minDistance / cellSize);
+            head = new int[width * height];
+            Arrays.fill(head, -1);
+            next = new int[64];
+            points = new float[128];
+        }
+
+        void addAll(float[] piece, float dx, float dz) {
+            for(int i = 0; i < piece.length; i += 2)
+                add(piece[i] + dx, piece[i+1] + dz);
+        }
+
+        // add a point, points outside the grid are ignored as they are too far away to matter
+        int add(float x, float z) {
+            int gx = (int)Math.floor((x - x0) / cellSize);
+            int gz = (int)Math.floor((z - z0) / cellSize);
+            if(gx < 0 || gz < 0 || gx >= width || gz >= height)
+                return -1;
+            if(numPoints == next.length) {
+                next = Arrays.copyOf(next, 2 * next.length);
+                points = Arrays.copyOf(points, 2 * next.length);
+            }
+            int index = numPoints++;
+            points[2*index] = x;
+            points[2*index+1] = z;
+            next[index] = head[gz * width + gx];
+            head[gz * width + gx] = index;
+            return index;
+        }
+
+        boolean isValidPoint(float x, float z) {
+            int gx = (int)Math.floor((x - x0) / cellSize);
+            int gz = (int)Math.floor((z - z0) / cellSize);
+            for(int cz = Math.max(0, gz - reach); cz <= Math.min(height - 1, gz + reach); cz++) {
+                for(int cx = Math.max(0, gx - reach); cx <= Math.min(width - 1, gx + reach); cx++) {
+                    for(int index = head[cz * width + cx]; index >= 0; index = next[index]) {
+                        float dx = points[2*index] - x;
+                        float dz = points[2*index+1] - z;
+                        if(dx*dx + dz*dz < minDistance*minDistance)
+                            return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        // Add new points in the area, which lies within the rectangle (ax0, az0) - (ax1, az1).
+        // The points already present are only obstacles. New points grow from a random start point in the area, when they can't
+        // grow any further a new start point is tried, to also fill the gaps the growth couldn't reach in narrow areas.
+        void fill(Area area, float ax0, float az0, float ax1, float az1, Random random) {
+            int[] active = new int[16];
+            while(true) {
+                int numActive = 0;
+                for(int attempt = 0; attempt < MAX_TRIES; attempt++) {
+                    float x = ax0 + random.nextFloat() * (ax1 - ax0);
+                    float z = az0 + random.nextFloat() * (az1 - az0);
+                    if(area.contains(x, z) && isValidPoint(x, z)) {
+                        active[numActive++] = add(x, z);
+                        break;
+                    }
+                }
+                if(numActive == 0)
+                    return;
+
+                while(numActive > 0) {
+                    int randomIndex = random.nextInt(numActive);
+                    int p = active[randomIndex];
+                    boolean found = false;
+                    for(int attempt = 0; attempt < MAX_TRIES; attempt++) {
+                        // random point between r and 2r distance from p
+                        float distance = minDistance * (1f + random.nextFloat());
+                        float angle = random.nextFloat() * 2f * (float)Math.PI;
+                        float x = points[2*p] + distance * (float)Math.cos(angle);
+                        float z = points[2*p+1] + distance * (float)Math.sin(angle);
+                        if(area.contains(x, z) && isValidPoint(x, z)) {
+                            if(numActive == active.length)
+                                active = Arrays.copyOf(active, 2 * active.length);
+                            active[numActive++] = add(x, z);
+                            found = true;
+                            break;
+                        }
+                    }
+                    if(!found)
+                        active[randomIndex] = active[--numActive];      // remove p from the active list
+                }
+            }
+        }
+
+        float[] copyPoints(int start) {
+            return Arrays.copyOfRange(points, 2 * start, 2 * numPoints);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.monstrous.impostors.lwjgl3;
+
+import com.badlogic.gdx.ApplicationAdapter;
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.backends.headless.HeadlessApplication;
+import com.badlogic.gdx.backends.headless.HeadlessApplicationConfiguration;
+import com.monstrous.impostors.Settings;
+import com.monstrous.impostors.scenery.SceneryChunk;
+import com.monstrous.impostors.scenery.SceneryChunks;
+import com.monstrous.impostors.terrain.HeightField;
+import com.monstrous.impostors.terrain.TerrainChunk;
+import com.monstrous.impostors.utils.PoissonPatternSet;
+
+/** Runs the checks and benchmarks of the core classes that don't need a GL context, without a window (gradle lwjgl3:benchmarks).
+ *  The names of the benchmarks to run can be passed as arguments (e.g. --args="chunkGrid"), by default all of them are run. */
+public class BenchmarkLauncher {
+    public static void main(String[] args) {
+        HeadlessApplicationConfiguration configuration = new HeadlessApplicationConfiguration();
+        configuration.updatesPerSecond = -1;    // no render loop needed
+        new HeadlessApplication(new ApplicationAdapter() {
+            @Override
+            public void create() {
+                if(selected(args, "chunkGrid"))
+                    ChunkGridBenchmark.run(200000, SceneryChunks.RANGE, Settings.worldSeed);
+                if(selected(args, "discDelta"))
+                    DiscDeltaBenchmark.run(SceneryChunks.RANGE, 5000, 2000, Settings.worldSeed);
+                if(selected(args, "poissonPatterns") && PoissonPatternSet.fits(Settings.scenerySeparationDistance, SceneryChunk.CHUNK_SIZE))
+                    PoissonPatternBenchmark.run(Settings.scenerySeparationDistance, SceneryChunk.CHUNK_SIZE, Settings.sceneryPatternColours, 16, Settings.worldSeed);
+                if(selected(args, "terrainMesh"))
+                    TerrainMeshBenchmark.run(new HeightField().getTile(0, 0), TerrainChunk.SCALE, 50);
+                Gdx.app.exit();
+            }
+        }, configuration);
+    }
+
+    private static boolean selected(String[] args, String name) {
+        if(args.length == 0)
+            return true;
+        for(String arg : args)
+            if(arg.equalsIgnoreCase(name))
+                return true;
+        return false;
+    }
+}
@@ -0,0 +1,117 @@
+package com.monstrous.impostors.lwjgl3;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.utils.Array;
+import com.monstrous.impostors.utils.ChunkGrid;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+/** Checks ChunkGrid against a HashMap and times lookups against the HashMap<Integer, ...> index that Terrain and SceneryChunks used before. */
+public class ChunkGridBenchmark {
+
+    private static long makeKey(int cx, int cz) {
+        return ((long)cx << 32) | (cz & 0xFFFFFFFFL);
+    }
+
+    // Check a grid against a HashMap reference with a random sequence of put/get/remove/setCentre operations (mostly
+    // single cell camera steps, some long jumps), then time lookups in a disc of cells against a HashMap<Integer, ...>
+    // keyed on cx + 1000*cz as Terrain and SceneryChunks used before. Results are logged.
+    public static void run(int operations, int range, long seed) {
+        Random random = new Random(seed);
+        ChunkGrid<Integer> grid = new ChunkGrid<>(2*range+1);
+        HashMap<Long, Integer> reference = new HashMap<>();
+        int centreX = 0, centreZ = 0;
+        int mismatches = 0;
+        for(int i = 0; i < operations; i++) {
+            int op = random.nextInt(100);
+            if(op < 5) {
+                if(random.nextInt(10) == 0) {           // jump
+                    centreX += random.nextInt(20001) - 10000;
+                    centreZ += random.nextInt(20001) - 10000;
+                }
+                else {                                  // step
+                    centreX += random.nextInt(3) - 1;
+                    centreZ += random.nextInt(3) - 1;
+                }
+                grid.setCentre(centreX, centreZ);
+                continue;
+            }
+            // cells near the centre and sometimes far outside the window
+            int spread = random.nextInt(4) == 0 ? 4*range : range;
+            int cx = centreX + random.nextInt(2*spread+1) - spread;
+            int cz = centreZ + random.nextInt(2*spread+1) - spread;
+            Long key = makeKey(cx, cz);
+            Integer expected, actual;
+            if(op < 50) {
+                expected = reference.put(key, i);
+                actual = grid.put(cx, cz, i);
+            }
+            else if(op < 70) {
+                expected = reference.remove(key);
+                actual = grid.remove(cx, cz);
+            }
+            else {
+                expected = reference.get(key);
+                actual = grid.get(cx, cz);
+            }
+            if(expected == null ? actual != null : !expected.equals(actual))
+                mismatches++;
+            if(grid.size() != reference.size())
+                mismatches++;
+        }
+        HashSet<Integer> values = new HashSet<>(reference.values());
+        Array<Integer> gridValues = grid.values(new Array<>());
+        if(gridValues.size != values.size())
+            mismatches++;
+        for(Integer value : gridValues)
+            if(!values.contains(value))
+                mismatches++;
+        if(mismatches > 0)
+            Gdx.app.error("ChunkGrid", "differs from HashMap reference: " + mismatches + " mismatches in " + operations + " operations");
+        else
+            Gdx.app.log("ChunkGrid", "identical to HashMap reference over " + operations + " operations");
+
+        // lookup benchmark over a disc of cells around the centre
+        grid.clear();
+        grid.setCentre(0, 0);
+        HashMap<Integer, Integer> map = new HashMap<>();
+        int cells = 0;
+        for(int cz = -range; cz <= range; cz++) {
+            for (int cx = -range; cx <= range; cx++) {
+                if(cx*cx + cz*cz > range*range)
+                    continue;
+                grid.put(cx, cz, cells);
+                map.put(cx + 1000*cz, cells);
+                cells++;
+            }
+        }
+        final int passes = 200;
+        long sum = 0;
+        long mapTime = 0, gridTime = 0;
+        for(int run = 0; run < 2; run++) {      // first run is warm up
+            long start = System.nanoTime();
+            for (int p = 0; p < passes; p++)
+                for (int cz = -range; cz <= range; cz++)
+                    for (int cx = -range; cx <= range; cx++) {
+                        Integer value = map.get(cx + 1000*cz);
+                        if(value != null)
+                            sum += value;
+                    }
+            mapTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int p = 0; p < passes; p++)
+                for (int cz = -range; cz <= range; cz++)
+                    for (int cx = -range; cx <= range; cx++) {
+                        Integer value = grid.get(cx, cz);
+                        if(value != null)
+                            sum += value;
+                    }
+            gridTime = System.nanoTime() - start;
+        }
+        long lookups = (long)passes * (2*range+1) * (2*range+1);
+        Gdx.app.log("ChunkGrid", "lookup HashMap<Integer>: " + (mapTime / (float)lookups) + " ns, ChunkGrid: " + (gridTime / (float)lookups)
+            + " ns (" + cells + " cells, checksum " + sum + ")");
+    }
+}
@@ -0,0 +1,90 @@
+package com.monstrous.impostors.lwjgl3;
+
+import com.badlogic.gdx.Gdx;
+import com.monstrous.impostors.utils.DiscDelta;
+
+import java.util.HashSet;
+import java.util.Random;
+
+/** Checks the incremental range updates of DiscDelta against a brute force rebuild and times both along a straight path. */
+public class DiscDeltaBenchmark {
+
+    private static long key(int x, int z) {
+        return ((long)x << 32) | (z & 0xFFFFFFFFL);
+    }
+
+    // Keep a set of cells up to date with incremental updates, as SceneryChunks does for the chunks in range, for a random
+    // sequence of moves (mostly single cell steps, some long jumps) and check it against a brute force rebuild of the disc
+    // after every move. Then time incremental updates against full rebuilds along a long straight path. Results are logged.
+    public static void run(int radius, int moves, int pathLength, long seed) {
+        DiscDelta disc = new DiscDelta(radius);
+        HashSet<Long> incremental = new HashSet<>();
+        HashSet<Long> bruteForce = new HashSet<>();
+        int[] errors = new int[1];
+        DiscDelta.CellVisitor enter = (x, z) -> { if(!incremental.add(key(x, z))) errors[0]++; };       // entered twice
+        DiscDelta.CellVisitor leave = (x, z) -> { if(!incremental.remove(key(x, z))) errors[0]++; };    // left while not in range
+
+        Random random = new Random(seed);
+        int cx = 0, cz = 0;
+        disc.visitDisc(cx, cz, enter);
+        int mismatches = 0;
+        for(int i = 0; i < moves; i++) {
+            int nx = cx, nz = cz;
+            if(random.nextInt(50) == 0) {       // jump, possibly overlapping the old disc
+                nx += random.nextInt(6*radius+1) - 3*radius;
+                nz += random.nextInt(6*radius+1) - 3*radius;
+            }
+            else {
+                nx += random.nextInt(3) - 1;
+                nz += random.nextInt(3) - 1;
+            }
+            disc.visitDifference(cx, cz, nx, nz, leave);
+            disc.visitDifference(nx, nz, cx, cz, enter);
+            cx = nx;
+            cz = nz;
+
+            bruteForce.clear();
+            for(int z = cz - radius; z <= cz + radius; z++)
+                for(int x = cx - radius; x <= cx + radius; x++)
+                    if((x-cx)*(x-cx) + (z-cz)*(z-cz) < radius*radius)
+                        bruteForce.add(key(x, z));
+            if(!bruteForce.equals(incremental))
+                mismatches++;
+        }
+        if(mismatches > 0 || errors[0] > 0)
+            Gdx.app.error("DiscDelta", "incremental range differs from brute force after " + mismatches + " of " + moves + " moves, "
+                + errors[0] + " cells entered or left twice");
+        else
+            Gdx.app.log("DiscDelta", "incremental range identical to brute force over " + moves + " moves at radius " + radius);
+
+        // straight path: one cell step per move, incremental update against visiting the whole disc
+        // every visited cell does a lookup, like the chunk lookup per cell in SceneryChunks
+        HashSet<Long> cells = new HashSet<>();
+        for(int x = -radius; x <= pathLength + radius; x++)
+            for(int z = -radius; z <= radius; z++)
+                cells.add(key(x, z));
+        int[] visited = new int[1];
+        DiscDelta.CellVisitor count = (x, z) -> { if(cells.contains(key(x, z))) visited[0]++; };
+        long incrementalTime = 0, rebuildTime = 0;
+        long incrementalCells = 0, rebuildCells = 0;
+        for(int run = 0; run < 2; run++) {      // first run is warm up
+            visited[0] = 0;
+            long start = System.nanoTime();
+            for(int step = 0; step < pathLength; step++) {
+                disc.visitDifference(step, 0, step+1, 0, count);
+                disc.visitDifference(step+1, 0, step, 0, count);
+            }
+            incrementalTime = System.nanoTime() - start;
+            incrementalCells = visited[0];
+
+            visited[0] = 0;
+            start = System.nanoTime();
+            for(int step = 0; step < pathLength; step++)
+                disc.visitDisc(step+1, 0, count);
+            rebuildTime = System.nanoTime() - start;
+            rebuildCells = visited[0];
+        }
+        Gdx.app.log("DiscDelta", "straight path of " + pathLength + " cells: incremental " + (incrementalTime / pathLength) + " ns/step ("
+            + (incrementalCells / pathLength) + " cells), rebuild " + (rebuildTime / pathLength) + " ns/step (" + (rebuildCells / pathLength) + " cells)");
+    }
+}
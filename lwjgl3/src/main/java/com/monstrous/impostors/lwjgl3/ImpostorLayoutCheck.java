@@ -0,0 +1,144 @@
+package com.monstrous.impostors.lwjgl3;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.glutils.FrameBuffer;
+import com.badlogic.gdx.utils.BufferUtils;
+import com.monstrous.impostors.scenery.ImpostorStore;
+import com.monstrous.impostors.scenery.SceneryChunk;
+import com.monstrous.impostors.shaders.InstancedDecalShaderProvider;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/** Checks ImpostorStore.pack() and the combined atlas layout against the GL_MAX_TEXTURE_SIZE of the current GL context. */
+public class ImpostorLayoutCheck {
+
+    // Check pack() against an instance stream built here for random instance counts of up to MAX_TYPES types.
+    // Check the slice layout for every number of types and some atlas sizes against a layout found by search: the atlas must
+    // fit the maximum texture size, the slices must not overlap, and the slice origin the shader computes from the type must
+    // be where ImpostorStore draws the slice. Finally allocate the combined atlas for numTypes types. Results are logged.
+    public static void run(int numTypes, int atlasSize, int maxCount, long seed) {
+        IntBuffer buffer = BufferUtils.newIntBuffer(16);
+        Gdx.gl.glGetIntegerv(GL20.GL_MAX_TEXTURE_SIZE, buffer);
+        int maxTextureSize = buffer.get(0);
+
+        int packErrors = checkPack(InstancedDecalShaderProvider.MAX_TYPES, maxCount, seed);
+
+        int layoutErrors = 0;
+        int[] atlasSizes = { 512, 1024, 2048, 4096, 8192 };
+        for(int n = 1; n <= InstancedDecalShaderProvider.MAX_TYPES; n++) {
+            for(int size : atlasSizes)
+                layoutErrors += checkLayout(n, size, maxTextureSize);
+        }
+
+        // the texture for the types of the game can actually be allocated
+        int columns = ImpostorStore.getColumns(numTypes);
+        int rows = ImpostorStore.getRows(numTypes);
+        int size = ImpostorStore.getSliceSize(atlasSize, numTypes, maxTextureSize);
+        boolean allocated;
+        try {
+            FrameBuffer fbo = new FrameBuffer(Pixmap.Format.RGBA8888, size * columns, size * rows, false);
+            allocated = Gdx.gl.glGetError() == GL20.GL_NO_ERROR;
+            fbo.dispose();
+        } catch (IllegalStateException e) {
+            Gdx.app.error("ImpostorLayoutCheck", "cannot allocate the combined atlas: " + e.getMessage());
+            allocated = false;
+        }
+
+        String message = "GL_MAX_TEXTURE_SIZE " + maxTextureSize + ", pack: " + packErrors + " errors, layout: " + layoutErrors
+            + " errors, atlas for " + numTypes + " types: " + (size * columns) + " x " + (size * rows) + (allocated ? " allocated" : " not allocated");
+        if(packErrors > 0 || layoutErrors > 0 || !allocated)
+            Gdx.app.error("ImpostorLayoutCheck", message);
+        else
+            Gdx.app.log("ImpostorLayoutCheck", message);
+    }
+
+    private static int checkPack(int numTypes, int maxCount, long seed) {
+        Random random = new Random(seed);
+        float[][] src = new float[numTypes][];
+        int[] counts = new int[numTypes];
+        int total = 0;
+        for(int type = 0; type < numTypes; type++) {
+            counts[type] = random.nextInt(maxCount + 1);
+            src[type] = new float[counts[type] * SceneryChunk.FLOATS_PER_INSTANCE];
+            for(int i = 0; i < src[type].length; i++)
+                src[type][i] = random.nextFloat() * 1000f;
+            total += counts[type];
+        }
+
+        // expected stream: the instances of type 0, then type 1, etc. each followed by its type
+        float[] expected = new float[total * ImpostorStore.FLOATS_PER_INSTANCE + 1];
+        int e = 0;
+        for(int type = 0; type < numTypes; type++) {
+            for(int i = 0; i < counts[type]; i++) {
+                for(int f = 0; f < SceneryChunk.FLOATS_PER_INSTANCE; f++)
+                    expected[e++] = src[type][i * SceneryChunk.FLOATS_PER_INSTANCE + f];
+                expected[e++] = type;
+            }
+        }
+        expected[expected.length-1] = -1;     // sentinel, must not be overwritten
+
+        float[] dst = new float[expected.length];
+        dst[dst.length-1] = -1;
+        int errors = 0;
+        int offset = 0;
+        for(int type = 0; type < numTypes; type++) {
+            int start = offset;
+            offset = ImpostorStore.pack(src[type], counts[type], type, dst, offset);
+            if(offset != start + counts[type] * ImpostorStore.FLOATS_PER_INSTANCE)
+                errors++;
+        }
+        if(!Arrays.equals(dst, expected))
+            errors++;
+        return errors;
+    }
+
+    private static int checkLayout(int numTypes, int atlasSize, int maxTextureSize) {
+        // as square as possible: fewest columns with columns^2 >= numTypes, then fewest rows to hold all types
+        int expectedColumns = 1;
+        while(expectedColumns * expectedColumns < numTypes)
+            expectedColumns++;
+        int expectedRows = 1;
+        while(expectedColumns * expectedRows < numTypes)
+            expectedRows++;
+        // largest slice up to the atlas size for which the grid fits the maximum texture size
+        int expectedSize = atlasSize;
+        while(expectedSize * Math.max(expectedColumns, expectedRows) > maxTextureSize)
+            expectedSize--;
+
+        int columns = ImpostorStore.getColumns(numTypes);
+        int rows = ImpostorStore.getRows(numTypes);
+        int size = ImpostorStore.getSliceSize(atlasSize, numTypes, maxTextureSize);
+        int errors = 0;
+        if(columns != expectedColumns || rows != expectedRows || size != expectedSize) {
+            Gdx.app.error("ImpostorLayoutCheck", numTypes + " types, atlas " + atlasSize + ": " + columns + " x " + rows + " slices of " + size
+                + ", expected " + expectedColumns + " x " + expectedRows + " slices of " + expectedSize);
+            errors++;
+        }
+        if(size * columns > maxTextureSize || size * rows > maxTextureSize)
+            errors++;
+
+        for(int a = 0; a < numTypes; a++) {
+            // where ImpostorStore draws the slice, in texels
+            int ax = (a % columns) * size;
+            int ay = (a / columns) * size;
+            if(ax + size > size * columns || ay + size > size * rows)
+                errors++;
+            // where the shader (decalinstanced.vert) looks for it, in texture coordinates
+            float column = a - columns * (float)Math.floor(a / (float)columns);
+            float row = (float)Math.floor((a + 0.5f) / columns);
+            if(column / columns != ax / (float)(size * columns) || row / rows != ay / (float)(size * rows))
+                errors++;
+            for(int b = a+1; b < numTypes; b++) {
+                int bx = (b % columns) * size;
+                int by = (b / columns) * size;
+                if(ax < bx + size && bx < ax + size && ay < by + size && by < ay + size)
+                    errors++;
+            }
+        }
+        return errors;
+    }
+}
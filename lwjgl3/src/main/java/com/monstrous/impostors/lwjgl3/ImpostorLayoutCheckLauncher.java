@@ -0,0 +1,26 @@
+package com.monstrous.impostors.lwjgl3;
+
+import com.badlogic.gdx.ApplicationAdapter;
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.backends.lwjgl3.Lwjgl3Application;
+import com.badlogic.gdx.backends.lwjgl3.Lwjgl3ApplicationConfiguration;
+import com.monstrous.impostors.Settings;
+
+/** Runs the impostor layout check (gradle lwjgl3:impostorLayoutCheck). This needs a window for the GL context. */
+public class ImpostorLayoutCheckLauncher {
+    public static void main(String[] args) {
+        if (StartupHelper.startNewJvmIfRequired()) return; // This handles macOS support and helps on Windows.
+        Lwjgl3ApplicationConfiguration configuration = new Lwjgl3ApplicationConfiguration();
+        configuration.setTitle("Impostor layout check");
+        configuration.setWindowedMode(320, 200);
+        configuration.setOpenGLEmulation(Lwjgl3ApplicationConfiguration.GLEmulation.GL30, 4,3);
+        new Lwjgl3Application(new ApplicationAdapter() {
+            @Override
+            public void create() {
+                // 2 types (duck and palm tree) with the 2048 texel atlases of LodModel
+                ImpostorLayoutCheck.run(2, 2048, 1000, Settings.worldSeed);
+                Gdx.app.exit();
+            }
+        }, configuration);
+    }
+}
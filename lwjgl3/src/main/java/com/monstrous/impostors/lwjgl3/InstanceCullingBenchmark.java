@@ -0,0 +1,52 @@
+package com.monstrous.impostors.lwjgl3;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.Camera;
+import com.badlogic.gdx.utils.Array;
+import com.monstrous.impostors.Settings;
+import com.monstrous.impostors.scenery.LodModel;
+import com.monstrous.impostors.scenery.SceneryChunk;
+import com.monstrous.impostors.scenery.SceneryInstanceClassifier;
+
+import java.util.concurrent.ForkJoinPool;
+
+/** Times the instance classification of SceneryInstanceClassifier with 1, 2, 4 and 8 threads and checks that every thread count gives the same result. */
+public class InstanceCullingBenchmark {
+
+    // Classify the instances of the chunks repeatedly with 1 (calling thread), 2, 4 and 8 threads and log the average time
+    // per frame for each, checking that every thread count gives the same instances in the same order.
+    public static void run(Array<LodModel> lodModels, Array<SceneryChunk> chunks, Camera cam, int frames) {
+        SceneryInstanceClassifier classifier = new SceneryInstanceClassifier(lodModels);
+        classifier.begin();
+        for(SceneryChunk chunk : chunks)
+            classifier.addChunk(chunk);
+        classifier.classify(cam, null);
+        long reference = classifier.checksum();
+
+        int[] threadCounts = { 1, 2, 4, 8 };
+        long singleThreadTime = 0;
+        for(int threads : threadCounts) {
+            ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
+            for(int f = 0; f < frames; f++)     // warm up
+                classifier.classify(cam, pool);
+            long start = System.nanoTime();
+            for(int f = 0; f < frames; f++)
+                classifier.classify(cam, pool);
+            long time = (System.nanoTime() - start) / frames;
+            if(threads == 1)
+                singleThreadTime = time;
+            boolean identical = classifier.checksum() == reference;
+            if(pool != null)
+                pool.shutdown();
+            String message = "threads: " + threads + " chunks: " + classifier.getChunkCount() + " time: " + (time / 1000) + " us/frame, speed up: "
+                + (100 * singleThreadTime / Math.max(1, time)) / 100f;
+            if(identical)
+                Gdx.app.log("InstanceCullingBenchmark", message + ", result identical");
+            else
+                Gdx.app.error("InstanceCullingBenchmark", message + ", result differs from the single threaded result");
+        }
+        classifier.dispose();
+        Gdx.app.log("InstanceCullingBenchmark", "cores: " + Runtime.getRuntime().availableProcessors() + ", in game threads: "
+            + (Settings.parallelInstanceCulling ? Settings.instanceCullingThreads : 1));
+    }
+}
@@ -0,0 +1,77 @@
+package com.monstrous.impostors.lwjgl3;
+
+import com.badlogic.gdx.ApplicationAdapter;
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.backends.lwjgl3.Lwjgl3Application;
+import com.badlogic.gdx.backends.lwjgl3.Lwjgl3ApplicationConfiguration;
+import com.badlogic.gdx.graphics.PerspectiveCamera;
+import com.badlogic.gdx.math.Rectangle;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import com.monstrous.impostors.Settings;
+import com.monstrous.impostors.scenery.Scenery;
+import com.monstrous.impostors.scenery.SceneryChunk;
+import com.monstrous.impostors.terrain.Terrain;
+import com.monstrous.impostors.utils.BenchmarkPath;
+
+/** Runs the instance culling benchmark on the scenery at the start of the benchmark path (gradle lwjgl3:instanceCullingBenchmark).
+ *  This needs a window, because the LOD models and impostors are built on the GPU. */
+public class InstanceCullingBenchmarkLauncher {
+    private static final float WARM_UP = 5f;        // seconds of updates before the benchmark, so that the chunks around the camera are ready
+    private static final int FRAMES = 100;
+
+    public static void main(String[] args) {
+        if (StartupHelper.startNewJvmIfRequired()) return; // This handles macOS support and helps on Windows.
+        Lwjgl3ApplicationConfiguration configuration = new Lwjgl3ApplicationConfiguration();
+        configuration.setTitle("Instance culling benchmark");
+        configuration.useVsync(false);
+        configuration.setWindowedMode(1280, 800);
+        configuration.setOpenGLEmulation(Lwjgl3ApplicationConfiguration.GLEmulation.GL30, 4,3);
+        new Lwjgl3Application(new ApplicationAdapter() {
+            private PerspectiveCamera camera;
+            private Terrain terrain;
+            private Scenery scenery;
+            private float time;
+
+            @Override
+            public void create() {
+                if (Gdx.gl30 == null)
+                    throw new GdxRuntimeException("GLES 3.0 profile required for this programme.");
+                camera = new PerspectiveCamera(Settings.cameraFOV, Gdx.graphics.getWidth(), Gdx.graphics.getHeight());
+                camera.near = 1f;
+                camera.far = Settings.cameraFar;
+                camera.up.set(Vector3.Y);
+                camera.position.set(0, 20, 50);
+                terrain = new Terrain(camera.position);
+                scenery = new Scenery(terrain, Settings.scenerySeparationDistance);
+                BenchmarkPath.place(camera, 0, terrain.getHeightField());
+                float size = Settings.sceneryPregenerateSize;
+                scenery.pregenerate(new Rectangle(camera.position.x - size/2, camera.position.z - size/2, size, size));
+            }
+
+            @Override
+            public void render() {
+                float deltaTime = Gdx.graphics.getDeltaTime();
+                terrain.update(deltaTime, camera);
+                scenery.update(deltaTime, camera, true);
+                time += deltaTime;
+                if(time < WARM_UP)
+                    return;
+
+                // the chunks of which the instances are classified individually in the game
+                Array<SceneryChunk> chunks = new Array<>();
+                for (int level = 0; level < Settings.LOD_LEVELS; level++)
+                    chunks.addAll(scenery.getVisibleChunks(level));
+                InstanceCullingBenchmark.run(scenery.getLodModels(), chunks, camera, FRAMES);
+                Gdx.app.exit();
+            }
+
+            @Override
+            public void dispose() {
+                scenery.dispose();
+                terrain.dispose();
+            }
+        }, configuration);
+    }
+}
@@ -0,0 +1,28 @@
+package com.monstrous.impostors.lwjgl3;
+
+import com.badlogic.gdx.ApplicationAdapter;
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.backends.headless.HeadlessApplication;
+import com.badlogic.gdx.backends.headless.HeadlessApplicationConfiguration;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.BoundingBox;
+import com.monstrous.impostors.Settings;
+import com.monstrous.impostors.scenery.SceneryOcclusionCuller;
+
+/** Runs the occlusion culling benchmark without a window or GL context (gradle lwjgl3:occlusionBenchmark). */
+public class OcclusionBenchmarkLauncher {
+    public static void main(String[] args) {
+        HeadlessApplicationConfiguration configuration = new HeadlessApplicationConfiguration();
+        configuration.updatesPerSecond = -1;    // no render loop needed
+        new HeadlessApplication(new ApplicationAdapter() {
+            @Override
+            public void create() {
+                float[] bias = { .98f, .02f };      // as in Scenery
+                // LOD0 bounds of the duck and the palm tree in models/duck-land.gltf, the models can't be loaded without GL
+                BoundingBox modelBounds = new BoundingBox(new Vector3(-44f, -6f, -34f), new Vector3(24f, 110f, 44f));
+                SceneryOcclusionCuller.benchmark(2, bias, Settings.scenerySeparationDistance, modelBounds, 1280, 800);
+                Gdx.app.exit();
+            }
+        }, configuration);
+    }
+}
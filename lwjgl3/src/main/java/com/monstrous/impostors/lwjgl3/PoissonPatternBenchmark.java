@@ -0,0 +1,98 @@
+package com.monstrous.impostors.lwjgl3;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.math.Rectangle;
+import com.monstrous.impostors.utils.PoissonDiskDistribution;
+import com.monstrous.impostors.utils.PoissonPatternSet;
+
+import java.util.HashSet;
+import java.util.Random;
+
+/** Checks the minimum distance of PoissonPatternSet tiles across the seams and times tile generation against Bridson's algorithm. */
+public class PoissonPatternBenchmark {
+
+    // Assemble a block of size x size tiles and check the minimum distance between all points, also across the seams.
+    // Count how many point positions (relative to the tile corner) each tile has in common with its right neighbour, as a
+    // measure of visible repetition. Then time tile generation against Bridson's algorithm for the same area. Results are logged.
+    public static void run(float minDistance, float tileSize, int numColours, int size, long seed) {
+        PoissonPatternSet set = new PoissonPatternSet(minDistance, tileSize, numColours, seed);
+        float[][] tiles = new float[size * size][];
+        for(int tz = 0; tz < size; tz++)
+            for(int tx = 0; tx < size; tx++)
+                tiles[tz * size + tx] = set.generate(tx, tz, new Random(seed + tz * size + tx));
+
+        // minimum distance over the whole block, every point against every earlier point
+        int numPoints = 0;
+        for(float[] tile : tiles)
+            numPoints += tile.length / 2;
+        float[] block = new float[2 * numPoints];
+        int n = 0;
+        for(int tz = 0; tz < size; tz++) {
+            for(int tx = 0; tx < size; tx++) {
+                float[] tile = tiles[tz * size + tx];
+                for(int i = 0; i < tile.length; i += 2) {
+                    block[n++] = tx * tileSize + tile[i];
+                    block[n++] = tz * tileSize + tile[i+1];
+                }
+            }
+        }
+        int violations = 0;
+        for(int i = 0; i < numPoints; i++) {
+            for(int j = 0; j < i; j++) {
+                float dx = block[2*i] - block[2*j];
+                float dz = block[2*i+1] - block[2*j+1];
+                if(dx * dx + dz * dz < minDistance * minDistance) {
+                    violations++;
+                    break;
+                }
+            }
+        }
+
+        // positions in common with the right neighbour
+        int shared = 0;
+        int neighbourPoints = 0;
+        for(int tz = 0; tz < size; tz++) {
+            for(int tx = 0; tx < size-1; tx++) {
+                HashSet<Long> positions = new HashSet<>();
+                float[] tile = tiles[tz * size + tx];
+                for(int i = 0; i < tile.length; i += 2)
+                    positions.add(((long)Float.floatToIntBits(tile[i]) << 32) | (Float.floatToIntBits(tile[i+1]) & 0xFFFFFFFFL));
+                float[] right = tiles[tz * size + tx + 1];
+                neighbourPoints += right.length / 2;
+                for(int i = 0; i < right.length; i += 2)
+                    if(positions.contains(((long)Float.floatToIntBits(right[i]) << 32) | (Float.floatToIntBits(right[i+1]) & 0xFFFFFFFFL)))
+                        shared++;
+            }
+        }
+
+        if(violations > 0)
+            Gdx.app.error("PoissonPatternSet", violations + " of " + numPoints + " points closer than " + minDistance + " to another point");
+        else
+            Gdx.app.log("PoissonPatternSet", "minimum distance respected for " + numPoints + " points in " + size + "x" + size + " tiles");
+        // reference density: Bridson's algorithm over the whole block, which has no seams
+        int reference = PoissonDiskDistribution.generatePoissonDistribution(minDistance, new Rectangle(0, 0, size * tileSize, size * tileSize), new Random(seed)).size;
+        Gdx.app.log("PoissonPatternSet", "points per tile: " + (numPoints / (size * size)) + " (" + (reference / (size * size))
+            + " for the whole block at once), positions shared with the neighbouring tile: " + (100 * shared / Math.max(1, neighbourPoints)) + "%");
+
+        // generation time per tile, pieces vs Bridson's algorithm for the whole tile
+        Rectangle area = new Rectangle(0, 0, tileSize, tileSize);
+        long patternTime = 0, bridsonTime = 0;
+        int patternPoints = 0, bridsonPoints = 0;
+        int count = size * size;
+        for(int run = 0; run < 2; run++) {      // first run is warm up
+            patternPoints = 0;
+            long start = System.nanoTime();
+            for(int i = 0; i < count; i++)
+                patternPoints += set.generate(i, run, new Random(seed + i)).length / 2;
+            patternTime = System.nanoTime() - start;
+
+            bridsonPoints = 0;
+            start = System.nanoTime();
+            for(int i = 0; i < count; i++)
+                bridsonPoints += PoissonDiskDistribution.generatePoissonDistribution(minDistance, area, new Random(seed + i)).size;
+            bridsonTime = System.nanoTime() - start;
+        }
+        Gdx.app.log("PoissonPatternSet", "per tile: pieces " + (patternTime / count / 1000) + " us (" + (patternPoints / count) + " points), Bridson "
+            + (bridsonTime / count / 1000) + " us (" + (bridsonPoints / count) + " points)");
+    }
+}
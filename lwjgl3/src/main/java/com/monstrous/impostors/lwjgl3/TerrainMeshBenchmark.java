@@ -0,0 +1,141 @@
+package com.monstrous.impostors.lwjgl3;
+
+import com.badlogic.gdx.Gdx;
+import com.monstrous.impostors.Settings;
+import com.monstrous.impostors.terrain.HeightTile;
+import com.monstrous.impostors.terrain.TerrainChunk;
+import com.monstrous.impostors.terrain.TerrainMeshBuilder;
+
+/** Times TerrainMeshBuilder against the previous builder and checks that they give the same geometry. */
+public class TerrainMeshBenchmark {
+
+    // Previous builder: the same vertices, but each normal is the normalized sum of the normals of the triangles
+    // around the vertex (not including the triangles of neighbouring chunks).
+    private static void buildReference(HeightTile tile, float scale, float[] vertices) {
+        final int N = TerrainChunk.MAP_SIZE;
+        final int numVerts = (N + 1) * (N + 1);
+        float[] positions = new float[3 * numVerts];
+        float[] normals = new float[3 * numVerts];
+
+        for (int y = 0; y <= N; y++) {
+            float posy = ((float) y / (float) N);        // y in [0.0 ..1.0]
+            for (int x = 0; x <= N; x++) {
+                float posx = ((float) x / (float) N);        // x in [0.0 .. 1.0]
+                int v = y * (N + 1) + x;
+                positions[3*v] = posx * scale;           // swapping z,y to orient horizontally
+                positions[3*v+1] = tile.get(x, y);
+                positions[3*v+2] = posy * scale;
+            }
+        }
+
+        for (int y = 1; y <= N; y++) {
+            int v0 = (y - 1) * (N + 1);    // vertex number at top left of this row
+            for (int x = 0; x <= N-1; x++, v0++) {
+                addRect(positions, normals, v0 + N + 1, v0 + N + 2, v0 + 1, v0);
+            }
+        }
+
+        // now normalize each normal (which is the sum of the attached triangle normals)
+        for (int i = 0; i < numVerts; i++) {
+            float nx = normals[3*i], ny = normals[3*i+1], nz = normals[3*i+2];
+            float len = (float)Math.sqrt(nx*nx + ny*ny + nz*nz);
+            if(len > 0) {
+                nx /= len;
+                ny /= len;
+                nz /= len;
+            }
+            int x = i % (N+1);	// e.g. in [0 .. 3] if N == 3
+            int y = i / (N+1);
+
+            int offset = TerrainMeshBuilder.FLOATS_PER_VERTEX * i;
+            vertices[offset]   = positions[3*i];
+            vertices[offset+1] = positions[3*i+1];
+            vertices[offset+2] = positions[3*i+2];
+            vertices[offset+3] = nx;
+            vertices[offset+4] = ny;
+            vertices[offset+5] = nz;
+            vertices[offset+6] = (x * TerrainMeshBuilder.UV_REPEATS) / (float)(N+1);
+            vertices[offset+7] = (y * TerrainMeshBuilder.UV_REPEATS) / (float)(N+1);
+        }
+    }
+
+    // normals of the 2 triangles of a grid cell (the indices are in TerrainLod)
+    //
+    //     v3 --v2
+    //      | /  |
+    //     v0 --v1
+    // triangle v0,v1,v2 and v2, v3, v0
+    private static void addRect(float[] positions, float[] normals, int v0, int v1, int v2, int v3) {
+        addNormal(positions, normals, v0, v1, v2);
+        addNormal(positions, normals, v2, v3, v0);
+    }
+
+    // add the normal of triangle (v0, v1, v2) to the normals of its vertices
+    private static void addNormal(float[] positions, float[] normals, int v0, int v1, int v2) {
+        // v = p2 - p1, u = p0 - p1, n = v x u
+        float vx = positions[3*v2] - positions[3*v1];
+        float vy = positions[3*v2+1] - positions[3*v1+1];
+        float vz = positions[3*v2+2] - positions[3*v1+2];
+        float ux = positions[3*v0] - positions[3*v1];
+        float uy = positions[3*v0+1] - positions[3*v1+1];
+        float uz = positions[3*v0+2] - positions[3*v1+2];
+        float nx = vy * uz - vz * uy;
+        float ny = vz * ux - vx * uz;
+        float nz = vx * uy - vy * ux;
+        float len = (float)Math.sqrt(nx*nx + ny*ny + nz*nz);
+        if(len == 0)
+            return;
+        nx /= len;
+        ny /= len;
+        nz /= len;
+        normals[3*v0] += nx;
+        normals[3*v0+1] += ny;
+        normals[3*v0+2] += nz;
+        normals[3*v1] += nx;
+        normals[3*v1+1] += ny;
+        normals[3*v1+2] += nz;
+        normals[3*v2] += nx;
+        normals[3*v2+1] += ny;
+        normals[3*v2+2] += nz;
+    }
+
+    // Time both builders on the same height tile and check that they give the same geometry: positions and texture
+    // coordinates must be identical, the normals only differ by the method. Results are logged.
+    public static void run(HeightTile tile, float scale, int iterations) {
+        float[] vertices = TerrainMeshBuilder.allocate();
+        float[] reference = TerrainMeshBuilder.allocate();
+
+        // warm up
+        for(int i = 0; i < iterations; i++) {
+            TerrainMeshBuilder.build(tile, scale, vertices);
+            buildReference(tile, scale, reference);
+        }
+
+        long start = System.nanoTime();
+        for(int i = 0; i < iterations; i++)
+            buildReference(tile, scale, reference);
+        long referenceTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for(int i = 0; i < iterations; i++)
+            TerrainMeshBuilder.build(tile, scale, vertices);
+        long buildTime = System.nanoTime() - start;
+
+        int mismatches = 0;
+        float maxNormalAngle = 0;
+        for(int offset = 0; offset < vertices.length; offset += TerrainMeshBuilder.FLOATS_PER_VERTEX) {
+            if(vertices[offset] != reference[offset] || vertices[offset+1] != reference[offset+1] || vertices[offset+2] != reference[offset+2]
+                || vertices[offset+6] != reference[offset+6] || vertices[offset+7] != reference[offset+7])
+                mismatches++;
+            float dot = vertices[offset+3]*reference[offset+3] + vertices[offset+4]*reference[offset+4] + vertices[offset+5]*reference[offset+5];
+            maxNormalAngle = Math.max(maxNormalAngle, (float)Math.toDegrees(Math.acos(Math.min(1f, dot))));
+        }
+
+        Gdx.app.log("TerrainMeshBuilder", "reference: " + (referenceTime / iterations / 1000) + " us/chunk, build: " + (buildTime / iterations / 1000)
+            + " us/chunk (parallel: " + Settings.parallelTerrainMeshBuilder + ")");
+        if(mismatches > 0)
+            Gdx.app.error("TerrainMeshBuilder", "geometry differs at " + mismatches + " vertices");
+        else
+            Gdx.app.log("TerrainMeshBuilder", "geometry identical, max normal difference: " + maxNormalAngle + " degrees");
+    }
+}